@@ -0,0 +1,40 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run the SDK benchmarks with the GC profiler, which adds the allocation rate
+ * (gc.alloc.rate.norm, in bytes per operation) to the throughput and average
+ * time of each benchmark.
+ *
+ * @param args
+ *            - optional regular expression selecting the benchmarks, e.g.
+ *            "UtilBenchmark.encode"
+ */
+public class BenchmarkMain {
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder().include(args.length > 0 ? args[0] : "com.mobli.android.*Benchmark")
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
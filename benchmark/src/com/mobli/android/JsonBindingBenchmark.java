@@ -0,0 +1,176 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mobli.android.model.Media;
+
+/**
+ * Benchmarks of the generated model readers against the JSONObject path they
+ * replace: Util.parseJson, then copying the members out of the tree by hand.
+ *
+ * Each benchmark reads a media feed of 1, 20 or 500 items, with owners,
+ * places, channels, comments and tags.
+ *
+ * See benchmark/README.md for how to run them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBindingBenchmark {
+
+	@Param({ "small", "medium", "large" })
+	public String size;
+
+	private String mResponse;
+	private Mobli.ResponseParser<List<Media>> mFeedParser;
+
+	@Setup
+	public void setUp() {
+		int mediaCount;
+		if (size.equals("small")) {
+			mediaCount = 1;
+		} else if (size.equals("medium")) {
+			mediaCount = 20;
+		} else {
+			mediaCount = 500;
+		}
+
+		StringBuilder sb = new StringBuilder("{\"payload\":[");
+		for (int i = 0; i < mediaCount; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			appendMedia(sb, i);
+		}
+		sb.append("],\"next_page\":\"abc\"}");
+		mResponse = sb.toString();
+		mFeedParser = JsonBinding.listParser("payload", Media.class);
+	}
+
+	private static void appendMedia(StringBuilder sb, int id) {
+		sb.append("{\"id\":").append(1000000 + id).append(",\"type\":\"photo\",\"created_date\":1337000000")
+				.append(",\"text\":\"Sunset at the beach \\u2600 #").append(id).append("\"")
+				.append(",\"url\":\"http://img.mobli.com/m/").append(id).append(".jpg\"")
+				.append(",\"thumbnail\":\"http://img.mobli.com/m/").append(id).append("_t.jpg\"")
+				.append(",\"owner\":{\"id\":").append(42 + id).append(",\"username\":\"user").append(id)
+				.append("\",\"first_name\":\"First\",\"last_name\":\"Last\",\"profile_pic\":\"http://img.mobli.com/u/")
+				.append(id).append(".jpg\",\"followers_count\":120,\"following_count\":80}")
+				.append(",\"place\":{\"id\":7,\"name\":\"Tel Aviv\",\"address\":\"Rothschild Blvd\",\"lat\":32.0853,\"lon\":34.7818}")
+				.append(",\"likes\":").append(id * 3)
+				.append(",\"comments\":[{\"id\":").append(id).append(",\"text\":\"Nice!\",\"created_date\":1337000100")
+				.append(",\"user\":{\"id\":9,\"username\":\"friend\"}}]")
+				.append(",\"channels\":[{\"id\":1,\"name\":\"sunsets\",\"media_count\":1500},{\"id\":2,\"name\":\"beach\",\"media_count\":900}]")
+				.append(",\"tags\":[\"sunset\",\"beach\",\"sea\"]}");
+	}
+
+	/**
+	 * The generated readers, streaming the feed into Media objects.
+	 */
+	@Benchmark
+	public List<Media> readModels() throws IOException {
+		JsonPullParser parser = new JsonPullParser(new StringReader(mResponse));
+		parser.setErrorDetection(true);
+		return mFeedParser.parse(parser);
+	}
+
+	/**
+	 * The JSONObject path: the whole tree built by Util.parseJson, then every
+	 * member the models hold read out of it.
+	 */
+	@Benchmark
+	public void parseJsonAndCopy(Blackhole blackhole) throws JSONException {
+		JSONArray payload = Util.parseJson(mResponse).getJSONArray("payload");
+		for (int i = 0; i < payload.length(); i++) {
+			JSONObject media = payload.getJSONObject(i);
+			blackhole.consume(media.optLong("id"));
+			blackhole.consume(media.optString("type"));
+			blackhole.consume(media.optString("text"));
+			blackhole.consume(media.optLong("created_date"));
+			blackhole.consume(media.optString("url"));
+			blackhole.consume(media.optString("thumbnail"));
+			blackhole.consume(media.optInt("likes"));
+			copyUser(blackhole, media.optJSONObject("owner"));
+
+			JSONObject place = media.optJSONObject("place");
+			if (place != null) {
+				blackhole.consume(place.optLong("id"));
+				blackhole.consume(place.optString("name"));
+				blackhole.consume(place.optString("address"));
+				blackhole.consume(place.optDouble("lat"));
+				blackhole.consume(place.optDouble("lon"));
+			}
+
+			JSONArray comments = media.optJSONArray("comments");
+			for (int j = 0; comments != null && j < comments.length(); j++) {
+				JSONObject comment = comments.getJSONObject(j);
+				blackhole.consume(comment.optLong("id"));
+				blackhole.consume(comment.optString("text"));
+				blackhole.consume(comment.optLong("created_date"));
+				copyUser(blackhole, comment.optJSONObject("user"));
+			}
+
+			JSONArray channels = media.optJSONArray("channels");
+			for (int j = 0; channels != null && j < channels.length(); j++) {
+				JSONObject channel = channels.getJSONObject(j);
+				blackhole.consume(channel.optLong("id"));
+				blackhole.consume(channel.optString("name"));
+				blackhole.consume(channel.optString("description"));
+				blackhole.consume(channel.optInt("media_count"));
+			}
+
+			JSONArray tags = media.optJSONArray("tags");
+			for (int j = 0; tags != null && j < tags.length(); j++) {
+				blackhole.consume(tags.optString(j));
+			}
+		}
+	}
+
+	private static void copyUser(Blackhole blackhole, JSONObject user) {
+		if (user != null) {
+			blackhole.consume(user.optLong("id"));
+			blackhole.consume(user.optString("username"));
+			blackhole.consume(user.optString("first_name"));
+			blackhole.consume(user.optString("last_name"));
+			blackhole.consume(user.optString("profile_pic"));
+			blackhole.consume(user.optInt("followers_count"));
+			blackhole.consume(user.optInt("following_count"));
+		}
+	}
+}
@@ -0,0 +1,222 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end check of ResumableUpload against an in-memory chunk server
+ * installed as the transport: an upload interrupted by the server rejecting
+ * its chunks, then resumed by a new ResumableUpload, as after a process
+ * restart. The resume must keep the upload_id, send only the chunks missing
+ * from the checkpoint, and the server must assemble the file unchanged.
+ *
+ * Exits with status 1 if a check fails. See benchmark/README.md for how to
+ * run it.
+ */
+public class ResumableUploadCheck {
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int CHUNK_COUNT = 10;
+	/** the first chunk rejected by the server during the interrupted upload */
+	private static final int FIRST_REJECTED = 5;
+
+	public static void main(String[] args) throws Exception {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "mobli-upload-check");
+		directory.mkdirs();
+		File checkpoints = new File(directory, "checkpoints");
+		checkpoints.mkdirs();
+		File file = new File(directory, "upload.bin");
+		byte[] content = new byte[CHUNK_SIZE * (CHUNK_COUNT - 1) + 123];
+		new Random(42).nextBytes(content);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+
+		ChunkServer server = new ChunkServer();
+		Util.setTransport(server);
+		Mobli mobli = new Mobli("client", "secret");
+
+		// interrupted: the server rejects the chunks from FIRST_REJECTED on
+		server.mRejectFrom = FIRST_REJECTED;
+		ResumableUpload upload = newUpload(mobli, file, checkpoints);
+		upload.discardCheckpoint();
+		Outcome first = run(upload);
+		check(first.mError != null, "the interrupted upload fails");
+		String uploadId = upload.getUploadId();
+		int accepted = server.acceptedChunks(uploadId);
+		check(accepted >= 1 && accepted <= FIRST_REJECTED, "chunks before the rejected ones are accepted: " + accepted);
+		System.out.println("interrupted: " + first.mError.getMessage() + ", " + accepted + "/" + CHUNK_COUNT + " chunks accepted");
+
+		// resumed by a new upload of the same file, as after a restart
+		server.mRejectFrom = Integer.MAX_VALUE;
+		server.mChunkRequests.set(0);
+		ResumableUpload resumed = newUpload(mobli, file, checkpoints);
+		Outcome second = run(resumed);
+		check(second.mError == null, "the resumed upload succeeds: " + second.mError);
+		check(uploadId.equals(resumed.getUploadId()), "the resumed upload keeps the upload_id");
+		check(server.mChunkRequests.get() == CHUNK_COUNT - accepted, "only the missing chunks are sent again: "
+				+ server.mChunkRequests.get());
+		check(Arrays.equals(content, server.assemble(uploadId)), "the server assembles the file unchanged");
+		check(checkpoints.list().length == 0, "the checkpoint is deleted once the upload completes");
+		System.out.println("resumed: " + server.mChunkRequests.get() + " chunks sent, " + content.length + " bytes assembled");
+
+		file.delete();
+		System.out.println("ResumableUpload check passed");
+		System.exit(0);
+	}
+
+	private static ResumableUpload newUpload(Mobli mobli, File file, File checkpoints) {
+		ResumableUpload upload = new ResumableUpload(mobli, "https://upload.mobli.test/", "chunks", null, file, checkpoints);
+		upload.setChunkSize(CHUNK_SIZE);
+		upload.setChunkAttempts(1);
+		return upload;
+	}
+
+	private static Outcome run(ResumableUpload upload) throws InterruptedException {
+		final Outcome outcome = new Outcome();
+		upload.start(new ResumableUpload.Listener() {
+			@Override
+			public void onProgress(long uploadedBytes, long totalBytes, long bytesPerSecond, long etaMillis) {
+			}
+
+			@Override
+			public void onComplete(String response) {
+				outcome.mDone.countDown();
+			}
+
+			@Override
+			public void onError(IOException e) {
+				outcome.mError = e;
+				outcome.mDone.countDown();
+			}
+		});
+		check(outcome.mDone.await(30, TimeUnit.SECONDS), "the upload ends");
+		return outcome;
+	}
+
+	private static void check(boolean condition, String what) {
+		if (!condition) {
+			System.out.println("FAILED: " + what);
+			System.exit(1);
+		}
+	}
+
+	private static final class Outcome {
+
+		final CountDownLatch mDone = new CountDownLatch(1);
+		volatile IOException mError;
+	}
+
+	/**
+	 * Transport keeping the accepted chunks of each upload in memory.
+	 */
+	private static final class ChunkServer implements HttpTransport {
+
+		private static final String SEPARATOR = "\r\n--" + MultipartBody.BOUNDARY + "\r\n";
+
+		/** chunks by upload_id, then by index */
+		private final HashMap<String, HashMap<Integer, byte[]>> mUploads = new HashMap<String, HashMap<Integer, byte[]>>();
+		final AtomicInteger mChunkRequests = new AtomicInteger();
+		volatile int mRejectFrom = Integer.MAX_VALUE;
+
+		@Override
+		public HttpTransport.Call newCall(final TransportRequest request) {
+			return new HttpTransport.Call() {
+				@Override
+				public TransportResponse execute() throws IOException {
+					ByteArrayOutputStream body = new ByteArrayOutputStream();
+					request.getBody().writeTo(body);
+					return receive(body.toByteArray());
+				}
+
+				@Override
+				public void cancel() {
+				}
+			};
+		}
+
+		private TransportResponse receive(byte[] body) throws IOException {
+			// ISO-8859-1 maps each byte to one char, so the chunk bytes survive;
+			// the body opens with the boundary, without the line break before it
+			String[] parts = ("\r\n" + new String(body, "ISO-8859-1")).split(SEPARATOR);
+			HashMap<String, String> params = new HashMap<String, String>();
+			byte[] chunk = null;
+			for (String part : parts) {
+				int start = part.indexOf("\r\n\r\n");
+				if (start < 0) {
+					continue;
+				}
+				String value = part.substring(start + 4);
+				if (part.startsWith("Content-Disposition: form-data; filename=\"chunk\"")) {
+					chunk = value.getBytes("ISO-8859-1");
+				} else if (part.startsWith("Content-Disposition: form-data; name=\"")) {
+					params.put(part.substring(38, part.indexOf('"', 38)), value);
+				}
+			}
+			String uploadId = params.get("upload_id");
+			if ("1".equals(params.get("complete"))) {
+				boolean whole = acceptedChunks(uploadId) == Integer.parseInt(params.get("chunk_count"));
+				return new BufferedResponse(whole ? 200 : 400, whole ? "{\"id\":1}" : "{\"error\":\"missing chunks\"}");
+			}
+			mChunkRequests.incrementAndGet();
+			int index = Integer.parseInt(params.get("chunk_index"));
+			if (index >= mRejectFrom) {
+				return new BufferedResponse(503, "{\"error\":\"unavailable\"}");
+			}
+			synchronized (mUploads) {
+				HashMap<Integer, byte[]> chunks = mUploads.get(uploadId);
+				if (chunks == null) {
+					chunks = new HashMap<Integer, byte[]>();
+					mUploads.put(uploadId, chunks);
+				}
+				chunks.put(index, chunk);
+			}
+			return new BufferedResponse(200, "{}");
+		}
+
+		int acceptedChunks(String uploadId) {
+			synchronized (mUploads) {
+				HashMap<Integer, byte[]> chunks = mUploads.get(uploadId);
+				return chunks != null ? chunks.size() : 0;
+			}
+		}
+
+		byte[] assemble(String uploadId) {
+			ByteArrayOutputStream file = new ByteArrayOutputStream();
+			synchronized (mUploads) {
+				HashMap<Integer, byte[]> chunks = mUploads.get(uploadId);
+				for (int i = 0; i < chunks.size(); i++) {
+					byte[] chunk = chunks.get(i);
+					file.write(chunk, 0, chunk.length);
+				}
+			}
+			return file.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.os.Bundle;
+
+import com.mobli.android.model.Media;
+
+/**
+ * Benchmarks of the whole request path of Mobli, from the parameters to the
+ * parsed response, over a LoopbackTransport: the cost of the SDK itself,
+ * without the network.
+ *
+ * The responses are feeds of 1, 20 or 500 media.
+ *
+ * See benchmark/README.md for how to run them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+
+	@Param({ "small", "medium", "large" })
+	public String size;
+
+	private HttpTransport mDefaultTransport;
+	private Mobli mMobli;
+	private Mobli mInterceptedMobli;
+	private Mobli.ResponseParser<List<Media>> mFeedParser;
+
+	@Setup
+	public void setUp() {
+		int mediaCount;
+		if (size.equals("small")) {
+			mediaCount = 1;
+		} else if (size.equals("medium")) {
+			mediaCount = 20;
+		} else {
+			mediaCount = 500;
+		}
+		StringBuilder sb = new StringBuilder("{\"payload\":[");
+		for (int i = 0; i < mediaCount; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"id\":").append(1000000 + i).append(",\"type\":\"photo\",\"created_date\":1337000000")
+					.append(",\"text\":\"Sunset at the beach #").append(i).append("\"")
+					.append(",\"owner\":{\"id\":").append(42 + i).append(",\"username\":\"user").append(i).append("\"}")
+					.append(",\"likes\":").append(i * 3).append(",\"tags\":[\"sunset\",\"beach\"]}");
+		}
+		sb.append("],\"next_page\":\"abc\"}");
+
+		LoopbackTransport loopback = new LoopbackTransport();
+		loopback.addFixture("GET", Mobli.API_BASE_URL + "channel/", new LoopbackTransport.Fixture(200, sb.toString()));
+		loopback.addFixture("POST", Mobli.API_BASE_URL + "media/", new LoopbackTransport.Fixture(200, "{\"success\":true}"));
+		mDefaultTransport = Util.getTransport();
+		Util.setTransport(loopback);
+
+		mMobli = new Mobli("client", "secret");
+		mMobli.setAccessToken("4f3c1a2b9d8e7f60a5b4c3d2e1f00112%7C8a7b6c5d");
+		mMobli.setAccessExpires(0);
+		mMobli.setRetryPolicy(RetryPolicy.none());
+		mFeedParser = JsonBinding.listParser("payload", Media.class);
+
+		mInterceptedMobli = new Mobli("client", "secret");
+		mInterceptedMobli.setSession(mMobli.getSession());
+		mInterceptedMobli.setRetryPolicy(RetryPolicy.none());
+		mInterceptedMobli.addInterceptor(new Interceptor() {
+			@Override
+			public TransportResponse intercept(Chain chain) throws IOException {
+				return chain.proceed(chain.getRequest());
+			}
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		Util.setTransport(mDefaultTransport);
+	}
+
+	private static Bundle feedParams() {
+		Bundle params = new Bundle();
+		params.putString("max_per_page", "50");
+		params.putString("page", "1");
+		return params;
+	}
+
+	@Benchmark
+	public String request() throws IOException {
+		return mMobli.request(Mobli.API_BASE_URL, "channel/1/media", feedParams(), "GET");
+	}
+
+	/**
+	 * request() through one more, pass-through interceptor: the cost of the
+	 * interceptor chain.
+	 */
+	@Benchmark
+	public String requestIntercepted() throws IOException {
+		return mInterceptedMobli.request(Mobli.API_BASE_URL, "channel/1/media", feedParams(), "GET");
+	}
+
+	@Benchmark
+	public List<Media> requestModels() throws IOException {
+		return mMobli.requestStream(Mobli.API_BASE_URL, "channel/1/media", feedParams(), "GET", mFeedParser);
+	}
+
+	@Benchmark
+	public String post() throws IOException {
+		Bundle params = new Bundle();
+		params.putString("text", "Nice shot!");
+		return mMobli.request(Mobli.API_BASE_URL, "media/1/comments", params, "POST");
+	}
+
+	/**
+	 * request() from several threads, for contention in the shared parts of
+	 * the request path (circuit breakers, counters, pools).
+	 */
+	@Benchmark
+	@Threads(4)
+	public String requestConcurrently() throws IOException {
+		return mMobli.request(Mobli.API_BASE_URL, "channel/1/media", feedParams(), "GET");
+	}
+}
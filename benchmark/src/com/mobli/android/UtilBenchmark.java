@@ -0,0 +1,208 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import android.os.Bundle;
+
+/**
+ * Benchmarks of the Util methods run on every request and every
+ * authorization redirect.
+ *
+ * Each benchmark runs with three input sizes:
+ * <ul>
+ * <li>small: a handful of parameters, a single-object response (~200 bytes)</li>
+ * <li>medium: a search-like parameter set, a page of 20 media (~12 KB)</li>
+ * <li>large: a long parameter set with non-ASCII values, a feed of 500 media
+ * (~300 KB)</li>
+ * </ul>
+ *
+ * See benchmark/README.md for how to run them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+	private static final String BOUNDARY = "3i2ndDfv2rTHiSisAbouNdArYfORhtTPEefj3q2f";
+
+	@Param({ "small", "medium", "large" })
+	public String size;
+
+	private Bundle mParams;
+	private String mQuery;
+	private String mRedirectUrl;
+	private String mResponse;
+	private byte[] mResponseBytes;
+
+	@Setup
+	public void setUp() {
+		int paramCount;
+		int mediaCount;
+		if (size.equals("small")) {
+			paramCount = 3;
+			mediaCount = 1;
+		} else if (size.equals("medium")) {
+			paramCount = 12;
+			mediaCount = 20;
+		} else {
+			paramCount = 60;
+			mediaCount = 500;
+		}
+
+		mParams = new Bundle();
+		mParams.putString("access_token", "4f3c1a2b9d8e7f60a5b4c3d2e1f00112%7C8a7b6c5d");
+		for (int i = 1; i < paramCount; i++) {
+			// a mix of plain, reserved and non-ASCII characters
+			mParams.putString("param_" + i, (i % 3 == 0) ? "caf\u00e9 & cr\u00e8me " + i : (i % 3 == 1) ? "value" + i : "a/b?c=d+" + i);
+		}
+		mQuery = Util.encodeUrl(mParams);
+		mRedirectUrl = "http://authorize#" + mQuery + "&expires_in=86400&user_id=123456";
+
+		StringBuilder sb = new StringBuilder();
+		if (mediaCount == 1) {
+			appendMedia(sb, 1);
+		} else {
+			sb.append("{\"payload\":[");
+			for (int i = 0; i < mediaCount; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				appendMedia(sb, i);
+			}
+			sb.append("],\"next_page\":\"abc\"}");
+		}
+		mResponse = sb.toString();
+		try {
+			mResponseBytes = mResponse.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void appendMedia(StringBuilder sb, int id) {
+		sb.append("{\"id\":").append(1000000 + id).append(",\"type\":\"photo\",\"created_date\":1337000000")
+				.append(",\"text\":\"Sunset at the beach \\u2600 #").append(id).append("\"")
+				.append(",\"owner\":{\"id\":").append(42 + id).append(",\"username\":\"user").append(id)
+				.append("\",\"profile_pic\":\"http://img.mobli.com/u/").append(id).append(".jpg\"}")
+				.append(",\"place\":{\"id\":7,\"name\":\"Tel Aviv\",\"lat\":32.0853,\"lon\":34.7818}")
+				.append(",\"likes\":").append(id * 3).append(",\"comments\":").append(id % 7)
+				.append(",\"channels\":[{\"id\":1,\"name\":\"sunsets\"},{\"id\":2,\"name\":\"beach\"}]}");
+	}
+
+	@Benchmark
+	public String encodeUrl() {
+		return Util.encodeUrl(mParams);
+	}
+
+	@Benchmark
+	public String encodePostBody() {
+		return Util.encodePostBody(mParams, BOUNDARY);
+	}
+
+	@Benchmark
+	public Bundle decodeUrl() {
+		return Util.decodeUrl(mQuery);
+	}
+
+	@Benchmark
+	public Bundle parseUrl() {
+		return Util.parseUrl(mRedirectUrl);
+	}
+
+	@Benchmark
+	public JSONObject parseJson() throws JSONException {
+		return Util.parseJson(mResponse);
+	}
+
+	/**
+	 * Scan of the top level only, the nested values left unparsed.
+	 */
+	@Benchmark
+	public JsonResponse parseJsonLazily() throws JSONException {
+		return Util.parseJsonLazily(mResponse);
+	}
+
+	/**
+	 * Lazy parse reading a single small member, e.g. the paging cursor.
+	 */
+	@Benchmark
+	public Object parseJsonLazilyProjected() throws JSONException {
+		return Util.parseJsonLazily(mResponse, "next_page").opt("next_page");
+	}
+
+	@Benchmark
+	public String read() throws IOException {
+		return Util.read(new ByteArrayInputStream(mResponseBytes));
+	}
+
+	/**
+	 * Baseline for parseJson: the same document walked by the streaming
+	 * parser, without materializing it.
+	 */
+	@Benchmark
+	public void pullParse(Blackhole blackhole) throws IOException {
+		JsonPullParser parser = new JsonPullParser(new StringReader(mResponse));
+		parser.setErrorDetection(true);
+		while (parser.peek() != JsonPullParser.Token.END_DOCUMENT) {
+			switch (parser.peek()) {
+			case BEGIN_OBJECT:
+				parser.beginObject();
+				break;
+			case END_OBJECT:
+				parser.endObject();
+				break;
+			case BEGIN_ARRAY:
+				parser.beginArray();
+				break;
+			case END_ARRAY:
+				parser.endArray();
+				break;
+			case NAME:
+				blackhole.consume(parser.nextName());
+				break;
+			case NULL:
+				parser.nextNull();
+				break;
+			default:
+				blackhole.consume(parser.nextString());
+				break;
+			}
+		}
+	}
+}
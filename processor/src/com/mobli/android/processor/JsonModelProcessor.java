@@ -0,0 +1,353 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a ModelReader for each class annotated with
+ * com.mobli.android.JsonModel: a &lt;Class&gt;JsonReader in the same package,
+ * reading the JsonField members of the class straight from a JsonPullParser.
+ * Each package of models also gets a JsonModelRegistry, registering their
+ * readers with JsonBinding, so that they are found without reflection.
+ *
+ * The processor only refers to the SDK annotations by name, so it does not
+ * need the SDK (nor android.jar) on its own classpath.
+ */
+@SupportedAnnotationTypes({ JsonModelProcessor.JSON_MODEL, JsonModelProcessor.JSON_FIELD })
+public class JsonModelProcessor extends AbstractProcessor {
+
+	static final String JSON_MODEL = "com.mobli.android.JsonModel";
+	static final String JSON_FIELD = "com.mobli.android.JsonField";
+	static final String READER_SUFFIX = "JsonReader";
+	static final String REGISTRY_NAME = "JsonModelRegistry";
+
+	private static final String INDENT = "\t";
+
+	/** models whose reader was generated, by package, not registered yet */
+	private final Map<String, List<String>> mModels = new LinkedHashMap<String, List<String>>();
+	/** packages whose registry was generated */
+	private final Set<String> mRegistries = new HashSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		TypeElement jsonModel = processingEnv.getElementUtils().getTypeElement(JSON_MODEL);
+		if (jsonModel == null) {
+			return false;
+		}
+		for (Element element : roundEnv.getElementsAnnotatedWith(jsonModel)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				error(element, "@JsonModel only applies to classes");
+				continue;
+			}
+			TypeElement type = (TypeElement) element;
+			if (validate(type)) {
+				try {
+					generate(type);
+				} catch (IOException e) {
+					error(type, "Could not write the reader: " + e.getMessage());
+				}
+			}
+		}
+		if (!roundEnv.processingOver()) {
+			generateRegistries();
+		}
+		TypeElement jsonField = processingEnv.getElementUtils().getTypeElement(JSON_FIELD);
+		if (jsonField != null) {
+			for (Element field : roundEnv.getElementsAnnotatedWith(jsonField)) {
+				Element owner = field.getEnclosingElement();
+				if (!(owner instanceof TypeElement) || !isJsonModel((TypeElement) owner)) {
+					warning(field, "@JsonField is ignored outside of @JsonModel classes");
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean validate(TypeElement type) {
+		if (type.getNestingKind() != NestingKind.TOP_LEVEL) {
+			error(type, "@JsonModel classes must be top-level classes");
+			return false;
+		}
+		if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(type, "@JsonModel classes must not be abstract");
+			return false;
+		}
+		for (Element member : type.getEnclosedElements()) {
+			if (member.getKind() == ElementKind.CONSTRUCTOR && ((ExecutableElement) member).getParameters().isEmpty()
+					&& !member.getModifiers().contains(Modifier.PRIVATE)) {
+				return true;
+			}
+		}
+		error(type, "@JsonModel classes need a non-private constructor without parameters");
+		return false;
+	}
+
+	private void generate(TypeElement type) throws IOException {
+		String packageName = ((PackageElement) type.getEnclosingElement()).getQualifiedName().toString();
+		String modelName = type.getSimpleName().toString();
+		String readerName = modelName + READER_SUFFIX;
+
+		StringBuilder body = new StringBuilder();
+		boolean valid = true;
+		for (Element member : type.getEnclosedElements()) {
+			if (member.getKind() != ElementKind.FIELD) {
+				continue;
+			}
+			String jsonName = getJsonName(member);
+			if (jsonName == null) {
+				continue;
+			}
+			Set<Modifier> modifiers = member.getModifiers();
+			if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.FINAL)) {
+				error(member, "@JsonField fields must not be private, static or final");
+				valid = false;
+				continue;
+			}
+			String read = readExpression(member.asType());
+			if (read == null) {
+				error(member, "Unsupported @JsonField type " + member.asType());
+				valid = false;
+				continue;
+			}
+			body.append(indent(3)).append("} else if (name.equals(\"").append(escape(jsonName)).append("\")) {\n");
+			body.append(indent(4)).append("model.").append(member.getSimpleName()).append(" = ").append(read).append(";\n");
+		}
+		if (!valid) {
+			return;
+		}
+		List<String> models = mModels.get(packageName);
+		if (models == null) {
+			models = new ArrayList<String>();
+			mModels.put(packageName, models);
+		}
+		models.add(modelName);
+
+		Writer writer = processingEnv.getFiler().createSourceFile(packageName + "." + readerName, type).openWriter();
+		try {
+			writer.write("// Generated by " + JsonModelProcessor.class.getName() + ": do not edit.\n\n");
+			if (packageName.length() > 0) {
+				writer.write("package " + packageName + ";\n\n");
+			}
+			writer.write("import java.io.IOException;\n\n");
+			writer.write("import com.mobli.android.JsonBinding;\n");
+			writer.write("import com.mobli.android.JsonPullParser;\n");
+			writer.write("import com.mobli.android.ModelReader;\n\n");
+			writer.write("/**\n * Reads " + modelName + " objects from a JSON stream.\n */\n");
+			writer.write("public final class " + readerName + " implements ModelReader<" + modelName + "> {\n\n");
+			writer.write(indent(1) + "public static final " + readerName + " INSTANCE = new " + readerName + "();\n\n");
+			writer.write(indent(1) + "@Override\n");
+			writer.write(indent(1) + "public " + modelName + " read(JsonPullParser parser) throws IOException {\n");
+			writer.write(indent(2) + "if (parser.peek() == JsonPullParser.Token.NULL) {\n");
+			writer.write(indent(3) + "parser.nextNull();\n");
+			writer.write(indent(3) + "return null;\n");
+			writer.write(indent(2) + "}\n");
+			writer.write(indent(2) + modelName + " model = new " + modelName + "();\n");
+			writer.write(indent(2) + "parser.beginObject();\n");
+			writer.write(indent(2) + "while (parser.hasNext()) {\n");
+			writer.write(indent(3) + "String name = parser.nextName();\n");
+			writer.write(indent(3) + "if (parser.peek() == JsonPullParser.Token.NULL) {\n");
+			writer.write(indent(4) + "parser.nextNull();\n");
+			writer.write(body.toString());
+			writer.write(indent(3) + "} else {\n");
+			writer.write(indent(4) + "parser.skipValue();\n");
+			writer.write(indent(3) + "}\n");
+			writer.write(indent(2) + "}\n");
+			writer.write(indent(2) + "parser.endObject();\n");
+			writer.write(indent(2) + "return model;\n");
+			writer.write(indent(1) + "}\n");
+			writer.write("}\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Write the registry of each package whose models were generated in this
+	 * round. Models generated in a later round of a package already having
+	 * its registry are left out of it, and found by name instead.
+	 */
+	private void generateRegistries() {
+		for (Map.Entry<String, List<String>> entry : mModels.entrySet()) {
+			String packageName = entry.getKey();
+			String registryName = packageName.length() > 0 ? packageName + "." + REGISTRY_NAME : REGISTRY_NAME;
+			if (!mRegistries.add(packageName)) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+						"Models generated in a later round are not in " + registryName + ": " + entry.getValue());
+				continue;
+			}
+			try {
+				Writer writer = processingEnv.getFiler().createSourceFile(registryName).openWriter();
+				try {
+					writer.write("// Generated by " + JsonModelProcessor.class.getName() + ": do not edit.\n\n");
+					if (packageName.length() > 0) {
+						writer.write("package " + packageName + ";\n\n");
+					}
+					writer.write("import com.mobli.android.JsonBinding;\n\n");
+					writer.write("/**\n * Registers the readers of the JsonModel classes of this package with JsonBinding.\n */\n");
+					writer.write("public final class " + REGISTRY_NAME + " {\n\n");
+					writer.write(indent(1) + "private " + REGISTRY_NAME + "() {\n");
+					writer.write(indent(1) + "}\n\n");
+					writer.write(indent(1) + "public static void register() {\n");
+					for (String model : entry.getValue()) {
+						writer.write(indent(2) + "JsonBinding.register(" + model + ".class, " + model + READER_SUFFIX + ".INSTANCE);\n");
+					}
+					writer.write(indent(1) + "}\n");
+					writer.write("}\n");
+				} finally {
+					writer.close();
+				}
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+						"Could not write " + registryName + ": " + e.getMessage());
+			}
+		}
+		mModels.clear();
+	}
+
+	/**
+	 * @return the Java expression reading a value of the given type, or null
+	 *         if the type is not supported
+	 */
+	private String readExpression(TypeMirror type) {
+		switch (type.getKind()) {
+		case INT:
+			return "parser.nextInt()";
+		case LONG:
+			return "parser.nextLong()";
+		case DOUBLE:
+			return "parser.nextDouble()";
+		case BOOLEAN:
+			return "parser.nextBoolean()";
+		case DECLARED:
+			break;
+		default:
+			return null;
+		}
+		DeclaredType declared = (DeclaredType) type;
+		TypeElement element = (TypeElement) declared.asElement();
+		String name = element.getQualifiedName().toString();
+		if (name.equals("java.lang.String")) {
+			return "parser.nextString()";
+		} else if (name.equals("java.lang.Integer")) {
+			return "Integer.valueOf(parser.nextInt())";
+		} else if (name.equals("java.lang.Long")) {
+			return "Long.valueOf(parser.nextLong())";
+		} else if (name.equals("java.lang.Double")) {
+			return "Double.valueOf(parser.nextDouble())";
+		} else if (name.equals("java.lang.Boolean")) {
+			return "Boolean.valueOf(parser.nextBoolean())";
+		} else if (isJsonModel(element)) {
+			return name + READER_SUFFIX + ".INSTANCE.read(parser)";
+		} else if (name.equals("java.util.List")) {
+			List<? extends TypeMirror> arguments = declared.getTypeArguments();
+			if (arguments.size() != 1 || arguments.get(0).getKind() != TypeKind.DECLARED) {
+				return null;
+			}
+			TypeElement item = (TypeElement) ((DeclaredType) arguments.get(0)).asElement();
+			String itemName = item.getQualifiedName().toString();
+			if (itemName.equals("java.lang.String")) {
+				return "JsonBinding.readStringList(parser)";
+			} else if (itemName.equals("java.lang.Long")) {
+				return "JsonBinding.readLongList(parser)";
+			} else if (isJsonModel(item)) {
+				return "JsonBinding.readList(parser, " + itemName + READER_SUFFIX + ".INSTANCE)";
+			}
+		}
+		return null;
+	}
+
+	private boolean isJsonModel(TypeElement element) {
+		for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+			if (getName(annotation).equals(JSON_MODEL)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the JSON member name of a field annotated with JsonField, or
+	 *         null if the field is not annotated
+	 */
+	private String getJsonName(Element field) {
+		for (AnnotationMirror annotation : field.getAnnotationMirrors()) {
+			if (getName(annotation).equals(JSON_FIELD)) {
+				for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues()
+						.entrySet()) {
+					if (entry.getKey().getSimpleName().contentEquals("value")) {
+						return (String) entry.getValue().getValue();
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String getName(AnnotationMirror annotation) {
+		return ((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().toString();
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	private static String indent(int depth) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < depth; i++) {
+			sb.append(INDENT);
+		}
+		return sb.toString();
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	private void warning(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, message, element);
+	}
+}
@@ -27,6 +27,10 @@ package com.mobli.android;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.json.JSONObject;
 
@@ -39,12 +43,11 @@ import android.os.Bundle;
  * UI thread, for instance. The request response is returned to the caller via a
  * callback interface, which the developer must implement.
  * 
- * This sample implementation simply spawns a new thread for each request, and
- * makes the API call immediately. This may work in many applications, but more
- * sophisticated users may re-implement this behavior using a thread pool, a
- * network thread, a request queue, or other mechanism. Advanced functionality
- * could be built, such as rate-limiting of requests, as per a specific
- * application's needs.
+ * Requests are executed by a bounded thread pool (see RequestExecutor) which is
+ * shared by all runners by default. Interactive requests are served before
+ * background ones, and the number of concurrent and pending requests is
+ * capped. Applications with specific needs may supply their own Executor, e.g.
+ * a single network thread or a rate-limiting queue.
  * 
  * @see RequestListener The callback interface.
  * 
@@ -54,9 +57,48 @@ import android.os.Bundle;
 public class AsyncMobliRunner {
 
 	Mobli mobli;
+	private final Executor mExecutor;
+	private volatile boolean mCoalescingEnabled = true;
 
+	/**
+	 * Create a runner which executes requests on the shared default
+	 * RequestExecutor.
+	 */
 	public AsyncMobliRunner(Mobli mobli) {
+		this(mobli, RequestExecutor.getDefault());
+	}
+
+	/**
+	 * Create a runner which executes requests on the given executor. Priority
+	 * lanes are honored only if the executor is a RequestExecutor.
+	 * 
+	 * @param executor
+	 *            Executor running the blocking API calls.
+	 */
+	public AsyncMobliRunner(Mobli mobli, Executor executor) {
+		if (executor == null) {
+			throw new IllegalArgumentException("executor must not be null");
+		}
 		this.mobli = mobli;
+		mExecutor = executor;
+	}
+
+	public Executor getExecutor() {
+		return mExecutor;
+	}
+
+	/**
+	 * Enable or disable coalescing of identical GET requests (enabled by
+	 * default). When enabled, a GET request for the same base URL, path and
+	 * parameters as a request of the same priority already in flight shares
+	 * that request's response instead of opening a connection of its own.
+	 */
+	public void setCoalescingEnabled(boolean enabled) {
+		mCoalescingEnabled = enabled;
+	}
+
+	public boolean isCoalescingEnabled() {
+		return mCoalescingEnabled;
 	}
 
 	/**
@@ -80,12 +122,12 @@ public class AsyncMobliRunner {
 	 *            returns to the callback. This has no effect on the request
 	 *            itself.
 	 */
-	public void request(String relativePath, RequestListener listener, final Object state) {
-		request(relativePath, new Bundle(), "GET", listener, state);
+	public RequestHandle request(String relativePath, RequestListener listener, final Object state) {
+		return request(relativePath, new Bundle(), "GET", listener, state);
 	}
 
-	public void request(String relativePath, RequestListener listener) {
-		request(relativePath, new Bundle(), "GET", listener, /* state */null);
+	public RequestHandle request(String relativePath, RequestListener listener) {
+		return request(relativePath, new Bundle(), "GET", listener, /* state */null);
 	}
 
 	/**
@@ -117,12 +159,12 @@ public class AsyncMobliRunner {
 	 *            returns to the callback. This has no effect on the request
 	 *            itself.
 	 */
-	public void request(String relativePath, Bundle parameters, RequestListener listener, final Object state) {
-		request(relativePath, parameters, "GET", listener, state);
+	public RequestHandle request(String relativePath, Bundle parameters, RequestListener listener, final Object state) {
+		return request(relativePath, parameters, "GET", listener, state);
 	}
 
-	public void request(String relativePath, Bundle parameters, RequestListener listener) {
-		request(relativePath, parameters, "GET", listener, /* state */null);
+	public RequestHandle request(String relativePath, Bundle parameters, RequestListener listener) {
+		return request(relativePath, parameters, "GET", listener, /* state */null);
 	}
 
 	/**
@@ -160,23 +202,178 @@ public class AsyncMobliRunner {
 	 *            returns to the callback. This has no effect on the request
 	 *            itself.
 	 */
-	public void request(final String baseUrl, final String relativePath, final Bundle parameters, final String httpMethod,
+	public RequestHandle request(final String baseUrl, final String relativePath, final Bundle parameters, final String httpMethod,
+			final RequestListener listener, final Object state) {
+		return request(baseUrl, relativePath, parameters, httpMethod, new RequestOptions(), listener, state);
+	}
+
+	/**
+	 * Make a request to the Mobli API in the given priority lane. Background
+	 * requests (prefetching, analytics, etc.) only run when no interactive
+	 * request is waiting.
+	 * 
+	 * See request(String, String, Bundle, String, RequestListener, Object)
+	 * above for the other @params.
+	 * 
+	 * @param priority
+	 *            Priority lane of the request. Ignored if this runner was not
+	 *            given a RequestExecutor.
+	 */
+	public RequestHandle request(final String baseUrl, final String relativePath, final Bundle parameters, final String httpMethod,
+			RequestExecutor.Priority priority, final RequestListener listener, final Object state) {
+		return request(baseUrl, relativePath, parameters, httpMethod, new RequestOptions().setPriority(priority), listener, state);
+	}
+
+	/**
+	 * Make a request to the Mobli API with the given priority lane and
+	 * deadlines.
+	 * 
+	 * If the request is cancelled through the returned handle or exceeds one
+	 * of its timeouts, a CancellableRequestListener is notified through
+	 * onCancel or onTimeout respectively. A plain RequestListener is not
+	 * notified of cancellation, and receives timeouts through onIOException.
+	 * 
+	 * Unless coalescing is disabled, a GET request identical to one of the
+	 * same priority already in flight joins that request instead of opening
+	 * another connection.
+	 * 
+	 * See request(String, String, Bundle, String, RequestListener, Object)
+	 * above for the other @params.
+	 * 
+	 * @param options
+	 *            Priority and timeouts of the request.
+	 * @return a handle which may be used to cancel the request
+	 */
+	public RequestHandle request(final String baseUrl, final String relativePath, final Bundle parameters, final String httpMethod,
+			RequestOptions options, final RequestListener listener, final Object state) {
+		if (mCoalescingEnabled && "GET".equals(httpMethod)) {
+			return mobli.getRequestCoalescer().request(this, baseUrl, relativePath, parameters, options, listener, state);
+		}
+		return execute(baseUrl, relativePath, parameters, httpMethod, options, Util.nextCallId(), listener, state);
+	}
+
+	/**
+	 * Upload files to the Mobli API with a multipart POST request. The file
+	 * contents are streamed to the connection rather than loaded in memory,
+	 * so this is suitable for large photos and videos.
+	 * 
+	 * Note that this method is asynchronous and the callbacks will be invoked
+	 * in a background thread; operations that affect the UI will need to be
+	 * posted to the UI thread or an appropriate handler.
+	 * 
+	 * See request(String, String, Bundle, String, RequestOptions,
+	 * RequestListener, Object) above for the other @params.
+	 * 
+	 * @param uploads
+	 *            File parts of the request, by name.
+	 * @param progress
+	 *            Callback interface notified as the upload progresses, or null.
+	 * @return a handle which may be used to cancel the upload
+	 */
+	public RequestHandle upload(final String baseUrl, final String relativePath, final Bundle parameters,
+			final Map<String, UploadSource> uploads, final UploadSource.ProgressListener progress, RequestOptions options,
 			final RequestListener listener, final Object state) {
-		new Thread() {
+		return execute(options, Util.nextCallId(), new Call() {
+			@Override
+			public String execute(RequestHandle handle) throws IOException {
+				return mobli.upload(baseUrl, relativePath, parameters, uploads, progress, handle);
+			}
+		}, listener, state);
+	}
+
+	/**
+	 * Submit a request to the executor, bypassing request coalescing.
+	 *
+	 * @param callId
+	 *            - id of the request in the events of the
+	 *            RequestEventListener
+	 */
+	RequestHandle execute(final String baseUrl, final String relativePath, final Bundle parameters, final String httpMethod,
+			RequestOptions options, long callId, final RequestListener listener, final Object state) {
+		return execute(options, callId, new Call() {
+			@Override
+			public String execute(RequestHandle handle) throws IOException {
+				return mobli.request(baseUrl, relativePath, parameters, httpMethod, handle);
+			}
+		}, listener, state);
+	}
+
+	/**
+	 * Submit a blocking API call to the executor and dispatch its outcome to
+	 * the listener.
+	 */
+	RequestHandle execute(RequestOptions options, final long callId, final Call call, final RequestListener listener,
+			final Object state) {
+		final RequestHandle handle = new RequestHandle(options, callId);
+		handle.setAbortCallback(new Runnable() {
 			@Override
 			public void run() {
+				if (handle.finishQueued()) {
+					Util.event(callId, RequestEventListener.Event.DISPATCH_START);
+					dispatchAbort(handle, listener, state);
+					Util.event(callId, RequestEventListener.Event.DISPATCH_END);
+				}
+			}
+		});
+		final long enqueued = System.nanoTime();
+		Runnable command = new Runnable() {
+			@Override
+			public void run() {
+				if (!handle.begin()) {
+					return;
+				}
+				RequestMetrics.getDefault().recordQueueWait(System.nanoTime() - enqueued);
+				Util.event(callId, RequestEventListener.Event.DEQUEUED);
+				if (handle.isCancelled() || handle.isTimedOut()) {
+					handle.finish();
+					Util.event(callId, RequestEventListener.Event.DISPATCH_START);
+					dispatchAbort(handle, listener, state);
+					Util.event(callId, RequestEventListener.Event.DISPATCH_END);
+					return;
+				}
+				String resp = null;
+				IOException error = null;
 				try {
-					String resp = mobli.request(baseUrl, relativePath, parameters, httpMethod);
-					listener.onComplete(resp, state);
-				} catch (FileNotFoundException e) {
-					listener.onFileNotFoundException(e, state);
-				} catch (MalformedURLException e) {
-					listener.onMalformedURLException(e, state);
+					resp = call.execute(handle);
 				} catch (IOException e) {
-					listener.onIOException(e, state);
+					error = e;
 				}
+				handle.finish();
+
+				Util.event(callId, RequestEventListener.Event.DISPATCH_START);
+				try {
+					if (handle.isCancelled() || handle.isTimedOut()) {
+						dispatchAbort(handle, listener, state);
+					} else if (error instanceof SocketTimeoutException) {
+						dispatchTimeout(listener, (SocketTimeoutException) error, state);
+					} else if (error instanceof FileNotFoundException) {
+						listener.onFileNotFoundException((FileNotFoundException) error, state);
+					} else if (error instanceof MalformedURLException) {
+						listener.onMalformedURLException((MalformedURLException) error, state);
+					} else if (error != null) {
+						listener.onIOException(error, state);
+					} else {
+						listener.onComplete(resp, state);
+					}
+				} finally {
+					Util.event(callId, RequestEventListener.Event.DISPATCH_END);
+				}
+			}
+		};
+		handle.startDeadline();
+		Util.event(callId, RequestEventListener.Event.ENQUEUED);
+		try {
+			if (mExecutor instanceof RequestExecutor) {
+				((RequestExecutor) mExecutor).execute(command, handle.getOptions().getPriority());
+			} else {
+				mExecutor.execute(command);
 			}
-		}.start();
+		} catch (RejectedExecutionException e) {
+			handle.begin();
+			handle.finish();
+			listener.onIOException(new IOException("Request rejected: " + e.getMessage()), state);
+		}
+		return handle;
 	}
 
 	/**
@@ -213,14 +410,44 @@ public class AsyncMobliRunner {
 	 *            returns to the callback. This has no effect on the request
 	 *            itself.
 	 */
-	public void request(final String relativePath, final Bundle parameters, final String httpMethod, final RequestListener listener,
+	public RequestHandle request(final String relativePath, final Bundle parameters, final String httpMethod, final RequestListener listener,
 			final Object state) {
-		request(Mobli.API_BASE_URL, relativePath, parameters, httpMethod, listener, state);
+		return request(Mobli.API_BASE_URL, relativePath, parameters, httpMethod, listener, state);
+	}
+
+	/**
+	 * Notify the listener of a request which was cancelled or exceeded its
+	 * total timeout.
+	 */
+	static void dispatchAbort(RequestHandle handle, RequestListener listener, Object state) {
+		if (handle.isCancelled()) {
+			dispatchCancel(listener, state);
+		} else {
+			dispatchTimeout(listener, new SocketTimeoutException("Request exceeded total timeout of "
+					+ handle.getOptions().getTotalTimeout() + " ms"), state);
+		}
+	}
+
+	static void dispatchCancel(RequestListener listener, Object state) {
+		if (listener instanceof CancellableRequestListener) {
+			((CancellableRequestListener) listener).onCancel(state);
+		}
+	}
+
+	static void dispatchTimeout(RequestListener listener, SocketTimeoutException e, Object state) {
+		if (listener instanceof CancellableRequestListener) {
+			((CancellableRequestListener) listener).onTimeout(e, state);
+		} else {
+			listener.onIOException(e, state);
+		}
 	}
 
 	/**
 	 * Obtain public (shared) access_token asynchronously.
 	 * 
+	 * A TokenManager set with Mobli.setTokenManager obtains and refreshes it
+	 * automatically instead.
+	 * 
 	 * @param listener
 	 *            Callback interface to notify the application when the request
 	 *            has completed.
@@ -229,15 +456,21 @@ public class AsyncMobliRunner {
 	 *            returns to the callback. This has no effect on the request
 	 *            itself.
 	 */
-	public void obtainPublicToken(final RequestListener originalListener, final Object state) {
+	public RequestHandle obtainPublicToken(final RequestListener originalListener, final Object state) {
 		RequestListener listener;
-		Bundle params = new Bundle();
-		params.putString("client_id", mobli.getClientId());
-		params.putString("client_secret", mobli.getClientSecret());
-		params.putString("grant_type", "client_credentials");
-		params.putString("scope", "shared");
+		Bundle params = TokenManager.newTokenParams(mobli);
+
+		listener = new CancellableRequestListener() {
 
-		listener = new RequestListener() {
+			@Override
+			public void onCancel(Object state) {
+				dispatchCancel(originalListener, state);
+			}
+
+			@Override
+			public void onTimeout(SocketTimeoutException e, Object state) {
+				dispatchTimeout(originalListener, e, state);
+			}
 
 			@Override
 			public void onMobliError(MobliError e, Object state) {
@@ -264,10 +497,8 @@ public class AsyncMobliRunner {
 
 				//store public token
 				try {
-					String publicAccessToken;
 					JSONObject json = new JSONObject(response);
-					publicAccessToken = json.getString(Mobli.TOKEN);
-					mobli.setAccessToken(publicAccessToken);
+					mobli.setAccessToken(json.getString(Mobli.TOKEN), json.optString(Mobli.EXPIRES, null));
 				} catch (Exception e) {
 					// do nothing
 				}
@@ -276,7 +507,7 @@ public class AsyncMobliRunner {
 			}
 		};
 
-		request(Mobli.AUTHORIZE_BASE_URL, "/shared", params, "POST", listener, state);
+		return request(Mobli.AUTHORIZE_BASE_URL, "/shared", params, "POST", listener, state);
 	}
 
 	/**
@@ -327,4 +558,39 @@ public class AsyncMobliRunner {
 
 	}
 
+	/**
+	 * Callback interface for API requests which also wishes to be notified of
+	 * cancellation and timeouts.
+	 */
+	public static interface CancellableRequestListener extends RequestListener {
+
+		/**
+		 * Called instead of any other callback when a request is cancelled
+		 * through its RequestHandle.
+		 * 
+		 * Executed by a background thread: do not update the UI in this method.
+		 */
+		public void onCancel(Object state);
+
+		/**
+		 * Called when a request exceeds its connect, read or total timeout.
+		 * 
+		 * Executed by a background thread: do not update the UI in this method.
+		 */
+		public void onTimeout(SocketTimeoutException e, Object state);
+
+	}
+
+	/**
+	 * A blocking API call executed by a worker thread.
+	 */
+	static interface Call {
+
+		/**
+		 * @return the response body
+		 */
+		public String execute(RequestHandle handle) throws IOException;
+
+	}
+
 }
@@ -0,0 +1,76 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * A response held in memory, e.g. returned by an Interceptor answering a
+ * request from its own cache without reaching the network.
+ */
+public class BufferedResponse implements TransportResponse {
+
+	private final int mStatusCode;
+	private final byte[] mBody;
+	private final HashMap<String, String> mHeaders = new HashMap<String, String>();
+
+	/**
+	 * @param statusCode
+	 *            - HTTP status code, e.g. 200
+	 * @param body
+	 *            - response body, encoded in UTF-8
+	 */
+	public BufferedResponse(int statusCode, String body) {
+		this(statusCode, Util.bytes(body));
+	}
+
+	public BufferedResponse(int statusCode, byte[] body) {
+		mStatusCode = statusCode;
+		mBody = body;
+	}
+
+	/**
+	 * Set a response header, e.g. ETag.
+	 */
+	public BufferedResponse setHeader(String name, String value) {
+		mHeaders.put(name.toLowerCase(), value);
+		return this;
+	}
+
+	@Override
+	public int getStatusCode() {
+		return mStatusCode;
+	}
+
+	@Override
+	public String getHeader(String name) {
+		return mHeaders.get(name.toLowerCase());
+	}
+
+	/**
+	 * @return a new stream on the body at each call
+	 */
+	@Override
+	public InputStream getBody() {
+		return new ByteArrayInputStream(mBody);
+	}
+
+	@Override
+	public void close() {
+	}
+}
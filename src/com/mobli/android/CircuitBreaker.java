@@ -0,0 +1,198 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.util.HashMap;
+
+/**
+ * Circuit breaker guarding the requests to one host, e.g. api.mobli.com or
+ * oauth.mobli.com.
+ *
+ * After a number of consecutive failures (network errors and 5xx responses)
+ * the breaker opens: requests to the host fail immediately with a
+ * CircuitOpenException instead of adding load to a struggling server. Once
+ * the open duration has elapsed the breaker turns half-open and lets a
+ * limited number of probe requests through; a successful probe closes the
+ * breaker, a failed one opens it again.
+ *
+ * Breakers are shared by all the Mobli objects of the process, since they
+ * track the health of the host rather than of a session.
+ */
+public class CircuitBreaker {
+
+	public static enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+	public static final int DEFAULT_HALF_OPEN_PROBES = 1;
+
+	private static final HashMap<String, CircuitBreaker> sBreakers = new HashMap<String, CircuitBreaker>();
+
+	private final String mHost;
+	private int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+	private long mOpenDuration = DEFAULT_OPEN_DURATION;
+	private int mHalfOpenProbes = DEFAULT_HALF_OPEN_PROBES;
+
+	private State mState = State.CLOSED;
+	private int mFailures;
+	private long mOpenedAt;
+	private int mProbes;
+
+	private CircuitBreaker(String host) {
+		mHost = host;
+	}
+
+	/**
+	 * @return the breaker of the given host
+	 */
+	public static CircuitBreaker forHost(String host) {
+		synchronized (sBreakers) {
+			CircuitBreaker breaker = sBreakers.get(host);
+			if (breaker == null) {
+				breaker = new CircuitBreaker(host);
+				sBreakers.put(host, breaker);
+			}
+			return breaker;
+		}
+	}
+
+	public String getHost() {
+		return mHost;
+	}
+
+	/**
+	 * @param threshold
+	 *            - number of consecutive failures opening the breaker
+	 */
+	public synchronized CircuitBreaker setFailureThreshold(int threshold) {
+		if (threshold < 1) {
+			throw new IllegalArgumentException("threshold must be at least 1");
+		}
+		mFailureThreshold = threshold;
+		return this;
+	}
+
+	/**
+	 * @param duration
+	 *            - time in milliseconds the breaker stays open before letting
+	 *            probe requests through
+	 */
+	public synchronized CircuitBreaker setOpenDuration(long duration) {
+		if (duration < 0) {
+			throw new IllegalArgumentException("duration must not be negative");
+		}
+		mOpenDuration = duration;
+		return this;
+	}
+
+	/**
+	 * @param probes
+	 *            - number of concurrent probe requests allowed while half-open
+	 */
+	public synchronized CircuitBreaker setHalfOpenProbes(int probes) {
+		if (probes < 1) {
+			throw new IllegalArgumentException("probes must be at least 1");
+		}
+		mHalfOpenProbes = probes;
+		return this;
+	}
+
+	public synchronized State getState() {
+		if (mState == State.OPEN && getRemainingOpenTime(System.currentTimeMillis()) == 0) {
+			return State.HALF_OPEN;
+		}
+		return mState;
+	}
+
+	/**
+	 * Close the breaker, e.g. when the network connectivity changed.
+	 */
+	public synchronized void reset() {
+		mState = State.CLOSED;
+		mFailures = 0;
+		mProbes = 0;
+	}
+
+	/**
+	 * Ask for permission to make a request. Every granted permission must be
+	 * followed by a call to onSuccess, onFailure or onAbandon.
+	 *
+	 * @return false if the request must fail fast
+	 */
+	synchronized boolean tryAcquire(long now) {
+		if (mState == State.CLOSED) {
+			return true;
+		}
+		if (mState == State.OPEN) {
+			if (getRemainingOpenTime(now) > 0) {
+				return false;
+			}
+			mState = State.HALF_OPEN;
+			mProbes = 0;
+		}
+		if (mProbes < mHalfOpenProbes) {
+			mProbes++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return time in milliseconds until the breaker lets a probe through
+	 */
+	synchronized long getRemainingOpenTime(long now) {
+		if (mState != State.OPEN) {
+			return 0;
+		}
+		return Math.max(0, mOpenedAt + mOpenDuration - now);
+	}
+
+	synchronized void onSuccess() {
+		mFailures = 0;
+		if (mState == State.HALF_OPEN) {
+			Util.logd("Mobli-CircuitBreaker", mHost + " recovered");
+			mState = State.CLOSED;
+			mProbes = 0;
+		}
+	}
+
+	synchronized void onFailure(long now) {
+		if (mState == State.HALF_OPEN) {
+			open(now);
+		} else if (mState == State.CLOSED && ++mFailures >= mFailureThreshold) {
+			open(now);
+		}
+	}
+
+	/**
+	 * The request was cancelled before telling anything about the host.
+	 */
+	synchronized void onAbandon() {
+		if (mState == State.HALF_OPEN && mProbes > 0) {
+			mProbes--;
+		}
+	}
+
+	private void open(long now) {
+		Util.logd("Mobli-CircuitBreaker", mHost + " unhealthy, failing fast for " + mOpenDuration + " ms");
+		mState = State.OPEN;
+		mOpenedAt = now;
+		mFailures = 0;
+		mProbes = 0;
+	}
+}
@@ -0,0 +1,50 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of making a request while the circuit breaker of its host is
+ * open, i.e. while the host is considered unhealthy.
+ *
+ * @see CircuitBreaker
+ */
+public class CircuitOpenException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String mHost;
+	private final long mRetryDelay;
+
+	public CircuitOpenException(String host, long retryDelay) {
+		super("Circuit open for " + host + ", retry in " + retryDelay + " ms");
+		mHost = host;
+		mRetryDelay = retryDelay;
+	}
+
+	public String getHost() {
+		return mHost;
+	}
+
+	/**
+	 * @return time in milliseconds until the breaker lets a probe request
+	 *         through
+	 */
+	public long getRetryDelay() {
+		return mRetryDelay;
+	}
+}
@@ -0,0 +1,276 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfer compression of the requests made by the SDK, and the byte counts
+ * of what went over the wire.
+ *
+ * Responses are requested with "Accept-Encoding: gzip, deflate" and
+ * decompressed as they stream in, whether the body is the response or the
+ * error stream. JSON responses typically compress 5 to 10 times. (Android's
+ * HttpURLConnection may negotiate gzip on its own, but it then hides the
+ * compressed size; asking explicitly keeps the wire byte counts accurate.)
+ *
+ * Request bodies are sent uncompressed unless a request compression
+ * threshold is set, since the server has to accept "Content-Encoding: gzip"
+ * request bodies. File parts are never compressed: photos and videos are
+ * compressed already.
+ *
+ * The settings and counters are shared by all the Mobli objects of the
+ * process, like the CircuitBreakers of the hosts.
+ */
+public final class Compression {
+
+	/** Request compression disabled */
+	public static final int NEVER = -1;
+
+	private static volatile boolean sResponseCompression = true;
+	private static volatile int sRequestThreshold = NEVER;
+
+	private static final AtomicLong sBodyBytesSent = new AtomicLong();
+	private static final AtomicLong sWireBytesSent = new AtomicLong();
+	private static final AtomicLong sWireBytesReceived = new AtomicLong();
+	private static final AtomicLong sDecodedBytesReceived = new AtomicLong();
+
+	private Compression() {
+	}
+
+	/**
+	 * Enable or disable the negotiation of compressed responses. Enabled by
+	 * default.
+	 */
+	public static void setResponseCompressionEnabled(boolean enabled) {
+		sResponseCompression = enabled;
+	}
+
+	public static boolean isResponseCompressionEnabled() {
+		return sResponseCompression;
+	}
+
+	/**
+	 * Gzip the request bodies without file parts of at least the given size.
+	 * Only enable this for servers accepting gzip request bodies.
+	 *
+	 * @param bytes
+	 *            - minimum body size to compress, or NEVER (the default)
+	 */
+	public static void setRequestCompressionThreshold(int bytes) {
+		if (bytes < 0 && bytes != NEVER) {
+			throw new IllegalArgumentException("threshold must be positive or NEVER");
+		}
+		sRequestThreshold = bytes;
+	}
+
+	public static int getRequestCompressionThreshold() {
+		return sRequestThreshold;
+	}
+
+	/**
+	 * @return the number of bytes of request bodies written, before
+	 *         compression
+	 */
+	public static long getBodyBytesSent() {
+		return sBodyBytesSent.get();
+	}
+
+	/**
+	 * @return the number of bytes of request bodies sent over the wire, after
+	 *         compression
+	 */
+	public static long getWireBytesSent() {
+		return sWireBytesSent.get();
+	}
+
+	/**
+	 * @return the number of bytes of response bodies received over the wire,
+	 *         before decompression
+	 */
+	public static long getWireBytesReceived() {
+		return sWireBytesReceived.get();
+	}
+
+	/**
+	 * @return the number of bytes of response bodies read, after
+	 *         decompression
+	 */
+	public static long getDecodedBytesReceived() {
+		return sDecodedBytesReceived.get();
+	}
+
+	/**
+	 * Reset the byte counters.
+	 */
+	public static void resetStats() {
+		sBodyBytesSent.set(0);
+		sWireBytesSent.set(0);
+		sWireBytesReceived.set(0);
+		sDecodedBytesReceived.set(0);
+	}
+
+	/**
+	 * @return the value of the Accept-Encoding request header, or null if
+	 *         response compression is disabled
+	 */
+	static String getAcceptEncoding() {
+		return sResponseCompression ? "gzip, deflate" : null;
+	}
+
+	/**
+	 * @return whether a request body of the given length should be gzipped
+	 */
+	static boolean shouldCompress(long contentLength) {
+		int threshold = sRequestThreshold;
+		return threshold != NEVER && contentLength >= threshold;
+	}
+
+	/**
+	 * Wrap a response body to decompress it according to its
+	 * Content-Encoding, counting both the wire and the decoded bytes.
+	 *
+	 * @param encoding
+	 *            - Content-Encoding of the response, or null
+	 * @param exchange
+	 *            - the request, whose received wire bytes are counted too
+	 */
+	static InputStream decode(InputStream in, String encoding, Util.Exchange exchange) throws IOException {
+		InputStream wire = new CountingInputStream(in, sWireBytesReceived, exchange);
+		if (encoding == null) {
+			encoding = "identity";
+		} else {
+			encoding = encoding.trim();
+		}
+		if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+			return new CountingInputStream(new InflatingInputStream(wire, true), sDecodedBytesReceived, null);
+		} else if (encoding.equalsIgnoreCase("deflate")) {
+			return new CountingInputStream(new InflatingInputStream(wire, false), sDecodedBytesReceived, null);
+		} else if (encoding.equalsIgnoreCase("identity")) {
+			return new CountingInputStream(wire, sDecodedBytesReceived, null);
+		}
+		wire.close();
+		throw new IOException("Unsupported Content-Encoding: " + encoding);
+	}
+
+	/**
+	 * Wrap the output stream of a connection to count the request body bytes
+	 * sent over the wire, in total and for the given request.
+	 */
+	static OutputStream countWire(OutputStream out, Util.Exchange exchange) {
+		return new CountingOutputStream(out, sWireBytesSent, exchange);
+	}
+
+	/**
+	 * Wrap a request body stream to count its bytes before compression.
+	 */
+	static OutputStream countBody(OutputStream out) {
+		return new CountingOutputStream(out, sBodyBytesSent, null);
+	}
+
+	/**
+	 * Counts the bytes read, adding them to the counter (and to the bytes
+	 * received of the exchange, if any) as they are read.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+
+		private final AtomicLong mCounter;
+		private final Util.Exchange mExchange;
+
+		CountingInputStream(InputStream in, AtomicLong counter, Util.Exchange exchange) {
+			super(in);
+			mCounter = counter;
+			mExchange = exchange;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b != -1) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int n = in.read(buffer, offset, count);
+			if (n > 0) {
+				count(n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			count(skipped);
+			return skipped;
+		}
+
+		private void count(long n) {
+			mCounter.addAndGet(n);
+			if (mExchange != null) {
+				mExchange.mBytesReceived += n;
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Counts the bytes written, in the counter and in the bytes sent of the
+	 * exchange, if any.
+	 */
+	private static final class CountingOutputStream extends FilterOutputStream {
+
+		private final AtomicLong mCounter;
+		private final Util.Exchange mExchange;
+
+		CountingOutputStream(OutputStream out, AtomicLong counter, Util.Exchange exchange) {
+			super(out);
+			mCounter = counter;
+			mExchange = exchange;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count(1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count) throws IOException {
+			out.write(buffer, offset, count);
+			count(count);
+		}
+
+		private void count(long n) {
+			mCounter.addAndGet(n);
+			if (mExchange != null) {
+				mExchange.mBytesSent += n;
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+/**
+ * Keep-alive policy of the platform connection pool: the maximum number of
+ * idle connections kept open, and how long they are kept.
+ *
+ * HttpURLConnection, and so UrlConnectionTransport, owns the sockets and
+ * keeps them in the platform pool, which the SDK does not see: this class
+ * only tunes it, through the process-wide http.keepAlive,
+ * http.maxConnections and http.keepAliveDuration system properties. They
+ * are left alone unless the application calls apply(), before the first
+ * request since the platform reads them when it creates its pool.
+ *
+ * How well the pool is reused shows in the TlsSocketFactory of the
+ * transport, which counts the HTTPS requests and the new connections they
+ * opened: see TlsSocketFactory.getConnectionReuseRate().
+ */
+public class ConnectionPool {
+
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+	public static final long DEFAULT_KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+
+	private static ConnectionPool sDefaultPool;
+
+	private final int mMaxIdleConnections;
+	private final long mKeepAliveDuration;
+
+	/**
+	 * @param maxIdleConnections
+	 *            - maximum number of idle connections, all hosts included
+	 * @param keepAliveDuration
+	 *            - time in milliseconds an idle connection is kept open
+	 */
+	public ConnectionPool(int maxIdleConnections, long keepAliveDuration) {
+		if (maxIdleConnections < 0) {
+			throw new IllegalArgumentException("maxIdleConnections must not be negative");
+		}
+		if (keepAliveDuration <= 0) {
+			throw new IllegalArgumentException("keepAliveDuration must be positive");
+		}
+		mMaxIdleConnections = maxIdleConnections;
+		mKeepAliveDuration = keepAliveDuration;
+	}
+
+	/**
+	 * @return the policy with DEFAULT_MAX_IDLE_CONNECTIONS and
+	 *         DEFAULT_KEEP_ALIVE_DURATION
+	 */
+	public static synchronized ConnectionPool getDefault() {
+		if (sDefaultPool == null) {
+			sDefaultPool = new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_DURATION);
+		}
+		return sDefaultPool;
+	}
+
+	/**
+	 * Configure the platform connection pool with this policy, for the whole
+	 * process.
+	 */
+	public void apply() {
+		System.setProperty("http.keepAlive", mMaxIdleConnections > 0 ? "true" : "false");
+		System.setProperty("http.maxConnections", String.valueOf(Math.max(1, mMaxIdleConnections)));
+		System.setProperty("http.keepAliveDuration", String.valueOf(mKeepAliveDuration));
+	}
+
+	public int getMaxIdleConnections() {
+		return mMaxIdleConnections;
+	}
+
+	public long getKeepAliveDuration() {
+		return mKeepAliveDuration;
+	}
+}
@@ -0,0 +1,187 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a request body in the gzip format as it is written.
+ *
+ * Unlike GZIPOutputStream, whose Deflater (and its native buffers) is only
+ * released by the finalizer unless the stream is closed, the Deflaters are
+ * taken from a small pool and reset by end(), along with the output buffer.
+ * The gzip framing is written here, around a raw ("nowrap") Deflater.
+ *
+ * finish() writes the end of the body, without closing the underlying
+ * stream, which belongs to the transport.
+ */
+final class DeflatingOutputStream extends OutputStream {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_POOLED = 4;
+
+	/** magic, deflate method, no flags, no modification time, no extra flags, OS */
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 0 };
+
+	private static final ArrayList<Deflater> sDeflaters = new ArrayList<Deflater>(MAX_POOLED);
+	private static final ArrayList<byte[]> sBuffers = new ArrayList<byte[]>(MAX_POOLED);
+
+	private final OutputStream mOut;
+	private Deflater mDeflater;
+	private byte[] mBuffer;
+	private final CRC32 mCrc = new CRC32();
+	private final byte[] mSingle = new byte[1];
+	private boolean mFinished;
+
+	/**
+	 * @param out
+	 *            - the stream receiving the compressed body
+	 */
+	DeflatingOutputStream(OutputStream out) throws IOException {
+		mOut = out;
+		mDeflater = obtainDeflater();
+		mBuffer = obtainBuffer();
+		boolean ready = false;
+		try {
+			out.write(GZIP_HEADER);
+			ready = true;
+		} finally {
+			if (!ready) {
+				end();
+			}
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		mSingle[0] = (byte) b;
+		write(mSingle, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (mDeflater == null || mFinished) {
+			throw new IOException("Stream finished");
+		}
+		if (len == 0) {
+			return;
+		}
+		mCrc.update(b, off, len);
+		mDeflater.setInput(b, off, len);
+		while (!mDeflater.needsInput()) {
+			deflate();
+		}
+	}
+
+	/**
+	 * Write the rest of the compressed data and the gzip trailer, then end
+	 * the stream.
+	 */
+	void finish() throws IOException {
+		if (mDeflater == null || mFinished) {
+			throw new IOException("Stream finished");
+		}
+		mFinished = true;
+		try {
+			mDeflater.finish();
+			while (!mDeflater.finished()) {
+				deflate();
+			}
+			writeInt((int) mCrc.getValue());
+			writeInt((int) mDeflater.getBytesRead());
+			mOut.flush();
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Return the Deflater and the buffer to the pool, e.g. after a write
+	 * failed. Has no effect after finish().
+	 */
+	void end() {
+		if (mDeflater == null) {
+			return;
+		}
+		Deflater deflater = mDeflater;
+		byte[] buffer = mBuffer;
+		mDeflater = null;
+		mBuffer = null;
+		recycle(deflater, buffer);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		mOut.flush();
+	}
+
+	private void deflate() throws IOException {
+		int n = mDeflater.deflate(mBuffer, 0, mBuffer.length);
+		if (n > 0) {
+			mOut.write(mBuffer, 0, n);
+		}
+	}
+
+	/**
+	 * Write an int in little-endian order, as the gzip trailer has it.
+	 */
+	private void writeInt(int value) throws IOException {
+		mOut.write(value);
+		mOut.write(value >>> 8);
+		mOut.write(value >>> 16);
+		mOut.write(value >>> 24);
+	}
+
+	private static Deflater obtainDeflater() {
+		synchronized (sDeflaters) {
+			int size = sDeflaters.size();
+			if (size > 0) {
+				return sDeflaters.remove(size - 1);
+			}
+		}
+		return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	}
+
+	private static byte[] obtainBuffer() {
+		synchronized (sDeflaters) {
+			int size = sBuffers.size();
+			if (size > 0) {
+				return sBuffers.remove(size - 1);
+			}
+		}
+		return new byte[BUFFER_SIZE];
+	}
+
+	private static void recycle(Deflater deflater, byte[] buffer) {
+		deflater.reset();
+		synchronized (sDeflaters) {
+			if (sDeflaters.size() < MAX_POOLED) {
+				sDeflaters.add(deflater);
+				deflater = null;
+			}
+			if (sBuffers.size() < MAX_POOLED) {
+				sBuffers.add(buffer);
+			}
+		}
+		if (deflater != null) {
+			deflater.end();
+		}
+	}
+}
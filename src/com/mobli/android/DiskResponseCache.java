@@ -0,0 +1,514 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent cache of GET responses carrying HTTP validators (ETag and/or
+ * Last-Modified), bounded by size in bytes and evicting the least recently
+ * used responses first.
+ *
+ * Cached responses are always revalidated: the request is sent with
+ * If-None-Match / If-Modified-Since, and a 304 Not Modified answer is served
+ * from disk, so that only the headers travel over the network.
+ *
+ * Each response body is stored in its own file; an index file lists the
+ * entries with their validators in LRU order, so the cache survives process
+ * restarts. The index is rewritten atomically in the background, once per
+ * burst of changes: the changes of the last seconds before the process dies
+ * may be lost, in which case the bodies missing from the index are deleted
+ * when it is loaded. Call flush() to write it at once, e.g. in onStop. The
+ * index is loaded on first use, hence the cache may be created on the UI
+ * thread. All methods are safe to call from concurrent request threads.
+ *
+ * Only the files of the cache are ever deleted from the directory, but it is
+ * better not to share it.
+ *
+ * @see Mobli#setDiskCache(DiskResponseCache)
+ */
+public class DiskResponseCache {
+
+	private static final String INDEX_FILE = "index";
+	private static final String INDEX_MAGIC = "com.mobli.android.DiskResponseCache 1";
+	private static final String BODY_SUFFIX = ".body";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String CHARSET = "UTF-8";
+	/** time the index write waits for more changes, in milliseconds */
+	private static final long INDEX_WRITE_DELAY = 2000;
+
+	private final File mDirectory;
+	private final long mMaxBytes;
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private boolean mLoaded;
+	private long mSize;
+	/** held while writing the index, so that the writes do not overlap */
+	private final Object mIndexLock = new Object();
+	private boolean mIndexDirty;
+	private boolean mIndexScheduled;
+
+	private long mHitCount;
+	private long mMissCount;
+	private long mEvictionCount;
+
+	/**
+	 * @param directory
+	 *            - private directory holding the cache, e.g. a subdirectory
+	 *            of Context.getCacheDir()
+	 * @param maxBytes
+	 *            - maximum total size of the cached response bodies
+	 */
+	public DiskResponseCache(File directory, long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Remove all cached responses from disk.
+	 */
+	public synchronized void clear() {
+		ensureLoaded();
+		for (Entry entry : mEntries.values()) {
+			bodyFile(entry).delete();
+		}
+		mEntries.clear();
+		mSize = 0;
+		scheduleIndexWrite();
+	}
+
+	/**
+	 * Write the index now if it has changes not written yet.
+	 */
+	public void flush() {
+		synchronized (mIndexLock) {
+			String index;
+			synchronized (this) {
+				if (!mIndexDirty) {
+					return;
+				}
+				mIndexDirty = false;
+				index = formatIndex();
+			}
+			writeIndex(index);
+		}
+	}
+
+	/**
+	 * @return total size of the cached response bodies, in bytes
+	 */
+	public synchronized long size() {
+		ensureLoaded();
+		return mSize;
+	}
+
+	public long getMaxSize() {
+		return mMaxBytes;
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * @return number of requests answered with 304 Not Modified and served
+	 *         from disk
+	 */
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return number of requests which downloaded a full response body
+	 */
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return number of responses evicted to make room for others
+	 */
+	public synchronized long getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	/**
+	 * @return the cached entry of the given key, or null
+	 */
+	synchronized Entry get(String key) {
+		ensureLoaded();
+		return mEntries.get(key);
+	}
+
+	/**
+	 * Read the body of a cached response.
+	 *
+	 * The file is read outside of the cache lock: a concurrent put replaces
+	 * the file by renaming, so an open stream keeps seeing the old content.
+	 *
+	 * @return the body, or null if it could not be read (in which case the
+	 *         entry is dropped, unless a put replaced it meanwhile)
+	 */
+	String readBody(Entry entry) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(bodyFile(entry));
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(entry.mSize, Integer.MAX_VALUE));
+			byte[] buffer = new byte[4096];
+			for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+				out.write(buffer, 0, n);
+			}
+			synchronized (this) {
+				mHitCount++;
+			}
+			return out.toString(CHARSET);
+		} catch (IOException e) {
+			Util.logd("Mobli-DiskCache", "Could not read cached response: " + e);
+			remove(entry);
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Store a response body with its validators. Responses without any
+	 * validator cannot be revalidated and are not stored.
+	 */
+	void put(String key, String body, String eTag, String lastModified) {
+		synchronized (this) {
+			mMissCount++;
+			// before writing the body: loading deletes the temporary files
+			ensureLoaded();
+		}
+		if (eTag == null && lastModified == null) {
+			remove(key);
+			return;
+		}
+		byte[] bytes;
+		try {
+			bytes = body.getBytes(CHARSET);
+		} catch (IOException e) {
+			return;
+		}
+		if (bytes.length > mMaxBytes) {
+			remove(key);
+			return;
+		}
+
+		Entry entry = new Entry(key, hash(key), sanitize(eTag), sanitize(lastModified), bytes.length);
+		if (entry.mETag == null && entry.mLastModified == null) {
+			remove(key);
+			return;
+		}
+		File temp = new File(mDirectory, entry.mFileName + "." + Thread.currentThread().getId() + TEMP_SUFFIX);
+		OutputStream out = null;
+		try {
+			mDirectory.mkdirs();
+			out = new FileOutputStream(temp);
+			out.write(bytes);
+			out.close();
+			out = null;
+			synchronized (this) {
+				ensureLoaded();
+				if (!temp.renameTo(bodyFile(entry))) {
+					throw new IOException("Could not rename " + temp);
+				}
+				Entry previous = mEntries.put(key, entry);
+				if (previous != null) {
+					mSize -= previous.mSize;
+				}
+				mSize += entry.mSize;
+				trimToSize();
+				scheduleIndexWrite();
+			}
+		} catch (IOException e) {
+			Util.logd("Mobli-DiskCache", "Could not store response: " + e);
+			temp.delete();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	synchronized void remove(String key) {
+		ensureLoaded();
+		Entry entry = mEntries.remove(key);
+		if (entry != null) {
+			mSize -= entry.mSize;
+			bodyFile(entry).delete();
+			scheduleIndexWrite();
+		}
+	}
+
+	/**
+	 * Remove the given entry, if it is still the one cached under its key:
+	 * the body file of a newer entry has the same name.
+	 */
+	private synchronized void remove(Entry entry) {
+		if (mEntries.get(entry.mKey) == entry) {
+			remove(entry.mKey);
+		}
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+		while (mSize > mMaxBytes && it.hasNext()) {
+			Entry entry = it.next().getValue();
+			it.remove();
+			mSize -= entry.mSize;
+			bodyFile(entry).delete();
+			mEvictionCount++;
+		}
+	}
+
+	private File bodyFile(Entry entry) {
+		return new File(mDirectory, entry.mFileName + BODY_SUFFIX);
+	}
+
+	/**
+	 * Load the index on first use, deleting the bodies it does not list. An
+	 * unreadable index discards the whole cache rather than risking serving
+	 * the wrong bodies.
+	 */
+	private void ensureLoaded() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		File index = new File(mDirectory, INDEX_FILE);
+		if (!index.exists()) {
+			deleteContents();
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), CHARSET));
+			if (!INDEX_MAGIC.equals(reader.readLine())) {
+				throw new IOException("Unknown index format");
+			}
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 4) {
+					throw new IOException("Corrupt index line: " + line);
+				}
+				String key = fields[3];
+				Entry entry = new Entry(key, hash(key), emptyToNull(fields[1]), emptyToNull(fields[2]), Long.parseLong(fields[0]));
+				if (bodyFile(entry).length() == entry.mSize) {
+					mEntries.put(key, entry);
+					mSize += entry.mSize;
+				}
+			}
+			deleteOrphans();
+		} catch (IOException e) {
+			Util.logd("Mobli-DiskCache", "Discarding cache: " + e);
+			deleteContents();
+		} catch (NumberFormatException e) {
+			Util.logd("Mobli-DiskCache", "Discarding cache: " + e);
+			deleteContents();
+		} finally {
+			closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Have the index written in the background after INDEX_WRITE_DELAY, with
+	 * the changes made until then. Called with the lock held.
+	 */
+	private void scheduleIndexWrite() {
+		mIndexDirty = true;
+		if (mIndexScheduled) {
+			return;
+		}
+		mIndexScheduled = true;
+		RequestHandle.getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (DiskResponseCache.this) {
+					mIndexScheduled = false;
+				}
+				// off the timer thread, which runs the request deadlines
+				Runnable write = new Runnable() {
+					@Override
+					public void run() {
+						flush();
+					}
+				};
+				try {
+					RequestExecutor.getDefault().execute(write, RequestExecutor.Priority.BACKGROUND);
+				} catch (RejectedExecutionException e) {
+					write.run();
+				}
+			}
+		}, INDEX_WRITE_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the content of the index file. Called with the lock held.
+	 */
+	private String formatIndex() {
+		StringBuilder sb = new StringBuilder(INDEX_MAGIC.length() + 1 + mEntries.size() * 128);
+		sb.append(INDEX_MAGIC).append('\n');
+		for (Entry entry : mEntries.values()) {
+			sb.append(entry.mSize).append('\t');
+			sb.append(entry.mETag != null ? entry.mETag : "").append('\t');
+			sb.append(entry.mLastModified != null ? entry.mLastModified : "").append('\t');
+			sb.append(entry.mKey).append('\n');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write the index to a temporary file, then rename it over the previous
+	 * index so that a crash never leaves a partial index behind.
+	 */
+	private void writeIndex(String index) {
+		File temp = new File(mDirectory, INDEX_FILE + TEMP_SUFFIX);
+		OutputStream out = null;
+		try {
+			mDirectory.mkdirs();
+			out = new FileOutputStream(temp);
+			out.write(index.getBytes(CHARSET));
+			out.close();
+			out = null;
+			if (!temp.renameTo(new File(mDirectory, INDEX_FILE))) {
+				throw new IOException("Could not rename " + temp);
+			}
+		} catch (IOException e) {
+			Util.logd("Mobli-DiskCache", "Could not write index: " + e);
+			temp.delete();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	/**
+	 * @return whether the file is one of the cache: the index, a body, or a
+	 *         temporary file
+	 */
+	private static boolean isCacheFile(String name) {
+		return name.equals(INDEX_FILE) || name.endsWith(BODY_SUFFIX) || name.endsWith(TEMP_SUFFIX);
+	}
+
+	/**
+	 * Delete the bodies the index does not list, e.g. stored after the last
+	 * index write before the process died, and the temporary files.
+	 */
+	private void deleteOrphans() {
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		HashSet<String> listed = new HashSet<String>(mEntries.size() * 2);
+		for (Entry entry : mEntries.values()) {
+			listed.add(entry.mFileName + BODY_SUFFIX);
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.equals(INDEX_FILE) && isCacheFile(name) && !listed.contains(name)) {
+				file.delete();
+			}
+		}
+	}
+
+	private void deleteContents() {
+		mEntries.clear();
+		mSize = 0;
+		File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (isCacheFile(file.getName())) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	private static String hash(String key) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] bytes = digest.digest(key.getBytes(CHARSET));
+			StringBuilder sb = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Validators are opaque header values; tabs and line breaks would break
+	 * the index format, and are not legal in header values anyway.
+	 */
+	private static String sanitize(String value) {
+		if (value == null || value.indexOf('\t') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+			return null;
+		}
+		return value;
+	}
+
+	private static String emptyToNull(String value) {
+		return value.length() == 0 ? null : value;
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+
+	static final class Entry {
+
+		final String mKey;
+		final String mFileName;
+		final String mETag;
+		final String mLastModified;
+		final long mSize;
+
+		Entry(String key, String fileName, String eTag, String lastModified, long size) {
+			mKey = key;
+			mFileName = fileName;
+			mETag = eTag;
+			mLastModified = lastModified;
+			mSize = size;
+		}
+	}
+}
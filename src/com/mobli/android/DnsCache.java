@@ -0,0 +1,80 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.security.Security;
+
+/**
+ * Time-to-live of the platform DNS cache.
+ *
+ * The SDK resolves no host itself: HttpURLConnection, and so
+ * UrlConnectionTransport and Mobli.preconnect(), resolve them through the
+ * platform cache, whose time-to-live is only changed if the application
+ * calls apply().
+ */
+public class DnsCache {
+
+	public static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+	private static DnsCache sDefaultCache;
+
+	private long mTtl;
+
+	/**
+	 * @param ttl
+	 *            - time in milliseconds a resolved address is reused
+	 */
+	public DnsCache(long ttl) {
+		setTtl(ttl);
+	}
+
+	/**
+	 * @return the policy with DEFAULT_TTL
+	 */
+	public static synchronized DnsCache getDefault() {
+		if (sDefaultCache == null) {
+			sDefaultCache = new DnsCache(DEFAULT_TTL);
+		}
+		return sDefaultCache;
+	}
+
+	/**
+	 * Set the time-to-live of the entries.
+	 */
+	public synchronized void setTtl(long ttl) {
+		if (ttl < 0) {
+			throw new IllegalArgumentException("ttl must not be negative");
+		}
+		mTtl = ttl;
+	}
+
+	public synchronized long getTtl() {
+		return mTtl;
+	}
+
+	/**
+	 * Set the time-to-live of the platform cache to this one, for the whole
+	 * process, through the networkaddress.cache.ttl security property, on
+	 * the platforms honoring it.
+	 */
+	public void apply() {
+		try {
+			Security.setProperty("networkaddress.cache.ttl", String.valueOf((getTtl() + 999) / 1000));
+		} catch (SecurityException e) {
+			// the platform cache keeps its own policy
+		}
+	}
+}
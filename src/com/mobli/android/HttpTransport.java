@@ -0,0 +1,64 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+
+/**
+ * The HTTP client executing the requests of the SDK.
+ *
+ * Everything above the transport (URL and body encoding, retries, circuit
+ * breakers, compression, caching, response parsing) is done by the SDK, so
+ * an implementation only has to send a TransportRequest as is and hand back
+ * the response as a stream. The default is UrlConnectionTransport;
+ * LoopbackTransport serves fixtures without a network, for tests and
+ * benchmarks. Install another implementation with Util.setTransport.
+ *
+ * Implementations must be thread-safe: calls are made concurrently from the
+ * request threads.
+ */
+public interface HttpTransport {
+
+	/**
+	 * Prepare the exchange of a request. No I/O should happen before
+	 * Call.execute, so that the call may be cancelled first.
+	 */
+	public Call newCall(TransportRequest request) throws IOException;
+
+	/**
+	 * A single request/response exchange.
+	 */
+	public static interface Call {
+
+		/**
+		 * Send the request, including its body, and wait for the response
+		 * status and headers. The response body is read from the returned
+		 * response, which must be closed.
+		 *
+		 * @throws IOException
+		 *             if the exchange failed, or was cancelled
+		 */
+		public TransportResponse execute() throws IOException;
+
+		/**
+		 * Abort the exchange from another thread: a blocked execute, or a
+		 * read from the response body, fails with an IOException. Has no
+		 * effect once the response has been closed.
+		 */
+		public void cancel();
+
+	}
+}
@@ -0,0 +1,296 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip or deflate response body as it is read.
+ *
+ * Unlike GZIPInputStream, which allocates a new Inflater (and its native
+ * buffers) per stream, the Inflaters are taken from a small pool and reset
+ * when the stream is closed, along with the input buffer. The gzip framing
+ * is parsed here, so both encodings use a raw ("nowrap") Inflater: the
+ * "deflate" encoding is zlib-wrapped per the HTTP spec, but some servers
+ * send raw deflate data, so the zlib header is skipped when present.
+ */
+final class InflatingInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+	private static final int MAX_POOLED = 4;
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private static final ArrayList<Inflater> sInflaters = new ArrayList<Inflater>(MAX_POOLED);
+	private static final ArrayList<byte[]> sBuffers = new ArrayList<byte[]>(MAX_POOLED);
+
+	private final InputStream mIn;
+	private final boolean mGzip;
+	private Inflater mInflater;
+	private byte[] mBuffer;
+	/** end of the input last handed to the Inflater, in mBuffer */
+	private int mLastInputEnd;
+	private final CRC32 mCrc;
+	private final byte[] mSingle = new byte[1];
+	private boolean mEof;
+
+	/**
+	 * @param in
+	 *            - the compressed body
+	 * @param gzip
+	 *            - true for the gzip encoding, false for deflate
+	 */
+	InflatingInputStream(InputStream in, boolean gzip) throws IOException {
+		mIn = in;
+		mGzip = gzip;
+		mCrc = gzip ? new CRC32() : null;
+		mInflater = obtainInflater();
+		mBuffer = obtainBuffer();
+		boolean ready = false;
+		try {
+			if (gzip) {
+				readGzipHeader();
+			} else {
+				skipZlibHeader();
+			}
+			ready = true;
+		} finally {
+			if (!ready) {
+				recycle(mInflater, mBuffer);
+				mInflater = null;
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(mSingle, 0, 1) == -1 ? -1 : mSingle[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (mInflater == null) {
+			throw new IOException("Stream closed");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (mEof) {
+			return -1;
+		}
+		try {
+			int n;
+			while ((n = mInflater.inflate(b, off, len)) == 0) {
+				if (mInflater.finished()) {
+					mEof = true;
+					if (mGzip) {
+						readGzipTrailer();
+					}
+					return -1;
+				}
+				if (mInflater.needsDictionary()) {
+					throw new IOException("Corrupt compressed body: preset dictionary");
+				}
+				if (mInflater.needsInput()) {
+					fill();
+				}
+			}
+			if (mCrc != null) {
+				mCrc.update(b, off, n);
+			}
+			return n;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed body: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public int available() throws IOException {
+		return mEof || mInflater == null ? 0 : 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mInflater == null) {
+			return;
+		}
+		Inflater inflater = mInflater;
+		byte[] buffer = mBuffer;
+		mInflater = null;
+		mBuffer = null;
+		recycle(inflater, buffer);
+		mIn.close();
+	}
+
+	private void fill() throws IOException {
+		int n = mIn.read(mBuffer, 0, mBuffer.length);
+		if (n == -1) {
+			throw new EOFException("Unexpected end of compressed body");
+		}
+		mInflater.setInput(mBuffer, 0, n);
+		mLastInputEnd = n;
+	}
+
+	/**
+	 * Read one byte of framing, from the bytes left over by the Inflater if
+	 * any, or from the underlying stream.
+	 */
+	private int readFramingByte() throws IOException {
+		if (mInflater.getRemaining() == 0) {
+			fill();
+		}
+		int remaining = mInflater.getRemaining();
+		int offset = mLastInputEnd - remaining;
+		int value = mBuffer[offset] & 0xff;
+		mInflater.setInput(mBuffer, offset + 1, remaining - 1);
+		return value;
+	}
+
+	private int readShort() throws IOException {
+		return readFramingByte() | (readFramingByte() << 8);
+	}
+
+	private long readInt() throws IOException {
+		return (readShort() & 0xffffL) | ((long) readShort() << 16);
+	}
+
+	private void readGzipHeader() throws IOException {
+		int n = mIn.read(mBuffer, 0, mBuffer.length);
+		if (n == -1) {
+			// an empty body, e.g. of a 304 response
+			mEof = true;
+			return;
+		}
+		mInflater.setInput(mBuffer, 0, n);
+		mLastInputEnd = n;
+		if (readShort() != GZIP_MAGIC) {
+			throw new IOException("Not in gzip format");
+		}
+		if (readFramingByte() != 8) {
+			throw new IOException("Unsupported gzip compression method");
+		}
+		int flags = readFramingByte();
+		// modification time, extra flags, OS
+		for (int i = 0; i < 6; i++) {
+			readFramingByte();
+		}
+		if ((flags & FEXTRA) != 0) {
+			for (int length = readShort(); length > 0; length--) {
+				readFramingByte();
+			}
+		}
+		if ((flags & FNAME) != 0) {
+			while (readFramingByte() != 0) {
+				// skip
+			}
+		}
+		if ((flags & FCOMMENT) != 0) {
+			while (readFramingByte() != 0) {
+				// skip
+			}
+		}
+		if ((flags & FHCRC) != 0) {
+			readShort();
+		}
+	}
+
+	private void readGzipTrailer() throws IOException {
+		long crc = readInt();
+		long size = readInt();
+		if (crc != mCrc.getValue()) {
+			throw new IOException("Corrupt gzip body: CRC mismatch");
+		}
+		if (size != (mInflater.getBytesWritten() & 0xffffffffL)) {
+			throw new IOException("Corrupt gzip body: size mismatch");
+		}
+	}
+
+	private void skipZlibHeader() throws IOException {
+		int n = mIn.read(mBuffer, 0, mBuffer.length);
+		if (n == -1) {
+			// an empty body
+			mEof = true;
+			return;
+		}
+		while (n < 2) {
+			int more = mIn.read(mBuffer, n, mBuffer.length - n);
+			if (more == -1) {
+				break;
+			}
+			n += more;
+		}
+		int start = 0;
+		if (n >= 2) {
+			int cmf = mBuffer[0] & 0xff;
+			int flg = mBuffer[1] & 0xff;
+			if ((cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0) {
+				if ((flg & 0x20) != 0) {
+					throw new IOException("Corrupt compressed body: preset dictionary");
+				}
+				start = 2;
+			}
+		}
+		// the Adler-32 trailer of the zlib format is left unchecked
+		mInflater.setInput(mBuffer, start, n - start);
+		mLastInputEnd = n;
+	}
+
+	private static Inflater obtainInflater() {
+		synchronized (sInflaters) {
+			int size = sInflaters.size();
+			if (size > 0) {
+				return sInflaters.remove(size - 1);
+			}
+		}
+		return new Inflater(true);
+	}
+
+	private static byte[] obtainBuffer() {
+		synchronized (sInflaters) {
+			int size = sBuffers.size();
+			if (size > 0) {
+				return sBuffers.remove(size - 1);
+			}
+		}
+		return new byte[BUFFER_SIZE];
+	}
+
+	private static void recycle(Inflater inflater, byte[] buffer) {
+		inflater.reset();
+		synchronized (sInflaters) {
+			if (sInflaters.size() < MAX_POOLED) {
+				sInflaters.add(inflater);
+				inflater = null;
+			}
+			if (sBuffers.size() < MAX_POOLED) {
+				sBuffers.add(buffer);
+			}
+		}
+		if (inflater != null) {
+			inflater.end();
+		}
+	}
+}
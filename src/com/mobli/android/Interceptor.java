@@ -0,0 +1,60 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+
+/**
+ * Step of the chain a request goes through before reaching the network,
+ * e.g. to add parameters or headers, to answer from a cache, or to measure
+ * and wrap responses.
+ *
+ * Interceptors run in order on the thread making the request. Each one may
+ * rewrite the request before passing it on with Chain.proceed, return a
+ * response of its own without proceeding (see BufferedResponse), or wrap
+ * the response it gets back. A response which is not returned must be
+ * closed. After the last interceptor, the request is sent with the retry
+ * policy and circuit breaker of its host.
+ *
+ * @see Mobli#setInterceptors(java.util.List)
+ * @see Interceptors
+ */
+public interface Interceptor {
+
+	/**
+	 * @return the response to the request of the chain
+	 */
+	public TransportResponse intercept(Chain chain) throws IOException;
+
+	/**
+	 * Position of an interceptor in the chain.
+	 */
+	public static interface Chain {
+
+		/**
+		 * @return the request handed to the current interceptor
+		 */
+		public MobliRequest getRequest();
+
+		/**
+		 * Hand a request to the next interceptor, or to the network after
+		 * the last one. May be called more than once, e.g. to retry the
+		 * request; the responses which are not returned must be closed.
+		 */
+		public TransportResponse proceed(MobliRequest request) throws IOException;
+
+	}
+}
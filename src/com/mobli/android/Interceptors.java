@@ -0,0 +1,171 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+import java.util.Map;
+
+import android.os.Bundle;
+
+/**
+ * The interceptors making the requests the way the Mobli API expects them,
+ * installed by default after the access token interceptor of each Mobli
+ * object.
+ */
+public final class Interceptors {
+
+	/**
+	 * Send the method of non-GET requests as the "method" parameter, since
+	 * they are all sent as POST.
+	 */
+	public static final Interceptor METHOD_OVERRIDE = new Interceptor() {
+		@Override
+		public TransportResponse intercept(Chain chain) throws IOException {
+			MobliRequest request = chain.getRequest();
+			Bundle params = request.getParams();
+			if (!request.getMethod().equals("GET") && !params.containsKey("method")) {
+				params.putString("method", request.getMethod());
+			}
+			return chain.proceed(request);
+		}
+
+		@Override
+		public String toString() {
+			return "METHOD_OVERRIDE";
+		}
+	};
+
+	/**
+	 * URL-decode the access token of non-GET requests, which is encoded
+	 * again in the body.
+	 */
+	public static final Interceptor DECODE_ACCESS_TOKEN = new Interceptor() {
+		@Override
+		public TransportResponse intercept(Chain chain) throws IOException {
+			MobliRequest request = chain.getRequest();
+			Bundle params = request.getParams();
+			if (!request.getMethod().equals("GET") && params.containsKey(Mobli.TOKEN)) {
+				String token = params.getString(Mobli.TOKEN);
+				params.putString(Mobli.TOKEN, UrlDecoder.decodeComponent(token, 0, token.length()));
+			}
+			return chain.proceed(request);
+		}
+
+		@Override
+		public String toString() {
+			return "DECODE_ACCESS_TOKEN";
+		}
+	};
+
+	/**
+	 * Add the User-Agent, Connection and Accept-Encoding headers, unless
+	 * they are set already.
+	 */
+	public static final Interceptor DEFAULT_HEADERS = new Interceptor() {
+		@Override
+		public TransportResponse intercept(Chain chain) throws IOException {
+			MobliRequest request = chain.getRequest();
+			Map<String, String> headers = request.getHeaders();
+			if (!headers.containsKey("User-Agent")) {
+				headers.put("User-Agent", Util.getUserAgent());
+			}
+			if (!headers.containsKey("Connection")) {
+				headers.put("Connection", "Keep-Alive");
+			}
+			String acceptEncoding = Compression.getAcceptEncoding();
+			if (acceptEncoding != null && !headers.containsKey("Accept-Encoding")) {
+				headers.put("Accept-Encoding", acceptEncoding);
+			}
+			return chain.proceed(request);
+		}
+
+		@Override
+		public String toString() {
+			return "DEFAULT_HEADERS";
+		}
+	};
+
+	/** the chain of the requests made without a Mobli object */
+	static final Interceptor[] DEFAULTS = { METHOD_OVERRIDE, DECODE_ACCESS_TOKEN, DEFAULT_HEADERS };
+
+	private Interceptors() {
+	}
+
+	/**
+	 * The last step of a chain, sending the request.
+	 */
+	static interface Network {
+
+		public TransportResponse execute(MobliRequest request) throws IOException;
+
+	}
+
+	/**
+	 * Run a request through the given interceptors, then the network.
+	 */
+	static TransportResponse execute(Interceptor[] interceptors, Network network, MobliRequest request) throws IOException {
+		if (interceptors.length == 0) {
+			return network.execute(request);
+		}
+		return new RealChain(interceptors, network).proceed(request);
+	}
+
+	/**
+	 * A chain walking the interceptors with an index, restored when each
+	 * call returns so that an interceptor may proceed more than once.
+	 */
+	private static final class RealChain implements Interceptor.Chain {
+
+		private final Interceptor[] mInterceptors;
+		private final Network mNetwork;
+		private int mIndex;
+		private MobliRequest mRequest;
+
+		RealChain(Interceptor[] interceptors, Network network) {
+			mInterceptors = interceptors;
+			mNetwork = network;
+		}
+
+		@Override
+		public MobliRequest getRequest() {
+			return mRequest;
+		}
+
+		@Override
+		public TransportResponse proceed(MobliRequest request) throws IOException {
+			if (request == null) {
+				throw new IllegalArgumentException("request must not be null");
+			}
+			int index = mIndex;
+			if (index == mInterceptors.length) {
+				return mNetwork.execute(request);
+			}
+			MobliRequest previous = mRequest;
+			mIndex = index + 1;
+			mRequest = request;
+			try {
+				TransportResponse response = mInterceptors[index].intercept(this);
+				if (response == null) {
+					throw new IllegalStateException(mInterceptors[index] + " returned no response");
+				}
+				return response;
+			} finally {
+				mIndex = index;
+				mRequest = previous;
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Entry point to the compile-time JSON binding of JsonModel classes, such as
+ * the API entities of com.mobli.android.model.
+ *
+ * Models are read field by field from a JsonPullParser by the readers
+ * generated at compile time, without building a JSONObject tree and without
+ * reflection. The readers of com.mobli.android.model are registered by the
+ * JsonModelRegistry generated in that package; those of the application's
+ * models are registered by calling the register() of the JsonModelRegistry
+ * generated in their packages, at start. The reader of a model which is not
+ * registered is found by name, once per class, which needs a ProGuard keep
+ * rule for the readers (see the README).
+ *
+ * For example, to stream a media feed into typed objects:
+ *
+ * <pre>
+ * List&lt;Media&gt; feed = mobli.requestStream(baseUrl, &quot;channel/1/media&quot;, params, &quot;GET&quot;,
+ * 		JsonBinding.listParser(&quot;payload&quot;, Media.class));
+ * </pre>
+ */
+public final class JsonBinding {
+
+	private static final String READER_SUFFIX = "JsonReader";
+
+	private static final HashMap<Class<?>, ModelReader<?>> sReaders = new HashMap<Class<?>, ModelReader<?>>();
+
+	static {
+		com.mobli.android.model.JsonModelRegistry.register();
+	}
+
+	private JsonBinding() {
+	}
+
+	/**
+	 * Register the reader of a JsonModel class, as the generated
+	 * JsonModelRegistry classes do.
+	 *
+	 * @param type
+	 *            - the model class
+	 * @param reader
+	 *            - its reader
+	 */
+	public static <T> void register(Class<T> type, ModelReader<T> reader) {
+		if (type == null || reader == null) {
+			throw new IllegalArgumentException("type and reader must not be null");
+		}
+		synchronized (sReaders) {
+			sReaders.put(type, reader);
+		}
+	}
+
+	/**
+	 * @return the generated reader of the given JsonModel class
+	 * @throws IllegalArgumentException
+	 *             if no reader was generated for the class, i.e. it is not
+	 *             annotated with JsonModel or the annotation processor did not
+	 *             run, or if ProGuard removed it
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> ModelReader<T> readerFor(Class<T> type) {
+		synchronized (sReaders) {
+			ModelReader<T> reader = (ModelReader<T>) sReaders.get(type);
+			if (reader == null) {
+				String name = type.getName() + READER_SUFFIX;
+				try {
+					reader = (ModelReader<T>) Class.forName(name, true, type.getClassLoader()).getField("INSTANCE").get(null);
+				} catch (ClassNotFoundException e) {
+					throw new IllegalArgumentException("No generated reader for " + type.getName()
+							+ ": is it annotated with @JsonModel, and was the annotation processor run? With ProGuard, call "
+							+ "the register() of the JsonModelRegistry of its package, or keep the readers.");
+				} catch (NoSuchFieldException e) {
+					throw new IllegalArgumentException("No INSTANCE in " + name + ": was it renamed by ProGuard?");
+				} catch (IllegalAccessException e) {
+					throw new IllegalArgumentException(e.getMessage());
+				}
+				sReaders.put(type, reader);
+			}
+			return reader;
+		}
+	}
+
+	/**
+	 * Read a model from a JSON response, throwing the MobliError of an error
+	 * envelope like Util.parseJson does.
+	 */
+	public static <T> T read(String json, Class<T> type) throws IOException {
+		JsonPullParser parser = new JsonPullParser(new StringReader(json));
+		parser.setErrorDetection(true);
+		return readerFor(type).read(parser);
+	}
+
+	/**
+	 * @return a response parser for Mobli.requestStream reading the response
+	 *         as a model of the given class
+	 */
+	public static <T> Mobli.ResponseParser<T> objectParser(Class<T> type) {
+		final ModelReader<T> reader = readerFor(type);
+		return new Mobli.ResponseParser<T>() {
+			@Override
+			public T parse(JsonPullParser parser) throws IOException {
+				return reader.read(parser);
+			}
+		};
+	}
+
+	/**
+	 * @return a response parser for Mobli.requestStream reading an array of
+	 *         models, found in the given member of the response object (e.g.
+	 *         "payload"), or being the response itself if arrayName is null
+	 */
+	public static <T> Mobli.ResponseParser<List<T>> listParser(final String arrayName, Class<T> type) {
+		final ModelReader<T> reader = readerFor(type);
+		return new Mobli.ResponseParser<List<T>>() {
+			@Override
+			public List<T> parse(JsonPullParser parser) throws IOException {
+				if (arrayName == null) {
+					return readList(parser, reader);
+				}
+				List<T> list = null;
+				parser.beginObject();
+				while (parser.hasNext()) {
+					if (parser.nextName().equals(arrayName)) {
+						list = readList(parser, reader);
+					} else {
+						parser.skipValue();
+					}
+				}
+				parser.endObject();
+				return list != null ? list : new ArrayList<T>(0);
+			}
+		};
+	}
+
+	/**
+	 * Read an array of models, or null.
+	 */
+	public static <T> List<T> readList(JsonPullParser parser, ModelReader<T> reader) throws IOException {
+		if (parser.peek() == JsonPullParser.Token.NULL) {
+			parser.nextNull();
+			return null;
+		}
+		List<T> list = new ArrayList<T>();
+		parser.beginArray();
+		while (parser.hasNext()) {
+			list.add(reader.read(parser));
+		}
+		parser.endArray();
+		return list;
+	}
+
+	/**
+	 * Read an array of strings, or null.
+	 */
+	public static List<String> readStringList(JsonPullParser parser) throws IOException {
+		if (parser.peek() == JsonPullParser.Token.NULL) {
+			parser.nextNull();
+			return null;
+		}
+		List<String> list = new ArrayList<String>();
+		parser.beginArray();
+		while (parser.hasNext()) {
+			if (parser.peek() == JsonPullParser.Token.NULL) {
+				parser.nextNull();
+				list.add(null);
+			} else {
+				list.add(parser.nextString());
+			}
+		}
+		parser.endArray();
+		return list;
+	}
+
+	/**
+	 * Read an array of integers, or null.
+	 */
+	public static List<Long> readLongList(JsonPullParser parser) throws IOException {
+		if (parser.peek() == JsonPullParser.Token.NULL) {
+			parser.nextNull();
+			return null;
+		}
+		List<Long> list = new ArrayList<Long>();
+		parser.beginArray();
+		while (parser.hasNext()) {
+			list.add(Long.valueOf(parser.nextLong()));
+		}
+		parser.endArray();
+		return list;
+	}
+}
@@ -0,0 +1,38 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class deserialized from JSON by a generated ModelReader.
+ *
+ * At compile time, the annotation processor in the "processor" folder
+ * generates a &lt;Class&gt;JsonReader next to each annotated class, reading
+ * the fields annotated with JsonField straight from a JsonPullParser, and a
+ * JsonModelRegistry in each package of annotated classes, registering their
+ * readers with JsonBinding. Annotated classes need a constructor without parameters, and their fields
+ * must not be private.
+ *
+ * @see JsonBinding
+ */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface JsonModel {
+}
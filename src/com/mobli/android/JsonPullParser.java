@@ -0,0 +1,621 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Pull parser reading a JSON document token by token from a stream, so that
+ * large responses can be consumed without holding the whole body or its
+ * JSONObject tree in memory.
+ *
+ * Usage mirrors the document structure:
+ *
+ * <pre>
+ * parser.beginObject();
+ * while (parser.hasNext()) {
+ * 	String name = parser.nextName();
+ * 	if (name.equals(&quot;payload&quot;)) {
+ * 		parser.beginArray();
+ * 		while (parser.hasNext()) {
+ * 			JSONObject media = parser.nextJSONObject();
+ * 		}
+ * 		parser.endArray();
+ * 	} else {
+ * 		parser.skipValue();
+ * 	}
+ * }
+ * parser.endObject();
+ * </pre>
+ *
+ * When error detection is enabled (as it is for parsers handed out by
+ * Mobli.requestStream), meeting one of the error fields checked by
+ * Util.parseJson at the top level of the document makes the parser read the
+ * error envelope and throw the corresponding MobliError right away, as does a
+ * document consisting of a bare false.
+ *
+ * Malformed input results in an IOException.
+ */
+public class JsonPullParser implements Closeable {
+
+	/**
+	 * Kind of the next token in the document.
+	 */
+	public static enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT
+	}
+
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int DANGLING_NAME = 5;
+	private static final int NONEMPTY_OBJECT = 6;
+
+	private final Reader mIn;
+	private final char[] mBuffer = new char[8192];
+	private int mPos;
+	private int mLimit;
+
+	private int[] mStack = new int[16];
+	private int mDepth;
+
+	private Token mPeeked;
+	/** Text of the peeked NAME, STRING, NUMBER or BOOLEAN token */
+	private String mPeekedText;
+	private final StringBuilder mText = new StringBuilder();
+
+	private boolean mErrorDetection;
+
+	public JsonPullParser(Reader in) {
+		if (in == null) {
+			throw new NullPointerException("in == null");
+		}
+		mIn = in;
+		mStack[mDepth++] = EMPTY_DOCUMENT;
+	}
+
+	/**
+	 * Enable or disable detection of Mobli error envelopes at the top level
+	 * of the document (disabled by default).
+	 */
+	public void setErrorDetection(boolean enabled) {
+		mErrorDetection = enabled;
+	}
+
+	/**
+	 * @return the kind of the next token, without consuming it
+	 */
+	public Token peek() throws IOException {
+		if (mPeeked == null) {
+			mPeeked = doPeek();
+		}
+		return mPeeked;
+	}
+
+	/**
+	 * @return whether the current array or object has another element
+	 */
+	public boolean hasNext() throws IOException {
+		Token token = peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY && token != Token.END_DOCUMENT;
+	}
+
+	public void beginObject() throws IOException {
+		expect(Token.BEGIN_OBJECT);
+		mPeeked = null;
+	}
+
+	public void endObject() throws IOException {
+		expect(Token.END_OBJECT);
+		mPeeked = null;
+		mDepth--;
+	}
+
+	public void beginArray() throws IOException {
+		expect(Token.BEGIN_ARRAY);
+		mPeeked = null;
+	}
+
+	public void endArray() throws IOException {
+		expect(Token.END_ARRAY);
+		mPeeked = null;
+		mDepth--;
+	}
+
+	/**
+	 * @return the name of the next member of the current object
+	 * @throws MobliError
+	 *             if error detection is enabled and the name is that of a
+	 *             top-level error field
+	 */
+	public String nextName() throws IOException {
+		expect(Token.NAME);
+		String name = mPeekedText;
+		mPeeked = null;
+		if (mErrorDetection && mDepth == 2 && isErrorField(name)) {
+			throw readErrorEnvelope(name);
+		}
+		return name;
+	}
+
+	/**
+	 * @return the next string value; numbers and booleans are returned as
+	 *         their literal text
+	 */
+	public String nextString() throws IOException {
+		Token token = peek();
+		if (token != Token.STRING && token != Token.NUMBER && token != Token.BOOLEAN) {
+			throw syntaxError("Expected a string but was " + token);
+		}
+		mPeeked = null;
+		return mPeekedText;
+	}
+
+	public boolean nextBoolean() throws IOException {
+		expect(Token.BOOLEAN);
+		mPeeked = null;
+		return mPeekedText.equals("true");
+	}
+
+	public void nextNull() throws IOException {
+		expect(Token.NULL);
+		mPeeked = null;
+	}
+
+	/**
+	 * @return the next number (or numeric string) as a double
+	 */
+	public double nextDouble() throws IOException {
+		String text = nextNumberText();
+		try {
+			return Double.parseDouble(text);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected a number but was " + text);
+		}
+	}
+
+	/**
+	 * @return the next number (or numeric string) as a long
+	 */
+	public long nextLong() throws IOException {
+		String text = nextNumberText();
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			double value = nextDoubleOf(text);
+			if (value != (long) value) {
+				throw syntaxError("Expected a long but was " + text);
+			}
+			return (long) value;
+		}
+	}
+
+	/**
+	 * @return the next number (or numeric string) as an int
+	 */
+	public int nextInt() throws IOException {
+		long value = nextLong();
+		if (value != (int) value) {
+			throw syntaxError("Expected an int but was " + value);
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Skip the next value, including nested objects and arrays, without
+	 * materializing it.
+	 */
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			Token token = peek();
+			mPeeked = null;
+			switch (token) {
+			case BEGIN_OBJECT:
+			case BEGIN_ARRAY:
+				depth++;
+				break;
+			case END_OBJECT:
+			case END_ARRAY:
+				mDepth--;
+				depth--;
+				break;
+			case END_DOCUMENT:
+				throw syntaxError("Unexpected end of document");
+			default:
+				break;
+			}
+		} while (depth > 0);
+	}
+
+	/**
+	 * Read the next object into a JSONObject.
+	 */
+	public JSONObject nextJSONObject() throws IOException {
+		Object value = nextValue();
+		if (!(value instanceof JSONObject)) {
+			throw syntaxError("Expected an object but was " + value);
+		}
+		return (JSONObject) value;
+	}
+
+	/**
+	 * Read the next array into a JSONArray.
+	 */
+	public JSONArray nextJSONArray() throws IOException {
+		Object value = nextValue();
+		if (!(value instanceof JSONArray)) {
+			throw syntaxError("Expected an array but was " + value);
+		}
+		return (JSONArray) value;
+	}
+
+	/**
+	 * Read the next value the way org.json represents it: JSONObject,
+	 * JSONArray, String, Integer, Long, Double, Boolean or JSONObject.NULL.
+	 */
+	public Object nextValue() throws IOException {
+		try {
+			switch (peek()) {
+			case BEGIN_OBJECT: {
+				JSONObject object = new JSONObject();
+				beginObject();
+				while (hasNext()) {
+					String name = nextName();
+					object.put(name, nextValue());
+				}
+				endObject();
+				return object;
+			}
+			case BEGIN_ARRAY: {
+				JSONArray array = new JSONArray();
+				beginArray();
+				while (hasNext()) {
+					array.put(nextValue());
+				}
+				endArray();
+				return array;
+			}
+			case STRING:
+				return nextString();
+			case NUMBER:
+				return toNumber(nextString());
+			case BOOLEAN:
+				return Boolean.valueOf(nextBoolean());
+			case NULL:
+				nextNull();
+				return JSONObject.NULL;
+			default:
+				throw syntaxError("Expected a value but was " + peek());
+			}
+		} catch (JSONException e) {
+			throw syntaxError(e.getMessage());
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		mPeeked = null;
+		mDepth = 0;
+		mIn.close();
+	}
+
+	private Token doPeek() throws IOException {
+		int scope = mStack[mDepth - 1];
+		int c;
+		switch (scope) {
+		case EMPTY_ARRAY:
+			mStack[mDepth - 1] = NONEMPTY_ARRAY;
+			c = nextNonWhitespace();
+			if (c == ']') {
+				return Token.END_ARRAY;
+			}
+			mPos--;
+			return readValue();
+		case NONEMPTY_ARRAY:
+			c = nextNonWhitespace();
+			if (c == ']') {
+				return Token.END_ARRAY;
+			}
+			if (c != ',') {
+				throw syntaxError("Unterminated array");
+			}
+			return readValue();
+		case EMPTY_OBJECT:
+		case NONEMPTY_OBJECT:
+			c = nextNonWhitespace();
+			if (c == '}') {
+				return Token.END_OBJECT;
+			}
+			if (scope == NONEMPTY_OBJECT) {
+				if (c != ',') {
+					throw syntaxError("Unterminated object");
+				}
+				c = nextNonWhitespace();
+			}
+			if (c != '"') {
+				throw syntaxError("Expected a name");
+			}
+			mStack[mDepth - 1] = DANGLING_NAME;
+			mPeekedText = readString();
+			return Token.NAME;
+		case DANGLING_NAME:
+			mStack[mDepth - 1] = NONEMPTY_OBJECT;
+			if (nextNonWhitespace() != ':') {
+				throw syntaxError("Expected ':'");
+			}
+			return readValue();
+		case EMPTY_DOCUMENT:
+			mStack[mDepth - 1] = NONEMPTY_DOCUMENT;
+			Token token = readValue();
+			if (mErrorDetection && token == Token.BOOLEAN && mPeekedText.equals("false")) {
+				// some endpoints answer a bare false on failure
+				throw new MobliError("request failed");
+			}
+			return token;
+		default:
+			if (nextNonWhitespaceOrEnd() != -1) {
+				throw syntaxError("Expected end of document");
+			}
+			return Token.END_DOCUMENT;
+		}
+	}
+
+	private Token readValue() throws IOException {
+		int c = nextNonWhitespace();
+		switch (c) {
+		case '{':
+			push(EMPTY_OBJECT);
+			return Token.BEGIN_OBJECT;
+		case '[':
+			push(EMPTY_ARRAY);
+			return Token.BEGIN_ARRAY;
+		case '"':
+			mPeekedText = readString();
+			return Token.STRING;
+		case 't':
+			readLiteral("true");
+			mPeekedText = "true";
+			return Token.BOOLEAN;
+		case 'f':
+			readLiteral("false");
+			mPeekedText = "false";
+			return Token.BOOLEAN;
+		case 'n':
+			readLiteral("null");
+			mPeekedText = null;
+			return Token.NULL;
+		default:
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				mPos--;
+				mPeekedText = readNumber();
+				return Token.NUMBER;
+			}
+			throw syntaxError("Unexpected character '" + (char) c + "'");
+		}
+	}
+
+	/**
+	 * Read a string whose opening quote has been consumed.
+	 */
+	private String readString() throws IOException {
+		mText.setLength(0);
+		while (true) {
+			int start = mPos;
+			while (mPos < mLimit) {
+				char c = mBuffer[mPos++];
+				if (c == '"') {
+					mText.append(mBuffer, start, mPos - start - 1);
+					return mText.toString();
+				}
+				if (c == '\\') {
+					mText.append(mBuffer, start, mPos - start - 1);
+					mText.append(readEscape());
+					start = mPos;
+				}
+			}
+			mText.append(mBuffer, start, mPos - start);
+			if (!fill()) {
+				throw syntaxError("Unterminated string");
+			}
+		}
+	}
+
+	private char readEscape() throws IOException {
+		int c = nextChar();
+		switch (c) {
+		case 'u': {
+			int value = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(nextChar(), 16);
+				if (digit < 0) {
+					throw syntaxError("Invalid unicode escape");
+				}
+				value = (value << 4) | digit;
+			}
+			return (char) value;
+		}
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case '"':
+		case '\\':
+		case '/':
+			return (char) c;
+		default:
+			throw syntaxError("Invalid escape sequence");
+		}
+	}
+
+	private String readNumber() throws IOException {
+		mText.setLength(0);
+		while (true) {
+			while (mPos < mLimit) {
+				char c = mBuffer[mPos];
+				if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E') {
+					mText.append(c);
+					mPos++;
+				} else {
+					return mText.toString();
+				}
+			}
+			if (!fill()) {
+				return mText.toString();
+			}
+		}
+	}
+
+	private void readLiteral(String literal) throws IOException {
+		// the first character has been consumed already
+		for (int i = 1; i < literal.length(); i++) {
+			if (nextChar() != literal.charAt(i)) {
+				throw syntaxError("Expected " + literal);
+			}
+		}
+	}
+
+	private String nextNumberText() throws IOException {
+		Token token = peek();
+		if (token != Token.NUMBER && token != Token.STRING) {
+			throw syntaxError("Expected a number but was " + token);
+		}
+		mPeeked = null;
+		return mPeekedText;
+	}
+
+	private double nextDoubleOf(String text) throws IOException {
+		try {
+			return Double.parseDouble(text);
+		} catch (NumberFormatException e) {
+			throw syntaxError("Expected a number but was " + text);
+		}
+	}
+
+	private Object toNumber(String text) throws IOException {
+		if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+			try {
+				long value = Long.parseLong(text);
+				if (value == (int) value) {
+					return Integer.valueOf((int) value);
+				}
+				return Long.valueOf(value);
+			} catch (NumberFormatException e) {
+				// too large for a long
+			}
+		}
+		return Double.valueOf(nextDoubleOf(text));
+	}
+
+	private void expect(Token expected) throws IOException {
+		Token token = peek();
+		if (token != expected) {
+			throw syntaxError("Expected " + expected + " but was " + token);
+		}
+	}
+
+	private void push(int scope) {
+		if (mDepth == mStack.length) {
+			int[] stack = new int[mDepth * 2];
+			System.arraycopy(mStack, 0, stack, 0, mDepth);
+			mStack = stack;
+		}
+		mStack[mDepth++] = scope;
+	}
+
+	private int nextChar() throws IOException {
+		if (mPos == mLimit && !fill()) {
+			throw syntaxError("Unexpected end of document");
+		}
+		return mBuffer[mPos++];
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		int c = nextNonWhitespaceOrEnd();
+		if (c == -1) {
+			throw syntaxError("Unexpected end of document");
+		}
+		return c;
+	}
+
+	private int nextNonWhitespaceOrEnd() throws IOException {
+		while (mPos < mLimit || fill()) {
+			char c = mBuffer[mPos++];
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+				return c;
+			}
+		}
+		return -1;
+	}
+
+	private boolean fill() throws IOException {
+		mPos = 0;
+		mLimit = 0;
+		int n = mIn.read(mBuffer, 0, mBuffer.length);
+		if (n <= 0) {
+			return false;
+		}
+		mLimit = n;
+		return true;
+	}
+
+	private IOException syntaxError(String message) {
+		return new IOException("Malformed JSON: " + message);
+	}
+
+	static boolean isErrorField(String name) {
+		return name.equals("error") || name.equals("error_code") || name.equals("error_msg") || name.equals("error_reason");
+	}
+
+	/**
+	 * Read the error fields remaining in the top-level object, whose first
+	 * error field name has just been consumed, and turn them into the error
+	 * Util.parseJson would have thrown.
+	 */
+	private MobliError readErrorEnvelope(String firstName) throws IOException {
+		JSONObject envelope = new JSONObject();
+		try {
+			envelope.put(firstName, nextValue());
+			while (hasNext()) {
+				String name = mPeekedText;
+				mPeeked = null;
+				if (isErrorField(name)) {
+					envelope.put(name, nextValue());
+				} else {
+					skipValue();
+				}
+			}
+			MobliError error = Util.toMobliError(envelope);
+			return error != null ? error : new MobliError("request failed");
+		} catch (JSONException e) {
+			throw syntaxError(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,409 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Lazily parsed JSON response object.
+ *
+ * Parsing only scans the top level of the response, recording where the
+ * value of each member starts and ends; nested objects and arrays are skipped
+ * over without being built. A value is parsed the first time it is accessed,
+ * and kept for later accesses. When a projection is given, only the listed
+ * members are recorded at all.
+ *
+ * The error fields recognized by Util.parseJson are always recorded, so that
+ * an error envelope is identified by the scan itself.
+ *
+ * Instances are not thread-safe.
+ *
+ * @see Util#parseJsonLazily(String, String...)
+ */
+public class JsonResponse {
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	private final String mJson;
+	private String[] mNames = new String[INITIAL_CAPACITY];
+	private int[] mStarts = new int[INITIAL_CAPACITY];
+	private int[] mEnds = new int[INITIAL_CAPACITY];
+	private Object[] mValues = new Object[INITIAL_CAPACITY];
+	private int mCount;
+	private boolean mHasErrorFields;
+
+	/**
+	 * Scan the top level of a JSON object.
+	 *
+	 * @param json
+	 *            - the JSON object text
+	 * @param projection
+	 *            - names of the members to keep, or null to keep them all
+	 * @throws JSONException
+	 *             - if the text is not a JSON object
+	 */
+	public JsonResponse(String json, Set<String> projection) throws JSONException {
+		mJson = json;
+		scan(projection);
+	}
+
+	/**
+	 * Scan the top level of a JSON object, keeping only the given members.
+	 */
+	public JsonResponse(String json, String... projection) throws JSONException {
+		this(json, projection.length > 0 ? new HashSet<String>(Arrays.asList(projection)) : null);
+	}
+
+	/**
+	 * @return whether the response carries one of the error fields set by the
+	 *         server
+	 */
+	public boolean isError() {
+		return mHasErrorFields;
+	}
+
+	/**
+	 * @return the error described by the response, or null if there is none
+	 */
+	public MobliError getError() throws JSONException {
+		if (!mHasErrorFields) {
+			return null;
+		}
+		JSONObject envelope = new JSONObject();
+		for (int i = 0; i < mCount; i++) {
+			if (JsonPullParser.isErrorField(mNames[i])) {
+				envelope.put(mNames[i], value(i));
+			}
+		}
+		return Util.toMobliError(envelope);
+	}
+
+	public boolean has(String name) {
+		return indexOf(name) >= 0;
+	}
+
+	public boolean isNull(String name) throws JSONException {
+		int index = indexOf(name);
+		return index < 0 || value(index) == JSONObject.NULL;
+	}
+
+	/**
+	 * @return the names of the recorded members, in document order
+	 */
+	public List<String> names() {
+		List<String> names = new ArrayList<String>(mCount);
+		for (int i = 0; i < mCount; i++) {
+			names.add(mNames[i]);
+		}
+		return names;
+	}
+
+	/**
+	 * @return the value of the given member, parsed the first time, or null
+	 *         if there is no such member
+	 */
+	public Object opt(String name) throws JSONException {
+		int index = indexOf(name);
+		return index >= 0 ? value(index) : null;
+	}
+
+	public Object get(String name) throws JSONException {
+		int index = indexOf(name);
+		if (index < 0) {
+			throw new JSONException("No value for " + name);
+		}
+		return value(index);
+	}
+
+	public String getString(String name) throws JSONException {
+		Object value = get(name);
+		return value instanceof String ? (String) value : String.valueOf(value);
+	}
+
+	public String optString(String name, String fallback) throws JSONException {
+		Object value = opt(name);
+		if (value == null || value == JSONObject.NULL) {
+			return fallback;
+		}
+		return value instanceof String ? (String) value : String.valueOf(value);
+	}
+
+	public long getLong(String name) throws JSONException {
+		Object value = get(name);
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		try {
+			return Long.parseLong(String.valueOf(value));
+		} catch (NumberFormatException e) {
+			throw new JSONException("Value " + value + " of " + name + " is not a number");
+		}
+	}
+
+	public int getInt(String name) throws JSONException {
+		return (int) getLong(name);
+	}
+
+	public boolean getBoolean(String name) throws JSONException {
+		Object value = get(name);
+		if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue();
+		}
+		if ("true".equals(value)) {
+			return true;
+		}
+		if ("false".equals(value)) {
+			return false;
+		}
+		throw new JSONException("Value " + value + " of " + name + " is not a boolean");
+	}
+
+	public JSONObject getJSONObject(String name) throws JSONException {
+		Object value = get(name);
+		if (!(value instanceof JSONObject)) {
+			throw new JSONException("Value of " + name + " is not an object");
+		}
+		return (JSONObject) value;
+	}
+
+	public JSONArray getJSONArray(String name) throws JSONException {
+		Object value = get(name);
+		if (!(value instanceof JSONArray)) {
+			throw new JSONException("Value of " + name + " is not an array");
+		}
+		return (JSONArray) value;
+	}
+
+	/**
+	 * @return the raw JSON text of the given member, without parsing it, or
+	 *         null if there is no such member
+	 */
+	public String getRaw(String name) {
+		int index = indexOf(name);
+		return index >= 0 ? mJson.substring(mStarts[index], mEnds[index]) : null;
+	}
+
+	/**
+	 * @return a JSONObject holding the recorded members
+	 */
+	public JSONObject toJSONObject() throws JSONException {
+		JSONObject json = new JSONObject();
+		for (int i = 0; i < mCount; i++) {
+			json.put(mNames[i], value(i));
+		}
+		return json;
+	}
+
+	private int indexOf(String name) {
+		// responses have few top-level members: a linear scan beats hashing
+		for (int i = 0; i < mCount; i++) {
+			if (mNames[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private Object value(int index) throws JSONException {
+		Object value = mValues[index];
+		if (value == null) {
+			int start = mStarts[index];
+			int end = mEnds[index];
+			if (mJson.charAt(start) == '"' && !hasEscape(mJson, start, end)) {
+				value = mJson.substring(start + 1, end - 1);
+			} else {
+				value = new JSONTokener(mJson.substring(start, end)).nextValue();
+			}
+			mValues[index] = value;
+		}
+		return value;
+	}
+
+	private void scan(Set<String> projection) throws JSONException {
+		String json = mJson;
+		int length = json.length();
+		int pos = skipWhitespace(json, 0);
+		if (pos >= length || json.charAt(pos) != '{') {
+			throw new JSONException("Expected a JSON object");
+		}
+		pos = skipWhitespace(json, pos + 1);
+		if (pos < length && json.charAt(pos) == '}') {
+			checkEnd(json, pos + 1);
+			return;
+		}
+		while (true) {
+			if (pos >= length || json.charAt(pos) != '"') {
+				throw new JSONException("Expected a name at " + pos);
+			}
+			int nameEnd = skipString(json, pos);
+			String name = unquote(json, pos, nameEnd);
+			pos = skipWhitespace(json, nameEnd);
+			if (pos >= length || json.charAt(pos) != ':') {
+				throw new JSONException("Expected ':' at " + pos);
+			}
+			int valueStart = skipWhitespace(json, pos + 1);
+			int valueEnd = skipValue(json, valueStart);
+
+			boolean error = JsonPullParser.isErrorField(name);
+			if (error) {
+				mHasErrorFields = true;
+			}
+			if (error || projection == null || projection.contains(name)) {
+				add(name, valueStart, valueEnd);
+			}
+
+			pos = skipWhitespace(json, valueEnd);
+			if (pos >= length) {
+				throw new JSONException("Unterminated object");
+			}
+			char c = json.charAt(pos);
+			if (c == '}') {
+				checkEnd(json, pos + 1);
+				return;
+			}
+			if (c != ',') {
+				throw new JSONException("Expected ',' or '}' at " + pos);
+			}
+			pos = skipWhitespace(json, pos + 1);
+		}
+	}
+
+	private void add(String name, int start, int end) {
+		if (mCount == mNames.length) {
+			int capacity = mCount * 2;
+			String[] names = new String[capacity];
+			System.arraycopy(mNames, 0, names, 0, mCount);
+			mNames = names;
+			int[] starts = new int[capacity];
+			System.arraycopy(mStarts, 0, starts, 0, mCount);
+			mStarts = starts;
+			int[] ends = new int[capacity];
+			System.arraycopy(mEnds, 0, ends, 0, mCount);
+			mEnds = ends;
+			Object[] values = new Object[capacity];
+			System.arraycopy(mValues, 0, values, 0, mCount);
+			mValues = values;
+		}
+		// a repeated member keeps its last value, as in JSONObject
+		int index = indexOf(name);
+		if (index < 0) {
+			index = mCount++;
+			mNames[index] = name;
+		}
+		mStarts[index] = start;
+		mEnds[index] = end;
+		mValues[index] = null;
+	}
+
+	private static void checkEnd(String json, int pos) throws JSONException {
+		if (skipWhitespace(json, pos) != json.length()) {
+			throw new JSONException("Unexpected text after the object at " + pos);
+		}
+	}
+
+	private static int skipWhitespace(String json, int pos) {
+		int length = json.length();
+		while (pos < length) {
+			char c = json.charAt(pos);
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * @return the index following the string starting at the quote at pos
+	 */
+	private static int skipString(String json, int pos) throws JSONException {
+		int length = json.length();
+		for (int i = pos + 1; i < length; i++) {
+			char c = json.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '"') {
+				return i + 1;
+			}
+		}
+		throw new JSONException("Unterminated string at " + pos);
+	}
+
+	/**
+	 * @return the index following the value starting at pos
+	 */
+	private static int skipValue(String json, int pos) throws JSONException {
+		int length = json.length();
+		if (pos >= length) {
+			throw new JSONException("Expected a value at " + pos);
+		}
+		char c = json.charAt(pos);
+		if (c == '"') {
+			return skipString(json, pos);
+		}
+		if (c == '{' || c == '[') {
+			int depth = 0;
+			for (int i = pos; i < length; i++) {
+				c = json.charAt(i);
+				if (c == '"') {
+					i = skipString(json, i) - 1;
+				} else if (c == '{' || c == '[') {
+					depth++;
+				} else if ((c == '}' || c == ']') && --depth == 0) {
+					return i + 1;
+				}
+			}
+			throw new JSONException("Unterminated value at " + pos);
+		}
+		int i = pos;
+		while (i < length) {
+			c = json.charAt(i);
+			if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+				break;
+			}
+			i++;
+		}
+		if (i == pos) {
+			throw new JSONException("Expected a value at " + pos);
+		}
+		return i;
+	}
+
+	private static boolean hasEscape(String json, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (json.charAt(i) == '\\') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String unquote(String json, int start, int end) throws JSONException {
+		if (!hasEscape(json, start, end)) {
+			return json.substring(start + 1, end - 1);
+		}
+		return (String) new JSONTokener(json.substring(start, end)).nextValue();
+	}
+}
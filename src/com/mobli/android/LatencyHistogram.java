@@ -0,0 +1,190 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in microseconds, with buckets of a fixed relative
+ * width in the manner of HdrHistogram: values below 64 are counted exactly,
+ * and each power of two above is split into 32 buckets, so that percentiles
+ * are within about 3% of the recorded values, up to about 19 hours.
+ *
+ * Recording is lock-free and allocation-free; the buckets (8 KB) are
+ * allocated with the histogram.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** values below are counted in a bucket of their own */
+	private static final int EXACT = SUB_BUCKETS * 2;
+	private static final int EXACT_BITS = SUB_BUCKET_BITS + 1;
+	private static final int MAX_BITS = 36;
+
+	/** largest value recorded, greater values being recorded as it */
+	public static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	static final int BUCKET_COUNT = EXACT + (MAX_BITS - EXACT_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mSum = new AtomicLong();
+
+	/**
+	 * @param micros
+	 *            - duration in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		} else if (micros > MAX_VALUE) {
+			micros = MAX_VALUE;
+		}
+		mCounts.incrementAndGet(index(micros));
+		mSum.addAndGet(micros);
+	}
+
+	/**
+	 * @return a copy of the counts, unaffected by later recordings
+	 */
+	public Snapshot snapshot() {
+		long[] counts = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			counts[i] = mCounts.get(i);
+		}
+		return new Snapshot(counts, mSum.get());
+	}
+
+	static int index(long value) {
+		if (value < EXACT) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		return EXACT + (magnitude - EXACT_BITS) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	static long lowestValue(int index) {
+		if (index < EXACT) {
+			return index;
+		}
+		int magnitude = (index - EXACT) / SUB_BUCKETS + EXACT_BITS;
+		int sub = (index - EXACT) % SUB_BUCKETS;
+		return (long) (sub + SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+	}
+
+	static long highestValue(int index) {
+		return index + 1 < BUCKET_COUNT ? lowestValue(index + 1) - 1 : MAX_VALUE;
+	}
+
+	/**
+	 * Counts of a histogram at a point in time, or between two points in
+	 * time (see since).
+	 */
+	public static final class Snapshot {
+
+		private final long[] mCounts;
+		private final long mSum;
+		private final long mCount;
+
+		Snapshot(long[] counts, long sum) {
+			mCounts = counts;
+			mSum = sum;
+			long count = 0;
+			for (long c : counts) {
+				count += c;
+			}
+			mCount = count;
+		}
+
+		/**
+		 * @return the number of recorded values
+		 */
+		public long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * @return the mean of the recorded values, or 0 if there are none
+		 */
+		public double getMean() {
+			return mCount > 0 ? (double) mSum / mCount : 0;
+		}
+
+		/**
+		 * @return the smallest recorded value, to the precision of the
+		 *         histogram, or 0 if there are none
+		 */
+		public long getMin() {
+			for (int i = 0; i < mCounts.length; i++) {
+				if (mCounts[i] > 0) {
+					return lowestValue(i);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @return the largest recorded value, to the precision of the
+		 *         histogram, or 0 if there are none
+		 */
+		public long getMax() {
+			for (int i = mCounts.length - 1; i >= 0; i--) {
+				if (mCounts[i] > 0) {
+					return highestValue(i);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * @param percentile
+		 *            - percentile between 0 and 100, e.g. 99.9
+		 * @return the value below or at which the given percentage of the
+		 *         recorded values fall, or 0 if there are none
+		 */
+		public long getValueAtPercentile(double percentile) {
+			if (percentile < 0 || percentile > 100) {
+				throw new IllegalArgumentException("percentile must be between 0 and 100");
+			}
+			if (mCount == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+			long seen = 0;
+			for (int i = 0; i < mCounts.length; i++) {
+				seen += mCounts[i];
+				if (seen >= rank) {
+					return highestValue(i);
+				}
+			}
+			return getMax();
+		}
+
+		/**
+		 * @return the counts recorded after the given earlier snapshot of the
+		 *         same histogram
+		 */
+		public Snapshot since(Snapshot earlier) {
+			long[] counts = new long[mCounts.length];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = mCounts[i] - earlier.mCounts[i];
+			}
+			return new Snapshot(counts, mSum - earlier.mSum);
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process HttpTransport answering requests with fixtures instead of
+ * going to the network, so that the whole request path of the SDK can be
+ * exercised and measured offline.
+ *
+ * Fixtures are matched by HTTP method and URL prefix (without the query
+ * string); the longest matching prefix wins. Unmatched requests get a 404
+ * with a Mobli error body. Request bodies are written to a discarding
+ * stream, so their encoding cost is part of the measurements.
+ *
+ * For example:
+ *
+ * <pre>
+ * LoopbackTransport loopback = new LoopbackTransport();
+ * loopback.addFixture(&quot;GET&quot;, &quot;https://api.mobli.com/me&quot;, new LoopbackTransport.Fixture(200, &quot;{\&quot;id\&quot;:1}&quot;).setLatency(50));
+ * Util.setTransport(loopback);
+ * </pre>
+ */
+public class LoopbackTransport implements HttpTransport {
+
+	private final ArrayList<Route> mRoutes = new ArrayList<Route>();
+	private final AtomicLong mRequestCount = new AtomicLong();
+	private final AtomicLong mBytesReceived = new AtomicLong();
+
+	/**
+	 * Answer the requests with the given method whose URL starts with the
+	 * given prefix. Replaces the fixture previously added for the same
+	 * method and prefix.
+	 *
+	 * @param method
+	 *            - "GET" or "POST", or null for any method
+	 */
+	public synchronized LoopbackTransport addFixture(String method, String urlPrefix, Fixture fixture) {
+		for (int i = 0; i < mRoutes.size(); i++) {
+			Route route = mRoutes.get(i);
+			if (route.mUrlPrefix.equals(urlPrefix) && (method == null ? route.mMethod == null : method.equals(route.mMethod))) {
+				mRoutes.set(i, new Route(method, urlPrefix, fixture));
+				return this;
+			}
+		}
+		mRoutes.add(new Route(method, urlPrefix, fixture));
+		return this;
+	}
+
+	public synchronized void clearFixtures() {
+		mRoutes.clear();
+	}
+
+	/**
+	 * @return the number of requests executed
+	 */
+	public long getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	/**
+	 * @return the number of request body bytes received
+	 */
+	public long getBytesReceived() {
+		return mBytesReceived.get();
+	}
+
+	@Override
+	public HttpTransport.Call newCall(TransportRequest request) {
+		return new Call(request);
+	}
+
+	private synchronized Fixture find(String method, String url) {
+		int query = url.indexOf('?');
+		if (query != -1) {
+			url = url.substring(0, query);
+		}
+		Route best = null;
+		for (Route route : mRoutes) {
+			if ((route.mMethod == null || route.mMethod.equals(method)) && url.startsWith(route.mUrlPrefix)
+					&& (best == null || route.mUrlPrefix.length() > best.mUrlPrefix.length())) {
+				best = route;
+			}
+		}
+		return best != null ? best.mFixture : null;
+	}
+
+	/**
+	 * A canned response.
+	 */
+	public static class Fixture {
+
+		private final int mStatusCode;
+		private final byte[] mBody;
+		private final HashMap<String, String> mHeaders = new HashMap<String, String>();
+		private long mLatency;
+
+		/**
+		 * @param body
+		 *            - the response body, sent in UTF-8
+		 */
+		public Fixture(int statusCode, String body) {
+			this(statusCode, Util.bytes(body));
+		}
+
+		/**
+		 * @param body
+		 *            - the response body as sent over the wire, e.g. gzipped
+		 *            along with a Content-Encoding header
+		 */
+		public Fixture(int statusCode, byte[] body) {
+			mStatusCode = statusCode;
+			mBody = body;
+		}
+
+		public Fixture setHeader(String name, String value) {
+			mHeaders.put(name.toLowerCase(), value);
+			return this;
+		}
+
+		/**
+		 * Delay the response, as the round trip to a server would.
+		 *
+		 * @param millis
+		 *            - time between the request and the response headers
+		 */
+		public Fixture setLatency(long millis) {
+			mLatency = millis;
+			return this;
+		}
+
+		public int getStatusCode() {
+			return mStatusCode;
+		}
+
+		public long getLatency() {
+			return mLatency;
+		}
+	}
+
+	private static final class Route {
+
+		final String mMethod;
+		final String mUrlPrefix;
+		final Fixture mFixture;
+
+		Route(String method, String urlPrefix, Fixture fixture) {
+			mMethod = method;
+			mUrlPrefix = urlPrefix;
+			mFixture = fixture;
+		}
+	}
+
+	private class Call implements HttpTransport.Call {
+
+		private final TransportRequest mRequest;
+		private volatile boolean mCancelled;
+
+		Call(TransportRequest request) {
+			mRequest = request;
+		}
+
+		@Override
+		public TransportResponse execute() throws IOException {
+			checkCancelled();
+			mRequestCount.incrementAndGet();
+			TransportRequest.Body body = mRequest.getBody();
+			if (body != null) {
+				body.writeTo(new OutputStream() {
+					@Override
+					public void write(int b) {
+						mBytesReceived.incrementAndGet();
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+						mBytesReceived.addAndGet(len);
+					}
+				});
+			}
+
+			Fixture fixture = find(mRequest.getMethod(), mRequest.getUrl());
+			if (fixture == null) {
+				fixture = new Fixture(404, "{\"error\":{\"message\":\"No fixture for " + mRequest.getMethod() + " "
+						+ mRequest.getUrl().replace("\"", "\\\"") + "\",\"type\":\"LoopbackTransport\"}}");
+			}
+			if (fixture.mLatency > 0) {
+				long wakeUp = System.currentTimeMillis() + fixture.mLatency;
+				synchronized (this) {
+					for (long remaining = fixture.mLatency; remaining > 0 && !mCancelled; remaining = wakeUp - System.currentTimeMillis()) {
+						try {
+							wait(remaining);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException("Request interrupted");
+						}
+					}
+				}
+			}
+			checkCancelled();
+			return new Response(fixture);
+		}
+
+		@Override
+		public void cancel() {
+			mCancelled = true;
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+
+		private void checkCancelled() throws InterruptedIOException {
+			if (mCancelled) {
+				throw new InterruptedIOException("Request aborted");
+			}
+		}
+	}
+
+	private static final class Response implements TransportResponse {
+
+		private final Fixture mFixture;
+		private final InputStream mBody;
+
+		Response(Fixture fixture) {
+			mFixture = fixture;
+			mBody = new ByteArrayInputStream(fixture.mBody);
+		}
+
+		@Override
+		public int getStatusCode() {
+			return mFixture.mStatusCode;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return mFixture.mHeaders.get(name.toLowerCase());
+		}
+
+		@Override
+		public InputStream getBody() {
+			return mBody;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory cache of GET responses, bounded by size in bytes and evicting the
+ * least recently used responses first.
+ *
+ * Only paths matching a rule are cached. A rule gives the time to live of the
+ * responses under a path prefix, and optionally a stale-while-revalidate
+ * window: for that long after expiry, the stale response is still returned
+ * immediately while a fresh copy is fetched in the background.
+ *
+ * Responses are keyed on the canonical URL of the request without its access
+ * token, so that cached responses survive token refreshes. The cache is
+ * cleared when the Mobli session is logged out.
+ *
+ * @see Mobli#setMemoryCache(MemoryResponseCache)
+ */
+public class MemoryResponseCache {
+
+	/** Approximate fixed memory cost of an entry, in bytes */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final long mMaxBytes;
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final List<Rule> mRules = new ArrayList<Rule>();
+	private final Set<String> mRevalidating = new HashSet<String>();
+	private long mSize;
+
+	private long mHitCount;
+	private long mStaleHitCount;
+	private long mMissCount;
+	private long mEvictionCount;
+
+	/**
+	 * @param maxBytes
+	 *            - maximum approximate memory used by cached responses
+	 */
+	public MemoryResponseCache(long maxBytes) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Cache responses of the paths starting with the given prefix. When
+	 * several rules match a path, the one with the longest prefix applies.
+	 *
+	 * @param pathPrefix
+	 *            - relative path prefix, e.g. "users/" or "channel"; "" matches
+	 *            all paths
+	 * @param ttl
+	 *            - time a response stays fresh, in milliseconds
+	 * @param staleWhileRevalidate
+	 *            - time after expiry during which the stale response is served
+	 *            while being refreshed in the background, in milliseconds
+	 */
+	public synchronized void addRule(String pathPrefix, long ttl, long staleWhileRevalidate) {
+		if (ttl <= 0 || staleWhileRevalidate < 0) {
+			throw new IllegalArgumentException("invalid cache rule for " + pathPrefix);
+		}
+		mRules.add(new Rule(normalizePath(pathPrefix), ttl, staleWhileRevalidate));
+	}
+
+	/**
+	 * Remove all cached responses. Rules and counters are kept.
+	 */
+	public synchronized void clear() {
+		mEntries.clear();
+		mSize = 0;
+	}
+
+	public synchronized long size() {
+		return mSize;
+	}
+
+	public long getMaxSize() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * @return number of lookups answered with a fresh response
+	 */
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return number of lookups answered with a stale response while it is
+	 *         revalidated
+	 */
+	public synchronized long getStaleHitCount() {
+		return mStaleHitCount;
+	}
+
+	/**
+	 * @return number of lookups of cacheable paths which went to the network
+	 */
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return number of responses evicted to make room for others
+	 */
+	public synchronized long getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	/**
+	 * @return the rule applying to the given path, or null if its responses
+	 *         are not cached
+	 */
+	synchronized Rule getRule(String relativePath) {
+		String path = normalizePath(relativePath);
+		Rule match = null;
+		for (Rule rule : mRules) {
+			if (path.startsWith(rule.mPathPrefix) && (match == null || rule.mPathPrefix.length() > match.mPathPrefix.length())) {
+				match = rule;
+			}
+		}
+		return match;
+	}
+
+	/**
+	 * Look up a response, updating the counters.
+	 *
+	 * @return the cached entry if it is fresh or within its stale window, null
+	 *         otherwise
+	 */
+	synchronized Entry get(String key, long now) {
+		Entry entry = mEntries.get(key);
+		if (entry != null) {
+			if (now < entry.mExpires) {
+				mHitCount++;
+				return entry;
+			}
+			if (now < entry.mStaleUntil) {
+				mStaleHitCount++;
+				return entry;
+			}
+			remove(key);
+		}
+		mMissCount++;
+		return null;
+	}
+
+	synchronized void put(String key, String body, Rule rule, long now) {
+		Entry entry = new Entry(body, now + rule.mTtl, now + rule.mTtl + rule.mStaleWhileRevalidate, sizeOf(key, body));
+		if (entry.mSize > mMaxBytes) {
+			remove(key);
+			return;
+		}
+		Entry previous = mEntries.put(key, entry);
+		if (previous != null) {
+			mSize -= previous.mSize;
+		}
+		mSize += entry.mSize;
+		trimToSize();
+	}
+
+	/**
+	 * Mark a key as being revalidated.
+	 *
+	 * @return false if a revalidation of this key is already in progress
+	 */
+	synchronized boolean startRevalidation(String key) {
+		return mRevalidating.add(key);
+	}
+
+	synchronized void endRevalidation(String key) {
+		mRevalidating.remove(key);
+	}
+
+	private void remove(String key) {
+		Entry entry = mEntries.remove(key);
+		if (entry != null) {
+			mSize -= entry.mSize;
+		}
+	}
+
+	private void trimToSize() {
+		Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+		while (mSize > mMaxBytes && it.hasNext()) {
+			mSize -= it.next().getValue().mSize;
+			it.remove();
+			mEvictionCount++;
+		}
+	}
+
+	private static int sizeOf(String key, String body) {
+		// Java strings use two bytes per char
+		return ENTRY_OVERHEAD + 2 * (key.length() + body.length());
+	}
+
+	private static String normalizePath(String path) {
+		return path.startsWith("/") ? path.substring(1) : path;
+	}
+
+	static final class Rule {
+
+		final String mPathPrefix;
+		final long mTtl;
+		final long mStaleWhileRevalidate;
+
+		Rule(String pathPrefix, long ttl, long staleWhileRevalidate) {
+			mPathPrefix = pathPrefix;
+			mTtl = ttl;
+			mStaleWhileRevalidate = staleWhileRevalidate;
+		}
+	}
+
+	static final class Entry {
+
+		final String mBody;
+		final long mExpires;
+		final long mStaleUntil;
+		final int mSize;
+
+		Entry(String body, long expires, long staleUntil, int size) {
+			mBody = body;
+			mExpires = expires;
+			mStaleUntil = staleUntil;
+			mSize = size;
+		}
+
+		boolean isFresh(long now) {
+			return now < mExpires;
+		}
+	}
+}
@@ -26,7 +26,21 @@ package com.mobli.android;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONException;
 
 import android.Manifest;
 import android.app.Activity;
@@ -54,6 +68,7 @@ public class Mobli {
 	public static final String TOKEN = "access_token";
 	public static final String EXPIRES = "expires_in";
 	public static final String USER_ID = "user_id";
+	public static final String SCOPE = "scope";
 
 	public static final int FORCE_DIALOG_AUTH = -1;
 
@@ -62,14 +77,23 @@ public class Mobli {
 	protected static String DIALOG_AUTHORIZE_URL = AUTHORIZE_BASE_URL + "/authorize";
 	protected static String API_BASE_URL = "https://api.mobli.com/";
 
-	private String mAccessToken = null;
-	private long mAccessExpires = 0;
+	private final AtomicReference<Session> mSession = new AtomicReference<Session>(Session.EMPTY);
+	private final CopyOnWriteArrayList<SessionListener> mSessionListeners = new CopyOnWriteArrayList<SessionListener>();
 	private String mClientId;
 	private String mClientSecret;
-	private String mUserId;
 
 	private DialogListener mAuthDialogListener;
 
+	private final RequestCoalescer mRequestCoalescer = new RequestCoalescer();
+	private volatile MemoryResponseCache mMemoryCache;
+	private volatile DiskResponseCache mDiskCache;
+	private volatile RetryPolicy mRetryPolicy = new RetryPolicy();
+	private volatile TokenManager mTokenManager;
+	private SessionStore mSessionStore;
+
+	private volatile Interceptor[] mInterceptors = { new AccessTokenInterceptor(), Interceptors.METHOD_OVERRIDE,
+			Interceptors.DECODE_ACCESS_TOKEN, Interceptors.DEFAULT_HEADERS };
+
 	/**
 	 * Constructor for Mobli object.
 	 * 
@@ -157,10 +181,10 @@ public class Mobli {
 	 *            A list of permissions required for this application. If you do
 	 *            not require any permissions, pass an empty String array.
 	 */
-	private void startDialogAuth(Activity activity, String[] permissions) {
+	private void startDialogAuth(Activity activity, final String[] permissions) {
 		Bundle params = new Bundle();
 		if (permissions.length > 0) {
-			params.putString("scope", TextUtils.join(" ", permissions));
+			params.putString(SCOPE, TextUtils.join(" ", permissions));
 		}
 		CookieSyncManager.createInstance(activity);
 		dialog(activity, params, new DialogListener() {
@@ -168,11 +192,15 @@ public class Mobli {
 			public void onComplete(Bundle values) {
 				// ensure any cookies set by the dialog are saved
 				CookieSyncManager.getInstance().sync();
-				setAccessToken(values.getString(TOKEN));
-				setAccessExpiresIn(values.getString(EXPIRES));
-				setUserId(values.getString(USER_ID));
-				if (isSessionValid()) {
-					Util.logd("Mobli-authorize", "Login Success! access_token=" + getAccessToken() + " expires=" + getAccessExpires());
+				String expiresIn = values.getString(EXPIRES);
+				long now = System.currentTimeMillis();
+				String scope = values.getString(SCOPE);
+				Session session = new Session(values.getString(TOKEN), expiresIn != null ? Session.expiresAt(expiresIn, now)
+						: getAccessExpires(), values.getString(USER_ID), scope != null ? scope : TextUtils.join(" ", permissions));
+				setSession(session);
+				if (session.isValid(now)) {
+					Util.logd("Mobli-authorize", "Login Success! access_token=" + session.getAccessToken() + " expires="
+							+ session.getAccessExpires());
 					mAuthDialogListener.onComplete(values);
 				} else {
 					mAuthDialogListener.onMobliError(new MobliError("Failed to receive access token."));
@@ -198,7 +226,8 @@ public class Mobli {
 
 	/**
 	 * Invalidate the current user session by removing the access token in
-	 * memory and clearing the browser cookie.
+	 * memory and clearing the browser cookie. The cached responses are
+	 * cleared too, those on disk in the background.
 	 * 
 	 * @param context
 	 *            The Android context in which the logout should be called: it
@@ -207,8 +236,27 @@ public class Mobli {
 	 */
 	public void logout(Context context) {
 		Util.clearCookies(context);
-		setAccessToken(null);
-		setAccessExpires(0);
+		setSession(Session.EMPTY);
+		MemoryResponseCache cache = mMemoryCache;
+		if (cache != null) {
+			cache.clear();
+		}
+		final DiskResponseCache diskCache = mDiskCache;
+		if (diskCache != null) {
+			// deletes every body file: not on the caller's thread, usually
+			// the UI thread
+			Runnable clear = new Runnable() {
+				@Override
+				public void run() {
+					diskCache.clear();
+				}
+			};
+			try {
+				RequestExecutor.getDefault().execute(clear, RequestExecutor.Priority.BACKGROUND);
+			} catch (RejectedExecutionException e) {
+				clear.run();
+			}
+		}
 	}
 
 	/**
@@ -290,12 +338,167 @@ public class Mobli {
 	 */
 	public String request(String baseUrl, String relativePath, Bundle params, String httpMethod) throws FileNotFoundException,
 			MalformedURLException, IOException {
+		return request(baseUrl, relativePath, params, httpMethod, null);
+	}
+
+	/**
+	 * Synchronously make a request on behalf of an asynchronous request
+	 * handle, which supplies the connection timeouts and may abort the
+	 * connection.
+	 */
+	String request(String baseUrl, String relativePath, Bundle params, String httpMethod, RequestHandle handle)
+			throws FileNotFoundException, MalformedURLException, IOException {
 
-		if (isSessionValid()) {
-			params.putString(TOKEN, getAccessToken());
-		}
 		String url = baseUrl + relativePath;
-		return Util.openUrl(url, httpMethod, params);
+		if (httpMethod.equals("GET") && (mMemoryCache != null || mDiskCache != null)) {
+			String key = Util.cacheKey(url, params, mSession.get().getUserId());
+			MemoryResponseCache cache = mMemoryCache;
+			MemoryResponseCache.Rule rule = cache != null ? cache.getRule(relativePath) : null;
+			if (rule != null) {
+				return cachedRequest(cache, rule, key, url, params, handle);
+			}
+			return fetchGet(key, url, params, handle).getBody();
+		}
+		return fetch(url, httpMethod, params, handle, null).getBody();
+	}
+
+	/**
+	 * Serve a GET request from the response cache if possible, or fetch and
+	 * cache it otherwise.
+	 */
+	private String cachedRequest(MemoryResponseCache cache, MemoryResponseCache.Rule rule, String key, String url, Bundle params,
+			RequestHandle handle) throws IOException {
+		long now = System.currentTimeMillis();
+		MemoryResponseCache.Entry entry = cache.get(key, now);
+		if (entry != null) {
+			if (!entry.isFresh(now)) {
+				revalidate(cache, rule, key, url, new Bundle(params));
+			}
+			return entry.mBody;
+		}
+		MobliResponse response = fetchGet(key, url, params, handle);
+		if (response.isSuccessful()) {
+			cache.put(key, response.getBody(), rule, System.currentTimeMillis());
+		}
+		return response.getBody();
+	}
+
+	/**
+	 * Fetch a GET request from the network, revalidating the disk cached
+	 * response if there is one.
+	 */
+	private MobliResponse fetchGet(String key, String url, Bundle params, RequestHandle handle) throws IOException {
+		DiskResponseCache disk = mDiskCache;
+		if (disk == null) {
+			return fetch(url, "GET", params, handle, null);
+		}
+		DiskResponseCache.Entry entry = disk.get(key);
+		Map<String, String> headers = null;
+		if (entry != null) {
+			headers = new HashMap<String, String>(4);
+			if (entry.mETag != null) {
+				headers.put("If-None-Match", entry.mETag);
+			}
+			if (entry.mLastModified != null) {
+				headers.put("If-Modified-Since", entry.mLastModified);
+			}
+		}
+		MobliResponse response = fetch(url, "GET", params, handle, headers);
+		if (entry != null && response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			String body = disk.readBody(entry);
+			if (body != null) {
+				return new MobliResponse(HttpURLConnection.HTTP_OK, body, entry.mETag, entry.mLastModified, 0);
+			}
+			// the cached body is gone: fetch it again unconditionally
+			response = fetch(url, "GET", params, handle, null);
+		}
+		if (response.isSuccessful()) {
+			disk.put(key, response.getBody(), response.getETag(), response.getLastModified());
+		}
+		return response;
+	}
+
+	private MobliResponse fetch(String url, String method, Bundle params, RequestHandle handle, Map<String, String> headers)
+			throws IOException {
+		return Util.fetch(url, method, params, handle, headers, getRetryPolicy(handle), mInterceptors);
+	}
+
+	/**
+	 * Synchronously send a request queued by an Outbox, with its headers.
+	 */
+	MobliResponse fetch(String url, String method, Bundle params, Map<String, String> headers) throws IOException {
+		return fetch(url, method, params, null, headers);
+	}
+
+	/**
+	 * Refresh a stale cached response in the background, unless it is
+	 * already being refreshed.
+	 */
+	private void revalidate(final MemoryResponseCache cache, final MemoryResponseCache.Rule rule, final String key, final String url,
+			final Bundle params) {
+		if (!cache.startRevalidation(key)) {
+			return;
+		}
+		try {
+			RequestExecutor.getDefault().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						MobliResponse response = fetchGet(key, url, params, null);
+						if (response.isSuccessful()) {
+							cache.put(key, response.getBody(), rule, System.currentTimeMillis());
+						}
+					} catch (IOException e) {
+						Util.logd("Mobli-cache", "Revalidation failed: " + e);
+					} finally {
+						cache.endRevalidation(key);
+					}
+				}
+			}, RequestExecutor.Priority.BACKGROUND);
+		} catch (RejectedExecutionException e) {
+			cache.endRevalidation(key);
+		}
+	}
+
+	/**
+	 * Synchronously upload files to the Mobli API with a multipart POST
+	 * request. The file contents are streamed to the connection rather than
+	 * loaded in memory, so this is suitable for large photos and videos.
+	 * 
+	 * Note that this method blocks waiting for a network response, so do not
+	 * call it in a UI thread.
+	 * 
+	 * @param baseUrl
+	 *            Request base url. Generally, it will be REST API base url
+	 * @param relativePath
+	 *            Relative path to resource in the Mobli API
+	 * @param params
+	 *            key-value string parameters of the request
+	 * @param uploads
+	 *            file parts of the request, by name
+	 * @param progress
+	 *            callback interface notified as the upload progresses, or null
+	 * @throws IOException
+	 * @throws MalformedURLException
+	 * @return JSON string representation of the response
+	 */
+	public String upload(String baseUrl, String relativePath, Bundle params, Map<String, UploadSource> uploads,
+			UploadSource.ProgressListener progress) throws FileNotFoundException, MalformedURLException, IOException {
+		return upload(baseUrl, relativePath, params, uploads, progress, null);
+	}
+
+	String upload(String baseUrl, String relativePath, Bundle params, Map<String, UploadSource> uploads,
+			UploadSource.ProgressListener progress, RequestHandle handle) throws FileNotFoundException, MalformedURLException,
+			IOException {
+		return fetchUpload(baseUrl, relativePath, params, uploads, progress, handle).getBody();
+	}
+
+	/**
+	 * Upload files and return the response together with its status code.
+	 */
+	MobliResponse fetchUpload(String baseUrl, String relativePath, Bundle params, Map<String, UploadSource> uploads,
+			UploadSource.ProgressListener progress, RequestHandle handle) throws IOException {
+		return Util.upload(baseUrl + relativePath, params, uploads, progress, handle, mInterceptors);
 	}
 
 	/**
@@ -332,6 +535,105 @@ public class Mobli {
 		return request(API_BASE_URL, relativePath, params, httpMethod);
 	}
 
+	/**
+	 * Synchronously make a request to the Mobli API and parse the response as
+	 * it streams in, without building its String or JSONObject
+	 * representation. Suitable for large responses such as long media feeds.
+	 * 
+	 * The parser checks the top level of the response for the error fields
+	 * recognized by Util.parseJson and throws the MobliError as soon as it
+	 * meets one. Error statuses are checked before the parser is handed out.
+	 * 
+	 * Responses are not cached, and the response caches are not consulted.
+	 * 
+	 * Note that this method blocks waiting for a network response, so do not
+	 * call it in a UI thread.
+	 * 
+	 * See request(String, String, Bundle, String) for the other @params.
+	 * 
+	 * @param parser
+	 *            callback reading the response from a pull parser
+	 * @throws IOException
+	 * @throws MalformedURLException
+	 * @throws MobliError
+	 * @return the value returned by the parser
+	 */
+	public <T> T requestStream(String baseUrl, String relativePath, Bundle params, String httpMethod, final ResponseParser<T> parser)
+			throws MalformedURLException, IOException {
+		return Util.stream(baseUrl + relativePath, httpMethod, params, null, mRetryPolicy, new Util.BodyReader<T>() {
+			@Override
+			public T read(TransportResponse response, InputStream body) throws IOException {
+				JsonPullParser reader;
+				if (response.getStatusCode() >= 400) {
+					// error bodies are small: check them the usual way first
+					String error = Util.read(body);
+					try {
+						Util.parseJson(error);
+					} catch (JSONException e) {
+						throw new IOException("Malformed JSON: " + e.getMessage());
+					}
+					reader = new JsonPullParser(new StringReader(error));
+				} else {
+					reader = new JsonPullParser(new InputStreamReader(body, "UTF-8"));
+				}
+				reader.setErrorDetection(true);
+				return parser.parse(reader);
+			}
+		}, mInterceptors);
+	}
+
+	/**
+	 * Synchronously make a request to the Mobli API and hand the elements of
+	 * an array of the response to a listener one at a time as they are
+	 * parsed, so that only one element is held in memory at a time.
+	 * 
+	 * See requestStream(String, String, Bundle, String, ResponseParser) for
+	 * the error handling and the other @params.
+	 * 
+	 * @param arrayName
+	 *            name of the array member of the response object to iterate,
+	 *            e.g. "payload", or null if the response is the array itself
+	 * @param listener
+	 *            callback receiving the elements
+	 * @throws IOException
+	 * @throws MalformedURLException
+	 * @throws MobliError
+	 * @return the number of elements handed to the listener
+	 */
+	public int requestItems(String baseUrl, String relativePath, Bundle params, String httpMethod, final String arrayName,
+			final ItemListener listener) throws MalformedURLException, IOException {
+		Integer count = requestStream(baseUrl, relativePath, params, httpMethod, new ResponseParser<Integer>() {
+			@Override
+			public Integer parse(JsonPullParser parser) throws IOException {
+				if (arrayName == null) {
+					return Integer.valueOf(readItems(parser, listener));
+				}
+				int count = 0;
+				parser.beginObject();
+				while (parser.hasNext()) {
+					if (parser.nextName().equals(arrayName) && parser.peek() == JsonPullParser.Token.BEGIN_ARRAY) {
+						count += readItems(parser, listener);
+					} else {
+						parser.skipValue();
+					}
+				}
+				parser.endObject();
+				return Integer.valueOf(count);
+			}
+		});
+		return count.intValue();
+	}
+
+	private static int readItems(JsonPullParser parser, ItemListener listener) throws IOException {
+		int count = 0;
+		parser.beginArray();
+		while (parser.hasNext()) {
+			listener.onItem(parser.nextValue(), count++);
+		}
+		parser.endArray();
+		return count;
+	}
+
 	/**
 	 * Generate a UI dialog for the authentication action in the given Android
 	 * context with the provided parameters.
@@ -354,10 +656,8 @@ public class Mobli {
 		parameters.putString("client_id", mClientId);
 		parameters.putString("response_type", "token");
 
-		if (isSessionValid()) {
-			parameters.putString(TOKEN, getAccessToken());
-		}
-		String url = DIALOG_AUTHORIZE_URL + "?" + Util.encodeUrl(parameters);
+		putAccessToken(parameters, mSession.get());
+		String url = UrlEncoder.buildUrl(DIALOG_AUTHORIZE_URL, parameters, null);
 		if (context.checkCallingOrSelfPermission(Manifest.permission.INTERNET) != PackageManager.PERMISSION_GRANTED) {
 			Util.showAlert(context, "Error", "Application requires permission to access the Internet");
 		} else {
@@ -365,11 +665,78 @@ public class Mobli {
 		}
 	}
 
+	/**
+	 * Add the access token of the given session to the parameters of a
+	 * request, if the session is valid. The session is read once, so that
+	 * the token sent is the one which was checked.
+	 */
+	private static void putAccessToken(Bundle params, Session session) {
+		if (session.isValid(System.currentTimeMillis())) {
+			params.putString(TOKEN, session.getAccessToken());
+		}
+	}
+
+	/**
+	 * Adds the access token of the session to the requests. With a
+	 * TokenManager, the token is refreshed first if needed, and requests
+	 * answered with 401 Unauthorized are retried once with a new token.
+	 */
+	private class AccessTokenInterceptor implements Interceptor {
+
+		@Override
+		public TransportResponse intercept(Chain chain) throws IOException {
+			MobliRequest request = chain.getRequest();
+			TokenManager manager = mTokenManager;
+			Bundle params = request.getParams();
+			putAccessToken(params, manager != null ? manager.getSession(request.getHandle()) : mSession.get());
+			String token = params.getString(TOKEN);
+			TransportResponse response = chain.proceed(request);
+			if (manager != null && response.getStatusCode() == HttpURLConnection.HTTP_UNAUTHORIZED && !request.hasUploads()
+					&& manager.onUnauthorized(token, request.getHandle())) {
+				Util.logd("Mobli", "Retrying with a new access token");
+				response.close();
+				params.remove(TOKEN);
+				putAccessToken(params, mSession.get());
+				response = chain.proceed(request);
+			}
+			return response;
+		}
+
+		@Override
+		public String toString() {
+			return "AccessTokenInterceptor";
+		}
+	}
+
 	/**
 	 * @return boolean - whether this object has an non-expired session token
 	 */
 	public boolean isSessionValid() {
-		return (getAccessToken() != null) && ((getAccessExpires() == 0) || (System.currentTimeMillis() < getAccessExpires()));
+		return mSession.get().isValid(System.currentTimeMillis());
+	}
+
+	/**
+	 * Retrieve the current session. The snapshot is immutable: read the
+	 * token, its expiration time and the user id from the same snapshot to
+	 * get consistent values while the session is changed by another thread.
+	 * 
+	 * @return Session - current session, Session.EMPTY if none exists
+	 */
+	public Session getSession() {
+		return mSession.get();
+	}
+
+	/**
+	 * Replace the current session at once, e.g. with a session restored from
+	 * storage, and notify the SessionListeners.
+	 * 
+	 * @param session
+	 *            - new session, or null for none
+	 */
+	public void setSession(Session session) {
+		Session update = session != null ? session : Session.EMPTY;
+		Session previous = mSession.getAndSet(update);
+		notifySessionChanged(previous, update);
 	}
 
 	/**
@@ -379,7 +746,7 @@ public class Mobli {
 	 * @return String - access token
 	 */
 	public String getAccessToken() {
-		return mAccessToken;
+		return mSession.get().getAccessToken();
 	}
 
 	/**
@@ -389,7 +756,7 @@ public class Mobli {
 	 * @return long - session expiration time
 	 */
 	public long getAccessExpires() {
-		return mAccessExpires;
+		return mSession.get().getAccessExpires();
 	}
 
 	/**
@@ -399,7 +766,10 @@ public class Mobli {
 	 *            - access token
 	 */
 	public void setAccessToken(String token) {
-		mAccessToken = token;
+		Session session;
+		do {
+			session = mSession.get();
+		} while (!replaceSession(session, session.withAccessToken(token)));
 	}
 
 	/**
@@ -410,7 +780,10 @@ public class Mobli {
 	 *            - timestamp in milliseconds
 	 */
 	public void setAccessExpires(long time) {
-		mAccessExpires = time;
+		Session session;
+		do {
+			session = mSession.get();
+		} while (!replaceSession(session, session.withAccessExpires(time)));
 	}
 
 	/**
@@ -422,11 +795,260 @@ public class Mobli {
 	 */
 	public void setAccessExpiresIn(String expiresIn) {
 		if (expiresIn != null) {
-			long expires = expiresIn.equals("0") ? 0 : System.currentTimeMillis() + Long.parseLong(expiresIn) * 1000L;
-			setAccessExpires(expires);
+			setAccessExpires(Session.expiresAt(expiresIn, System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Set the access token together with its expiration time, keeping the
+	 * user id.
+	 * 
+	 * @param expiresIn
+	 *            - duration in seconds, "0" if the token doesn't expire, or
+	 *            null to keep the current expiration time
+	 */
+	void setAccessToken(String token, String expiresIn) {
+		long now = System.currentTimeMillis();
+		Session session;
+		Session update;
+		do {
+			session = mSession.get();
+			update = session.withAccessToken(token);
+			if (expiresIn != null) {
+				update = update.withAccessExpires(Session.expiresAt(expiresIn, now));
+			}
+		} while (!replaceSession(session, update));
+	}
+
+	/**
+	 * Replace the session if it is still the expected one.
+	 * 
+	 * @return false if another thread changed the session first
+	 */
+	boolean replaceSession(Session expected, Session update) {
+		if (!mSession.compareAndSet(expected, update)) {
+			return false;
+		}
+		notifySessionChanged(expected, update);
+		return true;
+	}
+
+	private void notifySessionChanged(Session previous, Session current) {
+		if (previous.equals(current)) {
+			return;
+		}
+		for (SessionListener listener : mSessionListeners) {
+			listener.onSessionChanged(previous, current);
+		}
+	}
+
+	/**
+	 * Register a listener notified whenever the session changes: login,
+	 * logout, token rotation or restoration.
+	 * 
+	 * @param listener
+	 *            - listener to add
+	 */
+	public void addSessionListener(SessionListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener must not be null");
+		}
+		mSessionListeners.addIfAbsent(listener);
+	}
+
+	public void removeSessionListener(SessionListener listener) {
+		mSessionListeners.remove(listener);
+	}
+
+	/**
+	 * Open the connections to the API and OAuth hosts in the background, so
+	 * that the first request (or the token exchange after authorize) does
+	 * not pay for the DNS lookup and the TCP and TLS handshakes. Call it at
+	 * application start, or just before authorize.
+	 * 
+	 * The connections stay idle in the platform pool for its keep-alive
+	 * duration, see ConnectionPool, and the addresses in the platform DNS
+	 * cache, see DnsCache. Failures are ignored: the requests connect on
+	 * their own.
+	 */
+	public void preconnect() {
+		for (final String url : new String[] { API_BASE_URL, AUTHORIZE_BASE_URL }) {
+			try {
+				RequestExecutor.getDefault().execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Util.preconnect(url);
+						} catch (IOException e) {
+							Util.logd("Mobli", "Preconnection to " + url + " failed: " + e);
+						}
+					}
+				}, RequestExecutor.Priority.BACKGROUND);
+			} catch (RejectedExecutionException e) {
+				// the queue is full of requests, which connect anyway
+			}
 		}
 	}
 
+	/**
+	 * Set the in-memory cache consulted by GET requests, or null to disable
+	 * caching. Responses are cached per user of the session.
+	 * 
+	 * @param cache
+	 *            - response cache, with rules for the paths to cache
+	 */
+	public void setMemoryCache(MemoryResponseCache cache) {
+		mMemoryCache = cache;
+	}
+
+	public MemoryResponseCache getMemoryCache() {
+		return mMemoryCache;
+	}
+
+	/**
+	 * Set the persistent cache used to revalidate GET responses carrying an
+	 * ETag or Last-Modified header, or null to disable it. It is consulted
+	 * after the memory cache, if any. Responses are cached per user of the
+	 * session.
+	 * 
+	 * @param cache
+	 *            - disk cache, e.g. in a subdirectory of
+	 *            Context.getCacheDir()
+	 */
+	public void setDiskCache(DiskResponseCache cache) {
+		mDiskCache = cache;
+	}
+
+	public DiskResponseCache getDiskCache() {
+		return mDiskCache;
+	}
+
+	/**
+	 * Set the policy for retrying requests which failed because of a network
+	 * error or a transient server error. Individual asynchronous requests may
+	 * override it with RequestOptions.setRetryPolicy.
+	 * 
+	 * Requests to a host also go through the CircuitBreaker of the host,
+	 * which may make them fail fast with a CircuitOpenException.
+	 * 
+	 * @param policy
+	 *            - retry policy, or RetryPolicy.none() to disable retries
+	 */
+	public void setRetryPolicy(RetryPolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("policy must not be null");
+		}
+		mRetryPolicy = policy;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return mRetryPolicy;
+	}
+
+	private RetryPolicy getRetryPolicy(RequestHandle handle) {
+		RetryPolicy policy = handle != null ? handle.getOptions().getRetryPolicy() : null;
+		return policy != null ? policy : mRetryPolicy;
+	}
+
+	/**
+	 * Set the manager keeping the public access token fresh, or null to
+	 * manage the token with AsyncMobliRunner.obtainPublicToken only.
+	 * 
+	 * @param manager
+	 *            - token manager created for this Mobli object
+	 */
+	public void setTokenManager(TokenManager manager) {
+		if (manager != null && manager.getMobli() != this) {
+			throw new IllegalArgumentException("manager belongs to another Mobli object");
+		}
+		mTokenManager = manager;
+	}
+
+	public TokenManager getTokenManager() {
+		return mTokenManager;
+	}
+
+	/**
+	 * @return the interceptors the requests go through, in order: by
+	 *         default, the access token interceptor of this object followed
+	 *         by Interceptors.METHOD_OVERRIDE, DECODE_ACCESS_TOKEN and
+	 *         DEFAULT_HEADERS
+	 */
+	public List<Interceptor> getInterceptors() {
+		return new ArrayList<Interceptor>(Arrays.asList(mInterceptors));
+	}
+
+	/**
+	 * Replace the interceptors the requests go through. Start from
+	 * getInterceptors() to keep the default behavior: without the access
+	 * token interceptor, requests are made without a token, and without
+	 * the default ones they are not made the way the Mobli API expects.
+	 * 
+	 * @param interceptors
+	 *            - interceptors in order, the first one seeing the request
+	 *            first
+	 */
+	public synchronized void setInterceptors(List<Interceptor> interceptors) {
+		Interceptor[] chain = interceptors.toArray(new Interceptor[interceptors.size()]);
+		for (Interceptor interceptor : chain) {
+			if (interceptor == null) {
+				throw new IllegalArgumentException("interceptors must not be null");
+			}
+		}
+		mInterceptors = chain;
+	}
+
+	/**
+	 * Add an interceptor in front of the others, e.g. to measure or cache
+	 * requests, so that it sees the request as given by the application.
+	 */
+	public synchronized void addInterceptor(Interceptor interceptor) {
+		List<Interceptor> interceptors = getInterceptors();
+		interceptors.add(0, interceptor);
+		setInterceptors(interceptors);
+	}
+
+	/**
+	 * Set the store persisting the session across process restarts, or null
+	 * to keep the session in memory only. If there is no session yet, the
+	 * stored one is restored; every change of the session is then stored in
+	 * the background.
+	 * 
+	 * Set the TokenManager first, if any: a restored token expiring within
+	 * its refresh skew is then refreshed in the background.
+	 * 
+	 * @param store
+	 *            - session store, e.g. on a file of Context.getFilesDir()
+	 */
+	public synchronized void setSessionStore(SessionStore store) {
+		if (mSessionStore != null) {
+			removeSessionListener(mSessionStore);
+			mSessionStore.attach(null);
+		}
+		mSessionStore = store;
+		if (store == null) {
+			return;
+		}
+		store.attach(this);
+		Session restored = store.load();
+		if (restored != null && replaceSession(Session.EMPTY, restored)) {
+			Util.logd("Mobli-session", "Restored session expiring at " + restored.getAccessExpires());
+		}
+		addSessionListener(store);
+		TokenManager manager = mTokenManager;
+		if (manager != null) {
+			manager.prefetch();
+		}
+	}
+
+	public synchronized SessionStore getSessionStore() {
+		return mSessionStore;
+	}
+
+	RequestCoalescer getRequestCoalescer() {
+		return mRequestCoalescer;
+	}
+
 	public String getClientId() {
 		return mClientId;
 	}
@@ -444,11 +1066,7 @@ public class Mobli {
 	}
 
 	public String getUserId() {
-		return mUserId;
-	}
-
-	private void setUserId(String userId) {
-		this.mUserId = userId;
+		return mSession.get().getUserId();
 	}
 
 	/**
@@ -493,6 +1111,65 @@ public class Mobli {
 
 	}
 
+	/**
+	 * Callback interface for session changes.
+	 */
+	public static interface SessionListener {
+
+		/**
+		 * Called after the session changed.
+		 * 
+		 * Executed by the thread which changed the session, e.g. a background
+		 * thread completing a token request: do not update the UI in this
+		 * method. Changes made concurrently by several threads may be
+		 * notified out of order; getSession() returns the latest one.
+		 * 
+		 * @param previous
+		 *            session before the change
+		 * @param current
+		 *            session after the change
+		 */
+		public void onSessionChanged(Session previous, Session current);
+
+	}
+
+	/**
+	 * Callback interface reading a streamed response.
+	 */
+	public static interface ResponseParser<T> {
+
+		/**
+		 * Called with a parser positioned at the start of the response.
+		 * 
+		 * Executed by the thread making the request, while the connection is
+		 * open: do not update the UI in this method.
+		 * 
+		 * @return the value to return from the request
+		 */
+		public T parse(JsonPullParser parser) throws IOException;
+
+	}
+
+	/**
+	 * Callback interface for the elements of a streamed array.
+	 */
+	public static interface ItemListener {
+
+		/**
+		 * Called for each element of the array, in order.
+		 * 
+		 * Executed by the thread making the request: do not update the UI in
+		 * this method.
+		 * 
+		 * @param item
+		 *            the element: a JSONObject for arrays of objects
+		 * @param index
+		 *            position of the element in the array
+		 */
+		public void onItem(Object item, int index) throws IOException;
+
+	}
+
 	/**
 	 * Callback interface for service requests.
 	 */
@@ -142,11 +142,7 @@ public class MobliDialog extends Dialog {
 		public boolean shouldOverrideUrlLoading(WebView view, String url) {
 			Util.logd("Mobli-WebView", "Redirect URL: " + url);
 			if (url.startsWith(mRedirectUri)) {
-				Bundle values;
-
-				// hack to prevent MalformedURLException
-				url = url.replace(mRedirectUri, "http://");
-				values = Util.parseUrl(url);
+				Bundle values = Util.parseUrl(url);
 
 				String error = values.getString("error");
 				if (error != null) {
@@ -0,0 +1,121 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Bundle;
+
+/**
+ * A request going through the Interceptor chain, before it is encoded: its
+ * parameters are still a Bundle, which interceptors may modify.
+ *
+ * The parameters are a copy of the ones given by the application. They are
+ * encoded in the query string of GET requests and in the multipart body of
+ * the other requests, which are sent as POST.
+ */
+public final class MobliRequest {
+
+	private String mUrl;
+	private final String mMethod;
+	private final Bundle mParams;
+	private final HashMap<String, String> mHeaders;
+	private final Map<String, UploadSource> mUploads;
+	private final UploadSource.ProgressListener mProgress;
+	private final RequestHandle mHandle;
+	private final long mCallId;
+
+	MobliRequest(String url, String method, Bundle params, Map<String, String> headers, Map<String, UploadSource> uploads,
+			UploadSource.ProgressListener progress, RequestHandle handle, long callId) {
+		mUrl = url;
+		mMethod = method;
+		mParams = new Bundle(params);
+		mHeaders = headers != null ? new HashMap<String, String>(headers) : new HashMap<String, String>();
+		mUploads = uploads;
+		mProgress = progress;
+		mHandle = handle;
+		mCallId = callId;
+	}
+
+	/**
+	 * @return the id of the request in the events of the
+	 *         RequestEventListener, e.g. to send it in a header correlating
+	 *         the client and server traces
+	 */
+	public long getCallId() {
+		return mCallId;
+	}
+
+	/**
+	 * @return the URL, without the query string
+	 */
+	public String getUrl() {
+		return mUrl;
+	}
+
+	public void setUrl(String url) {
+		if (url == null) {
+			throw new IllegalArgumentException("url must not be null");
+		}
+		mUrl = url;
+	}
+
+	/**
+	 * @return the method requested by the application, e.g. "GET" or
+	 *         "DELETE"
+	 */
+	public String getMethod() {
+		return mMethod;
+	}
+
+	/**
+	 * @return the parameters of the request, which may be modified
+	 */
+	public Bundle getParams() {
+		return mParams;
+	}
+
+	/**
+	 * @return the headers of the request, by name, which may be modified
+	 */
+	public Map<String, String> getHeaders() {
+		return mHeaders;
+	}
+
+	/**
+	 * @return whether the request uploads files, whose content can only be
+	 *         sent once
+	 */
+	public boolean hasUploads() {
+		return mUploads != null;
+	}
+
+	Map<String, UploadSource> getUploads() {
+		return mUploads;
+	}
+
+	UploadSource.ProgressListener getProgress() {
+		return mProgress;
+	}
+
+	/**
+	 * @return the handle of the asynchronous request, or null
+	 */
+	RequestHandle getHandle() {
+		return mHandle;
+	}
+}
@@ -0,0 +1,78 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+/**
+ * Raw outcome of an HTTP exchange with the Mobli servers: the status code, the
+ * response body, the cache validators and the Retry-After delay.
+ */
+final class MobliResponse {
+
+	private final int mStatusCode;
+	private final String mBody;
+	private final String mETag;
+	private final String mLastModified;
+	private final long mRetryAfter;
+
+	MobliResponse(int statusCode, String body) {
+		this(statusCode, body, null, null, 0);
+	}
+
+	MobliResponse(int statusCode, String body, String eTag, String lastModified, long retryAfter) {
+		mStatusCode = statusCode;
+		mBody = body;
+		mETag = eTag;
+		mLastModified = lastModified;
+		mRetryAfter = retryAfter;
+	}
+
+	int getStatusCode() {
+		return mStatusCode;
+	}
+
+	String getBody() {
+		return mBody;
+	}
+
+	/**
+	 * @return the ETag validator of the response, or null
+	 */
+	String getETag() {
+		return mETag;
+	}
+
+	/**
+	 * @return the Last-Modified validator of the response, or null
+	 */
+	String getLastModified() {
+		return mLastModified;
+	}
+
+	/**
+	 * @return the delay asked by the Retry-After header of the response, in
+	 *         milliseconds, or 0
+	 */
+	long getRetryAfter() {
+		return mRetryAfter;
+	}
+
+	/**
+	 * @return whether the server answered with a 2xx status code
+	 */
+	boolean isSuccessful() {
+		return mStatusCode >= 200 && mStatusCode < 300;
+	}
+}
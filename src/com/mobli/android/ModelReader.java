@@ -0,0 +1,35 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+
+/**
+ * Reads instances of a model class from a JSON stream. Implementations are
+ * generated at compile time for the classes annotated with JsonModel.
+ *
+ * @see JsonBinding#readerFor(Class)
+ */
+public interface ModelReader<T> {
+
+	/**
+	 * Read the next value of the parser, an object or null.
+	 *
+	 * @return the model read, or null if the value was null
+	 */
+	public T read(JsonPullParser parser) throws IOException;
+
+}
@@ -0,0 +1,145 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Bundle;
+
+/**
+ * Multipart form-data request body, written straight to the connection.
+ *
+ * The string parameters and part headers are small and encoded up front; the
+ * file parts (byte[] parameters and UploadSources) are copied through a
+ * reusable per-thread buffer as they are written, so the body never has to
+ * be held in memory. When the length of every part is known, the total
+ * content length is known too, which lets the connection use fixed-length
+ * streaming instead of buffering the body to compute it.
+ */
+final class MultipartBody {
+
+	// random string as boundary for multi-part http post
+	static final String BOUNDARY = "3i2ndDfv2rTHiSisAbouNdArYfORhtTPEefj3q2f";
+	static final String CONTENT_TYPE = "multipart/form-data;boundary=" + BOUNDARY;
+
+	private static final String END_LINE = "\r\n";
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private static final ThreadLocal<byte[]> sBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	/** byte[] segments and UploadSources, in wire order */
+	private final List<Object> mSegments = new ArrayList<Object>();
+	private final long mContentLength;
+	private boolean mHasFileParts;
+
+	MultipartBody(Bundle params, Map<String, UploadSource> uploads) {
+		mSegments.add(Util.bytes("--" + BOUNDARY + END_LINE));
+		mSegments.add(Util.bytes(Util.encodePostBody(params, BOUNDARY)));
+		mSegments.add(Util.bytes(END_LINE + "--" + BOUNDARY + END_LINE));
+
+		for (String key : params.keySet()) {
+			Object parameter = params.get(key);
+			if (parameter instanceof byte[]) {
+				addFilePart(key, parameter);
+			}
+		}
+		if (uploads != null) {
+			for (Map.Entry<String, UploadSource> upload : uploads.entrySet()) {
+				addFilePart(upload.getKey(), upload.getValue());
+			}
+		}
+
+		long length = 0;
+		for (Object segment : mSegments) {
+			long segmentLength = segment instanceof byte[] ? ((byte[]) segment).length : ((UploadSource) segment).getLength();
+			if (segmentLength < 0) {
+				length = -1;
+				break;
+			}
+			length += segmentLength;
+		}
+		mContentLength = length;
+	}
+
+	/**
+	 * @return the number of bytes of the body, or -1 if a part has an unknown
+	 *         length
+	 */
+	long getContentLength() {
+		return mContentLength;
+	}
+
+	/**
+	 * Write the body, reporting progress after each segment or buffer written.
+	 *
+	 * @param listener
+	 *            - progress listener, or null
+	 */
+	void writeTo(OutputStream os, UploadSource.ProgressListener listener) throws IOException {
+		byte[] buffer = sBuffer.get();
+		long written = 0;
+		for (Object segment : mSegments) {
+			if (segment instanceof byte[]) {
+				byte[] bytes = (byte[]) segment;
+				os.write(bytes);
+				written += bytes.length;
+				if (listener != null) {
+					listener.onProgress(written, mContentLength);
+				}
+				continue;
+			}
+			InputStream in = ((UploadSource) segment).openStream();
+			try {
+				for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+					os.write(buffer, 0, n);
+					written += n;
+					if (listener != null) {
+						listener.onProgress(written, mContentLength);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		os.flush();
+	}
+
+	/**
+	 * @return whether the body has file parts (byte[] parameters or
+	 *         UploadSources)
+	 */
+	boolean hasFileParts() {
+		return mHasFileParts;
+	}
+
+	private void addFilePart(String key, Object content) {
+		mHasFileParts = true;
+		mSegments.add(Util.bytes("Content-Disposition: form-data; filename=\"" + key + "\"" + END_LINE + "Content-Type: content/unknown"
+				+ END_LINE + END_LINE));
+		mSegments.add(content);
+		mSegments.add(Util.bytes(END_LINE + "--" + BOUNDARY + END_LINE));
+	}
+}
@@ -0,0 +1,861 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Bundle;
+
+/**
+ * Persistent queue of POST and DELETE requests, e.g. likes and comments made
+ * while offline, sent in order once the network is back.
+ *
+ * Each request is appended to a journal file, synced to disk, before
+ * enqueue returns. Completed requests are appended to the journal as such,
+ * which is compacted once they outnumber the pending ones. A last record torn
+ * by a crash is truncated when the journal is opened.
+ *
+ * Requests are sent in the order they were queued, up to
+ * getMaxConcurrency() at a time, on the BACKGROUND lane of the default
+ * RequestExecutor; requests to the same path (e.g. a like then an unlike of
+ * a media) are sent one after the other. A request failing with an
+ * IOException, or with a 401, 408, 429 or 5xx status, stays queued: the
+ * outbox pauses and retries with an exponential backoff, at least the
+ * Retry-After of the response, or as soon as the connectivity comes back
+ * (see registerConnectivityReceiver). A request
+ * failing so getMaxAttempts() times is given up, so that it does not hold
+ * back the others; failures to reach the server (unknown host, refused
+ * connection, timeout, open circuit) do not count. Any other status, or an
+ * unexpected runtime exception, is the final outcome of the request, handed
+ * to the listeners.
+ *
+ * Each request carries an idempotency key in the Idempotency-Key header,
+ * with which the server can ignore a request sent again after the process
+ * died between its response and the record of its completion.
+ */
+public class Outbox {
+
+	public static final String IDEMPOTENCY_HEADER = "Idempotency-Key";
+	public static final int DEFAULT_MAX_CONCURRENCY = 2;
+	public static final int DEFAULT_MAX_ATTEMPTS = 8;
+	/** first delay before retrying, in milliseconds, doubled at each failure */
+	public static final long MIN_BACKOFF = 1000;
+	public static final long MAX_BACKOFF = 5 * 60 * 1000;
+
+	private static final int MAGIC = 0x4d4f4258;
+	private static final int VERSION = 1;
+	private static final int HEADER_LENGTH = 5;
+	private static final int MAX_RECORD_LENGTH = 16 * 1024 * 1024;
+	private static final byte RECORD_ADD = 1;
+	private static final byte RECORD_DONE = 2;
+	private static final byte RECORD_ATTEMPTS = 3;
+	/** completion and attempt records from which the journal may be compacted */
+	private static final int COMPACT_THRESHOLD = 256;
+
+	private final Mobli mMobli;
+	private final File mFile;
+	private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+	/** pending requests, in the order they were queued */
+	private final LinkedHashMap<Long, Item> mPending = new LinkedHashMap<Long, Item>();
+	private RandomAccessFile mJournal;
+	private long mNextSequence = 1;
+	private int mDoneRecords;
+	private int mMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+	private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private int mInFlight;
+	private boolean mPaused;
+	private long mBackoff;
+	private ScheduledFuture<?> mRetry;
+	private BroadcastReceiver mReceiver;
+
+	/**
+	 * Open the outbox, reading the requests still pending in its journal.
+	 * They are sent from the first replay() or enqueue, so add the listeners
+	 * first.
+	 *
+	 * @param mobli
+	 *            - the Mobli object sending the requests, with its session
+	 * @param journal
+	 *            - file of the journal, created if needed
+	 * @throws IOException
+	 *             if the journal cannot be read or created
+	 */
+	public Outbox(Mobli mobli, File journal) throws IOException {
+		if (mobli == null) {
+			throw new IllegalArgumentException("mobli must not be null");
+		}
+		mMobli = mobli;
+		mFile = journal;
+		open();
+	}
+
+	public void addListener(Listener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener must not be null");
+		}
+		mListeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * @param maxConcurrency
+	 *            - maximum number of requests sent at the same time
+	 */
+	public void setMaxConcurrency(int maxConcurrency) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be at least 1");
+		}
+		synchronized (this) {
+			mMaxConcurrency = maxConcurrency;
+		}
+		drain();
+	}
+
+	public synchronized int getMaxConcurrency() {
+		return mMaxConcurrency;
+	}
+
+	/**
+	 * @param maxAttempts
+	 *            - number of times a request answered with a retryable
+	 *            status, or failing with an IOException other than a
+	 *            failure to reach the server, is sent before it is given up
+	 */
+	public synchronized void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("maxAttempts must be at least 1");
+		}
+		mMaxAttempts = maxAttempts;
+	}
+
+	public synchronized int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	/**
+	 * Queue a request to the Mobli API.
+	 *
+	 * See enqueue(String, String, Bundle, String).
+	 */
+	public Item enqueue(String relativePath, Bundle params, String httpMethod) throws IOException {
+		return enqueue(Mobli.API_BASE_URL, relativePath, params, httpMethod);
+	}
+
+	/**
+	 * Queue a request and start sending it, unless the outbox is paused.
+	 *
+	 * @param baseUrl
+	 *            - base URL of the request, e.g. Mobli.API_BASE_URL
+	 * @param relativePath
+	 *            - path of the request, e.g. "media/42/likes"
+	 * @param params
+	 *            - parameters of the request, which must all be strings
+	 * @param httpMethod
+	 *            - "POST" or "DELETE"
+	 * @return the queued request
+	 * @throws IOException
+	 *             if the request could not be written to the journal, in
+	 *             which case it is not queued
+	 */
+	public Item enqueue(String baseUrl, String relativePath, Bundle params, String httpMethod) throws IOException {
+		if (!"POST".equals(httpMethod) && !"DELETE".equals(httpMethod)) {
+			throw new IllegalArgumentException("only POST and DELETE requests can be queued");
+		}
+		if (baseUrl == null || relativePath == null) {
+			throw new IllegalArgumentException("baseUrl and relativePath must not be null");
+		}
+		try {
+			new URL(baseUrl + relativePath);
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid URL " + baseUrl + relativePath + ": " + e.getMessage());
+		}
+		String[] parameters = toParameters(params);
+		Item item;
+		synchronized (this) {
+			if (mJournal == null) {
+				throw new IllegalStateException("The outbox is closed");
+			}
+			item = new Item(mNextSequence, UUID.randomUUID().toString(), httpMethod, baseUrl, relativePath, parameters,
+					System.currentTimeMillis());
+			append(encode(item), true);
+			mNextSequence++;
+			mPending.put(item.mSequence, item);
+		}
+		drain();
+		return item;
+	}
+
+	/**
+	 * Drop a pending request which is not being sent.
+	 *
+	 * @return false if the request is not pending, or being sent
+	 */
+	public boolean remove(Item item) {
+		synchronized (this) {
+			if (mPending.get(item.mSequence) != item || item.mSending) {
+				return false;
+			}
+			complete(item);
+		}
+		drain();
+		return true;
+	}
+
+	/**
+	 * @return the pending requests, in the order they are sent
+	 */
+	public synchronized List<Item> getPending() {
+		return new ArrayList<Item>(mPending.values());
+	}
+
+	public synchronized int getPendingCount() {
+		return mPending.size();
+	}
+
+	/**
+	 * @return whether the outbox waits before retrying a failed request
+	 */
+	public synchronized boolean isPaused() {
+		return mPaused;
+	}
+
+	/**
+	 * Send the pending requests now, without waiting for the end of the
+	 * backoff, e.g. when the network is known to be back.
+	 */
+	public void replay() {
+		synchronized (this) {
+			if (mRetry != null) {
+				mRetry.cancel(false);
+				mRetry = null;
+			}
+			mPaused = false;
+			mBackoff = 0;
+		}
+		drain();
+	}
+
+	/**
+	 * Replay the pending requests whenever the device gets connected. Needs
+	 * the ACCESS_NETWORK_STATE permission.
+	 */
+	public synchronized void registerConnectivityReceiver(Context context) {
+		if (mReceiver != null) {
+			return;
+		}
+		mReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+					replay();
+				}
+			}
+		};
+		context.registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+
+	public synchronized void unregisterConnectivityReceiver(Context context) {
+		if (mReceiver != null) {
+			context.unregisterReceiver(mReceiver);
+			mReceiver = null;
+		}
+	}
+
+	/**
+	 * Stop sending requests and close the journal. The requests being sent
+	 * complete, but their completion is not recorded: they are sent again,
+	 * with the same idempotency key, by the next outbox on the journal.
+	 */
+	public synchronized void close() {
+		if (mRetry != null) {
+			mRetry.cancel(false);
+			mRetry = null;
+		}
+		if (mJournal != null) {
+			try {
+				mJournal.close();
+			} catch (IOException e) {
+				Util.logd("Mobli-outbox", "Could not close the journal: " + e);
+			}
+			mJournal = null;
+		}
+	}
+
+	/**
+	 * Start sending the first pending requests, up to the maximum
+	 * concurrency, skipping the ones whose path has an earlier request
+	 * pending.
+	 */
+	private void drain() {
+		ArrayList<Item> ready = null;
+		synchronized (this) {
+			if (mPaused || mJournal == null) {
+				return;
+			}
+			HashSet<String> busy = new HashSet<String>();
+			for (Item item : mPending.values()) {
+				if (mInFlight >= mMaxConcurrency) {
+					break;
+				}
+				String path = item.mBaseUrl + item.mPath;
+				if (!busy.add(path) || item.mSending) {
+					continue;
+				}
+				item.mSending = true;
+				mInFlight++;
+				if (ready == null) {
+					ready = new ArrayList<Item>(mMaxConcurrency);
+				}
+				ready.add(item);
+			}
+		}
+		if (ready == null) {
+			return;
+		}
+		for (final Item item : ready) {
+			try {
+				RequestExecutor.getDefault().execute(new Runnable() {
+					@Override
+					public void run() {
+						send(item);
+					}
+				}, RequestExecutor.Priority.BACKGROUND);
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					item.mSending = false;
+					mInFlight--;
+				}
+				pause(0);
+			}
+		}
+	}
+
+	private void send(Item item) {
+		HashMap<String, String> headers = new HashMap<String, String>(2);
+		headers.put(IDEMPOTENCY_HEADER, item.mKey);
+		MobliResponse response = null;
+		boolean retry;
+		boolean offline = false;
+		try {
+			response = mMobli.fetch(item.mBaseUrl + item.mPath, item.mMethod, item.getParams(), headers);
+			retry = isRetryable(response.getStatusCode());
+		} catch (IOException e) {
+			Util.logd("Mobli-outbox", "Could not send " + item + ": " + e);
+			retry = true;
+			offline = isOffline(e);
+		} catch (RuntimeException e) {
+			Util.logd("Mobli-outbox", "Giving up " + item + ": " + e);
+			retry = false;
+		}
+		synchronized (this) {
+			item.mSending = false;
+			mInFlight--;
+			if (retry && !offline && ++item.mAttempts >= mMaxAttempts) {
+				Util.logd("Mobli-outbox", "Giving up " + item + " after " + item.mAttempts + " attempts");
+				retry = false;
+			} else if (retry && !offline) {
+				recordAttempts(item);
+			}
+			if (!retry) {
+				complete(item);
+				if (!mPaused) {
+					mBackoff = 0;
+				}
+			}
+		}
+		if (retry) {
+			pause(response != null ? response.getRetryAfter() : 0);
+			return;
+		}
+		try {
+			for (Listener listener : mListeners) {
+				if (response == null) {
+					listener.onFailed(item, 0, null);
+				} else if (response.isSuccessful()) {
+					listener.onSent(item, response.getBody());
+				} else {
+					listener.onFailed(item, response.getStatusCode(), response.getBody());
+				}
+			}
+		} finally {
+			drain();
+		}
+	}
+
+	/**
+	 * @return whether the exception means the server could not be reached,
+	 *         in which case the attempt is not counted
+	 */
+	private static boolean isOffline(IOException e) {
+		return e instanceof UnknownHostException || e instanceof ConnectException
+				|| e instanceof NoRouteToHostException || e instanceof SocketTimeoutException
+				|| e instanceof CircuitOpenException;
+	}
+
+	private static boolean isRetryable(int status) {
+		return status >= HttpURLConnection.HTTP_INTERNAL_ERROR || status == HttpURLConnection.HTTP_UNAUTHORIZED
+				|| status == HttpURLConnection.HTTP_CLIENT_TIMEOUT || status == 429;
+	}
+
+	/**
+	 * Stop sending until the backoff elapses, doubling it.
+	 *
+	 * @param retryAfter
+	 *            - delay asked by the server, in milliseconds, which the
+	 *            backoff is raised to, up to MAX_BACKOFF
+	 */
+	private synchronized void pause(long retryAfter) {
+		if (mPaused || mJournal == null) {
+			return;
+		}
+		mPaused = true;
+		mBackoff = mBackoff == 0 ? MIN_BACKOFF : Math.min(mBackoff * 2, MAX_BACKOFF);
+		mBackoff = Math.max(mBackoff, Math.min(retryAfter, MAX_BACKOFF));
+		Util.logd("Mobli-outbox", "Retrying in " + mBackoff + " ms");
+		mRetry = RequestHandle.getTimer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (Outbox.this) {
+					mPaused = false;
+					mRetry = null;
+				}
+				drain();
+			}
+		}, mBackoff, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Remove a request from the pending ones and record its completion,
+	 * compacting the journal once the completions outnumber the pending
+	 * requests. Called with the lock held.
+	 */
+	private void complete(Item item) {
+		mPending.remove(item.mSequence);
+		if (mJournal == null) {
+			return;
+		}
+		try {
+			// not synced: a lost completion only sends the request again
+			append(encodeDone(item.mSequence), false);
+			mDoneRecords++;
+			if (mDoneRecords >= COMPACT_THRESHOLD && mDoneRecords > mPending.size()) {
+				compact();
+			}
+		} catch (IOException e) {
+			Util.logd("Mobli-outbox", "Could not record the completion of " + item + ": " + e);
+		}
+	}
+
+	/**
+	 * Record the number of attempts of a request, so that a request is not
+	 * sent forever by the outboxes opened on the journal. Called with the
+	 * lock held.
+	 */
+	private void recordAttempts(Item item) {
+		if (mJournal == null) {
+			return;
+		}
+		try {
+			// not synced: a lost record only allows one more attempt
+			append(encodeAttempts(item), false);
+			mDoneRecords++;
+		} catch (IOException e) {
+			Util.logd("Mobli-outbox", "Could not record the attempts of " + item + ": " + e);
+		}
+	}
+
+	/**
+	 * Append a record to the journal, or leave the journal as it was if the
+	 * record cannot be written whole.
+	 */
+	private void append(byte[] record, boolean sync) throws IOException {
+		long length = mJournal.length();
+		try {
+			mJournal.write(record);
+			if (sync) {
+				mJournal.getFD().sync();
+			}
+		} catch (IOException e) {
+			try {
+				mJournal.setLength(length);
+				mJournal.seek(length);
+			} catch (IOException te) {
+				// the torn record is truncated when the journal is opened
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the journal, truncating it after its last complete record, or
+	 * create it.
+	 */
+	private void open() throws IOException {
+		long valid = HEADER_LENGTH;
+		if (mFile.length() < HEADER_LENGTH) {
+			writeJournal(mFile);
+		} else {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 8192));
+			try {
+				if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+					throw new IOException("Not an outbox journal: " + mFile);
+				}
+				for (byte[] record = readRecord(in); record != null; record = readRecord(in)) {
+					apply(record);
+					valid += record.length + 8;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		mJournal = new RandomAccessFile(mFile, "rw");
+		if (mJournal.length() > valid) {
+			Util.logd("Mobli-outbox", "Truncating the journal after its last complete record");
+			mJournal.setLength(valid);
+		}
+		mJournal.seek(valid);
+	}
+
+	/**
+	 * @return the next record, or null at the end of the journal or at a
+	 *         torn record
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			if (length <= 0 || length > MAX_RECORD_LENGTH) {
+				return null;
+			}
+			byte[] record = new byte[length];
+			in.readFully(record);
+			int checksum = in.readInt();
+			return checksum(record, 0, length) == checksum ? record : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private void apply(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		long sequence = in.readLong();
+		if (type == RECORD_ADD) {
+			String key = readString(in);
+			String method = readString(in);
+			String baseUrl = readString(in);
+			String path = readString(in);
+			long queuedAt = in.readLong();
+			String[] parameters = new String[in.readInt()];
+			for (int i = 0; i < parameters.length; i++) {
+				parameters[i] = readString(in);
+			}
+			mPending.put(sequence, new Item(sequence, key, method, baseUrl, path, parameters, queuedAt));
+			mNextSequence = Math.max(mNextSequence, sequence + 1);
+		} else if (type == RECORD_DONE) {
+			mPending.remove(sequence);
+			mDoneRecords++;
+		} else if (type == RECORD_ATTEMPTS) {
+			Item item = mPending.get(sequence);
+			if (item != null) {
+				item.mAttempts = in.readInt();
+			}
+			mDoneRecords++;
+		}
+	}
+
+	/**
+	 * Rewrite the journal with the pending requests only.
+	 */
+	private void compact() throws IOException {
+		File temp = new File(mFile.getPath() + ".tmp");
+		writeJournal(temp);
+		mJournal.close();
+		if (!temp.renameTo(mFile)) {
+			mJournal = new RandomAccessFile(mFile, "rw");
+			mJournal.seek(mJournal.length());
+			throw new IOException("Could not rename " + temp);
+		}
+		mJournal = new RandomAccessFile(mFile, "rw");
+		mJournal.seek(mJournal.length());
+		mDoneRecords = 0;
+	}
+
+	private void writeJournal(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 8192));
+			data.writeInt(MAGIC);
+			data.writeByte(VERSION);
+			for (Item item : mPending.values()) {
+				data.write(encode(item));
+				if (item.mAttempts > 0) {
+					data.write(encodeAttempts(item));
+				}
+			}
+			data.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] encode(Item item) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeByte(RECORD_ADD);
+		out.writeLong(item.mSequence);
+		writeString(out, item.mKey);
+		writeString(out, item.mMethod);
+		writeString(out, item.mBaseUrl);
+		writeString(out, item.mPath);
+		out.writeLong(item.mQueuedAt);
+		out.writeInt(item.mParameters.length);
+		for (String s : item.mParameters) {
+			writeString(out, s);
+		}
+		out.writeInt(0);
+		return seal(bytes.toByteArray());
+	}
+
+	private static byte[] encodeDone(long sequence) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(17);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeByte(RECORD_DONE);
+		out.writeLong(sequence);
+		out.writeInt(0);
+		return seal(bytes.toByteArray());
+	}
+
+	private static byte[] encodeAttempts(Item item) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(21);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeByte(RECORD_ATTEMPTS);
+		out.writeLong(item.mSequence);
+		out.writeInt(item.mAttempts);
+		out.writeInt(0);
+		return seal(bytes.toByteArray());
+	}
+
+	/**
+	 * Fill in the length and checksum around the payload of a record.
+	 */
+	private static byte[] seal(byte[] record) {
+		int length = record.length - 8;
+		putInt(record, 0, length);
+		putInt(record, record.length - 4, checksum(record, 4, length));
+		return record;
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	private static int checksum(byte[] b, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(b, offset, length);
+		return (int) crc.getValue();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * @return the names and values of the parameters, in turn
+	 */
+	private static String[] toParameters(Bundle params) {
+		if (params == null) {
+			return new String[0];
+		}
+		String[] parameters = new String[params.size() * 2];
+		int i = 0;
+		for (String key : params.keySet()) {
+			Object value = params.get(key);
+			if (!(value instanceof String)) {
+				throw new IllegalArgumentException("only string parameters can be queued: " + key);
+			}
+			parameters[i++] = key;
+			parameters[i++] = (String) value;
+		}
+		return parameters;
+	}
+
+	/**
+	 * A queued request.
+	 */
+	public static final class Item {
+
+		final long mSequence;
+		final String mKey;
+		final String mMethod;
+		final String mBaseUrl;
+		final String mPath;
+		final String[] mParameters;
+		final long mQueuedAt;
+		/** guarded by the outbox */
+		boolean mSending;
+		/**
+		 * number of times the request was answered with a retryable status,
+		 * written by the outbox
+		 */
+		volatile int mAttempts;
+
+		Item(long sequence, String key, String method, String baseUrl, String path, String[] parameters, long queuedAt) {
+			mSequence = sequence;
+			mKey = key;
+			mMethod = method;
+			mBaseUrl = baseUrl;
+			mPath = path;
+			mParameters = parameters;
+			mQueuedAt = queuedAt;
+		}
+
+		/**
+		 * @return the idempotency key of the request
+		 */
+		public String getKey() {
+			return mKey;
+		}
+
+		public String getMethod() {
+			return mMethod;
+		}
+
+		public String getBaseUrl() {
+			return mBaseUrl;
+		}
+
+		public String getPath() {
+			return mPath;
+		}
+
+		/**
+		 * @return a copy of the parameters of the request
+		 */
+		public Bundle getParams() {
+			Bundle params = new Bundle();
+			for (int i = 0; i < mParameters.length; i += 2) {
+				params.putString(mParameters[i], mParameters[i + 1]);
+			}
+			return params;
+		}
+
+		/**
+		 * @return the number of times the request was answered with a
+		 *         retryable status
+		 */
+		public int getAttempts() {
+			return mAttempts;
+		}
+
+		/**
+		 * @return the time the request was queued, in milliseconds since the
+		 *         epoch
+		 */
+		public long getQueuedAt() {
+			return mQueuedAt;
+		}
+
+		@Override
+		public String toString() {
+			return mMethod + " " + mPath + " (" + mKey + ")";
+		}
+	}
+
+	/**
+	 * Receives the final outcome of the queued requests, on the thread which
+	 * sent them.
+	 */
+	public static interface Listener {
+
+		/**
+		 * The request was sent, and answered with a 2xx status.
+		 *
+		 * @param response
+		 *            - the response body
+		 */
+		public void onSent(Item item, String response);
+
+		/**
+		 * The request was rejected with a status which cannot change by
+		 * sending it again, e.g. 400 or 404, or failed with a retryable
+		 * status or an IOException getMaxAttempts() times, or could not be
+		 * sent because of an unexpected exception, and was removed from the
+		 * outbox.
+		 *
+		 * @param statusCode
+		 *            - the status of the last response, or 0 if there was
+		 *            none
+		 * @param response
+		 *            - the response body, e.g. a Mobli error readable with
+		 *            Util.parseJson, or null if there was none
+		 */
+		public void onFailed(Item item, int statusCode, String response);
+
+	}
+}
@@ -0,0 +1,237 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import android.os.Bundle;
+
+import com.mobli.android.AsyncMobliRunner.CancellableRequestListener;
+import com.mobli.android.AsyncMobliRunner.RequestListener;
+
+/**
+ * Single-flight deduplication of identical asynchronous GET requests.
+ *
+ * While a GET request is in flight, further requests for the same method, base
+ * URL, path and parameters, and the same priority, do not open a connection of
+ * their own; they wait for the request in flight and receive its outcome, each
+ * with its own state. Requests of different priorities are not coalesced, so
+ * that an INTERACTIVE request never waits behind the BACKGROUND lane.
+ * Every caller still gets its own RequestHandle: cancelling it (or exceeding
+ * its total timeout) only detaches that caller, and the shared request is
+ * aborted once no caller is waiting for it anymore.
+ *
+ * One coalescer is shared by all runners of a Mobli object, since requests of
+ * the same session carry the same access token.
+ */
+final class RequestCoalescer {
+
+	private final HashMap<String, Flight> mFlights = new HashMap<String, Flight>();
+
+	/**
+	 * Issue the request through the given runner, or join an identical request
+	 * already in flight.
+	 */
+	RequestHandle request(AsyncMobliRunner runner, String baseUrl, String relativePath, Bundle parameters, RequestOptions options,
+			RequestListener listener, Object state) {
+		RequestExecutor.Priority priority = options != null ? options.getPriority() : new RequestOptions().getPriority();
+		final String key = priority + " " + key("GET", baseUrl, relativePath, parameters);
+		final Flight flight;
+		final RequestHandle handle;
+		final Waiter waiter;
+		boolean leader = false;
+
+		synchronized (this) {
+			Flight existing = mFlights.get(key);
+			if (existing == null) {
+				flight = new Flight(key);
+				mFlights.put(key, flight);
+				leader = true;
+			} else {
+				flight = existing;
+			}
+			// the waiters share the events of the flight
+			handle = new RequestHandle(options, flight.mCallId);
+			waiter = new Waiter(handle, listener, state);
+			flight.mWaiters.add(waiter);
+		}
+
+		handle.setAbortCallback(new Runnable() {
+			@Override
+			public void run() {
+				if (handle.finishQueued()) {
+					leave(flight, waiter);
+					AsyncMobliRunner.dispatchAbort(handle, waiter.mListener, waiter.mState);
+				}
+			}
+		});
+		handle.startDeadline();
+
+		if (leader) {
+			// the shared request has no total timeout: each waiter enforces its own
+			RequestOptions flightOptions = new RequestOptions().setPriority(handle.getOptions().getPriority())
+					.setConnectTimeout(handle.getOptions().getConnectTimeout()).setReadTimeout(handle.getOptions().getReadTimeout())
+					.setRetryPolicy(handle.getOptions().getRetryPolicy());
+			RequestHandle flightHandle = runner.execute(baseUrl, relativePath, parameters, "GET", flightOptions, flight.mCallId, flight,
+					null);
+			boolean abandoned;
+			synchronized (this) {
+				flight.mHandle = flightHandle;
+				abandoned = flight.mWaiters.isEmpty();
+			}
+			if (abandoned) {
+				flightHandle.cancel();
+			}
+		}
+		return handle;
+	}
+
+	/**
+	 * @return the number of distinct requests currently in flight
+	 */
+	synchronized int getFlightCount() {
+		return mFlights.size();
+	}
+
+	private void leave(Flight flight, Waiter waiter) {
+		RequestHandle abandoned = null;
+		synchronized (this) {
+			flight.mWaiters.remove(waiter);
+			if (flight.mWaiters.isEmpty()) {
+				if (mFlights.get(flight.mKey) == flight) {
+					mFlights.remove(flight.mKey);
+				}
+				abandoned = flight.mHandle;
+			}
+		}
+		if (abandoned != null) {
+			abandoned.cancel();
+		}
+	}
+
+	/**
+	 * Build the deduplication key of a request. Parameters are sorted by name
+	 * so that the key does not depend on the Bundle's iteration order.
+	 */
+	static String key(String method, String baseUrl, String relativePath, Bundle parameters) {
+		return method + ' ' + UrlEncoder.buildUrl(baseUrl + relativePath, parameters, null);
+	}
+
+	private static final class Waiter {
+
+		final RequestHandle mHandle;
+		final RequestListener mListener;
+		final Object mState;
+
+		Waiter(RequestHandle handle, RequestListener listener, Object state) {
+			mHandle = handle;
+			mListener = listener;
+			mState = state;
+		}
+	}
+
+	/**
+	 * The shared request, fanning its outcome out to all waiters that are
+	 * still attached when it completes.
+	 */
+	private final class Flight implements CancellableRequestListener {
+
+		final String mKey;
+		final long mCallId = Util.nextCallId();
+		final List<Waiter> mWaiters = new ArrayList<Waiter>(2);
+		RequestHandle mHandle;
+
+		Flight(String key) {
+			mKey = key;
+		}
+
+		/**
+		 * Detach this flight so that later requests start a new one.
+		 *
+		 * @return the waiters which have not been settled yet
+		 */
+		private List<Waiter> land() {
+			List<Waiter> waiters = new ArrayList<Waiter>();
+			synchronized (RequestCoalescer.this) {
+				if (mFlights.get(mKey) == this) {
+					mFlights.remove(mKey);
+				}
+				waiters.addAll(mWaiters);
+				mWaiters.clear();
+			}
+			for (int i = waiters.size() - 1; i >= 0; i--) {
+				if (!waiters.get(i).mHandle.finishQueued()) {
+					waiters.remove(i);
+				}
+			}
+			return waiters;
+		}
+
+		@Override
+		public void onComplete(String response, Object unused) {
+			for (Waiter waiter : land()) {
+				waiter.mListener.onComplete(response, waiter.mState);
+			}
+		}
+
+		@Override
+		public void onIOException(IOException e, Object unused) {
+			for (Waiter waiter : land()) {
+				waiter.mListener.onIOException(e, waiter.mState);
+			}
+		}
+
+		@Override
+		public void onFileNotFoundException(FileNotFoundException e, Object unused) {
+			for (Waiter waiter : land()) {
+				waiter.mListener.onFileNotFoundException(e, waiter.mState);
+			}
+		}
+
+		@Override
+		public void onMalformedURLException(MalformedURLException e, Object unused) {
+			for (Waiter waiter : land()) {
+				waiter.mListener.onMalformedURLException(e, waiter.mState);
+			}
+		}
+
+		@Override
+		public void onMobliError(MobliError e, Object unused) {
+			for (Waiter waiter : land()) {
+				waiter.mListener.onMobliError(e, waiter.mState);
+			}
+		}
+
+		@Override
+		public void onCancel(Object unused) {
+			// only cancelled once every waiter has left
+			land();
+		}
+
+		@Override
+		public void onTimeout(SocketTimeoutException e, Object unused) {
+			for (Waiter waiter : land()) {
+				AsyncMobliRunner.dispatchTimeout(waiter.mListener, e, waiter.mState);
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+/**
+ * Receives the lifecycle events of the requests, e.g. to trace them: each
+ * event has the id of its request, shared by all the events of the
+ * request, and the System.nanoTime() at which it happened.
+ *
+ * The events of an asynchronous request go from ENQUEUED to DISPATCH_END;
+ * the ones of a blocking request from CALL_START to CALL_END or
+ * CALL_FAILED. A request attempted more than once has the events from
+ * ATTEMPT_START to RESPONSE_HEADERS for each attempt. Identical GET requests
+ * coalesced into one share its id and events. The platform opens the
+ * connections of UrlConnectionTransport: of the connection events, it only
+ * sends CONNECT_END, SECURE_CONNECT_START and SECURE_CONNECT_END when a
+ * request opens a new HTTPS connection, the first two only when the
+ * platform layers TLS over a connected socket, as Android does. DNS_START,
+ * DNS_END and CONNECT_START are only sent by transports opening their own
+ * sockets.
+ *
+ * Events are sent on the thread they happen on, mostly the request thread,
+ * so the listener must be thread-safe, fast, and must not throw.
+ *
+ * @see Util#setEventListener(RequestEventListener)
+ */
+public interface RequestEventListener {
+
+	public static enum Event {
+		/** an asynchronous request was submitted to its executor */
+		ENQUEUED,
+		/** an asynchronous request started running */
+		DEQUEUED,
+		/** the request entered the interceptor chain */
+		CALL_START,
+		/** the request is sent to the transport, once per attempt */
+		ATTEMPT_START,
+		/**
+		 * a new connection resolves the host, only sent by transports
+		 * opening their own sockets
+		 */
+		DNS_START,
+		/** only sent by transports opening their own sockets */
+		DNS_END,
+		/**
+		 * a new connection is opened, only sent by transports opening their
+		 * own sockets
+		 */
+		CONNECT_START,
+		/**
+		 * the TCP connection is established; sent by UrlConnectionTransport
+		 * when TLS is layered over it
+		 */
+		CONNECT_END,
+		/** the TLS handshake of a new HTTPS connection begins */
+		SECURE_CONNECT_START,
+		/** the TLS handshake is complete */
+		SECURE_CONNECT_END,
+		/** the connection, new or pooled, is ready for the request */
+		CONNECTION_ACQUIRED,
+		/** the body of a non-GET request is being written */
+		REQUEST_BODY_START,
+		REQUEST_BODY_END,
+		/** the status and headers of the response are received */
+		RESPONSE_HEADERS,
+		/** the response body is handed to its reader */
+		RESPONSE_BODY_START,
+		/** the response body was read and closed */
+		RESPONSE_BODY_END,
+		/** the request completed with a response */
+		CALL_END,
+		/** the request failed with an exception */
+		CALL_FAILED,
+		/** the RequestListener of an asynchronous request is called */
+		DISPATCH_START,
+		/** the RequestListener returned */
+		DISPATCH_END
+	}
+
+	/**
+	 * @param callId
+	 *            - id of the request, see MobliRequest.getCallId()
+	 * @param event
+	 *            - what happened
+	 * @param nanoTime
+	 *            - System.nanoTime() of the event
+	 */
+	public void onEvent(long callId, Event event, long nanoTime);
+
+}
@@ -0,0 +1,196 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded thread pool used by AsyncMobliRunner to execute API requests.
+ *
+ * A fixed number of worker threads drain a single queue which is ordered by
+ * priority lane: interactive requests (those a user is waiting on) are always
+ * dequeued before background requests, and requests within the same lane run
+ * in submission order. The queue holds at most queueLimit pending requests;
+ * once it is full, new requests are handed to the RejectedExecutionHandler.
+ * The worker threads are started as requests come in, up to the pool size,
+ * and then kept for the life of the executor: idle threads are not
+ * reclaimed, since core threads can only time out from API level 9.
+ *
+ * The default handler is ThreadPoolExecutor.AbortPolicy, in which case
+ * AsyncMobliRunner reports the rejection to the RequestListener through
+ * onIOException. Note that a handler which silently discards requests (e.g.
+ * ThreadPoolExecutor.DiscardPolicy) means the listener is never called.
+ *
+ * @see AsyncMobliRunner#AsyncMobliRunner(Mobli, java.util.concurrent.Executor)
+ */
+public class RequestExecutor extends ThreadPoolExecutor {
+
+	/**
+	 * Priority lane of a request. Lanes are listed from highest to lowest
+	 * priority.
+	 */
+	public static enum Priority {
+		INTERACTIVE, BACKGROUND
+	}
+
+	public static final int DEFAULT_POOL_SIZE = 4;
+	public static final int DEFAULT_QUEUE_LIMIT = 64;
+
+	private static RequestExecutor sDefaultExecutor;
+
+	private final AtomicLong mSequence = new AtomicLong();
+
+	/**
+	 * Create an executor with DEFAULT_POOL_SIZE threads, a queue of
+	 * DEFAULT_QUEUE_LIMIT requests and the abort rejection policy.
+	 */
+	public RequestExecutor() {
+		this(DEFAULT_POOL_SIZE, DEFAULT_QUEUE_LIMIT, new AbortPolicy());
+	}
+
+	/**
+	 * @param poolSize
+	 *            Number of worker threads, i.e. the maximum number of requests
+	 *            executing concurrently.
+	 * @param queueLimit
+	 *            Maximum number of requests waiting for a worker thread.
+	 * @param rejectionHandler
+	 *            Policy applied to requests submitted while the queue is full
+	 *            or after the executor has been shut down.
+	 */
+	public RequestExecutor(int poolSize, int queueLimit, RejectedExecutionHandler rejectionHandler) {
+		super(poolSize, poolSize, 0, TimeUnit.MILLISECONDS, new BoundedPriorityQueue(queueLimit),
+				new RequestThreadFactory(), rejectionHandler);
+	}
+
+	/**
+	 * @return the executor shared by all AsyncMobliRunner instances which were
+	 *         not given an executor of their own
+	 */
+	public static synchronized RequestExecutor getDefault() {
+		if (sDefaultExecutor == null) {
+			sDefaultExecutor = new RequestExecutor();
+		}
+		return sDefaultExecutor;
+	}
+
+	/**
+	 * Execute the given command in the interactive lane.
+	 */
+	@Override
+	public void execute(Runnable command) {
+		execute(command, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Execute the given command in the given priority lane.
+	 *
+	 * @throws java.util.concurrent.RejectedExecutionException
+	 *             if the rejection policy aborts the command
+	 */
+	public void execute(Runnable command, Priority priority) {
+		if (command instanceof PrioritizedTask) {
+			super.execute(command);
+		} else {
+			super.execute(new PrioritizedTask(command, priority, mSequence.getAndIncrement()));
+		}
+	}
+
+	/**
+	 * @return the maximum number of requests waiting for a worker thread
+	 */
+	public int getQueueLimit() {
+		return ((BoundedPriorityQueue) getQueue()).mLimit;
+	}
+
+	/**
+	 * Queue entry ordering requests by lane, then by submission order.
+	 */
+	static final class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+		final Runnable mCommand;
+		final Priority mPriority;
+		final long mSequence;
+
+		PrioritizedTask(Runnable command, Priority priority, long sequence) {
+			if (command == null || priority == null) {
+				throw new NullPointerException();
+			}
+			mCommand = command;
+			mPriority = priority;
+			mSequence = sequence;
+		}
+
+		@Override
+		public void run() {
+			mCommand.run();
+		}
+
+		@Override
+		public int compareTo(PrioritizedTask another) {
+			int result = mPriority.compareTo(another.mPriority);
+			if (result == 0) {
+				result = mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * PriorityBlockingQueue is unbounded; refusing offers past the limit makes
+	 * ThreadPoolExecutor apply its rejection policy instead.
+	 */
+	private static final class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+
+		private static final long serialVersionUID = 2958136548217411409L;
+
+		final int mLimit;
+
+		BoundedPriorityQueue(int limit) {
+			super(Math.max(1, Math.min(limit, 11)));
+			if (limit < 1) {
+				throw new IllegalArgumentException("queueLimit must be positive");
+			}
+			mLimit = limit;
+		}
+
+		@Override
+		public synchronized boolean offer(Runnable e) {
+			if (size() >= mLimit) {
+				return false;
+			}
+			return super.offer(e);
+		}
+	}
+
+	private static final class RequestThreadFactory implements ThreadFactory {
+
+		private final AtomicInteger mCount = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "MobliRequest #" + mCount.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle to a request issued through AsyncMobliRunner, which may be used to
+ * cancel the request.
+ *
+ * Cancelling a request which is still queued prevents it from running;
+ * cancelling a request in progress aborts its connection. Either way, a
+ * CancellableRequestListener receives onCancel instead of the normal outcome.
+ * The same mechanism enforces the total timeout of RequestOptions.
+ */
+public class RequestHandle {
+
+	private static final int STATE_QUEUED = 0;
+	private static final int STATE_RUNNING = 1;
+	private static final int STATE_FINISHED = 2;
+
+	private static ScheduledExecutorService sTimer;
+
+	private final RequestOptions mOptions;
+	private final long mCallId;
+	private final AtomicInteger mState = new AtomicInteger(STATE_QUEUED);
+	private volatile boolean mCancelled;
+	private volatile boolean mTimedOut;
+	private volatile HttpTransport.Call mCall;
+	private volatile ScheduledFuture<?> mDeadline;
+	private Runnable mAbortCallback;
+
+	RequestHandle(RequestOptions options) {
+		this(options, Util.nextCallId());
+	}
+
+	/**
+	 * @param callId
+	 *            - id of the request in the events of the
+	 *            RequestEventListener, shared by coalesced requests
+	 */
+	RequestHandle(RequestOptions options, long callId) {
+		mOptions = options != null ? options : new RequestOptions();
+		mCallId = callId;
+	}
+
+	/**
+	 * Cancel the request. Has no effect if the request has already completed.
+	 *
+	 * @return false if the request had already completed, true otherwise
+	 */
+	public boolean cancel() {
+		if (mState.get() == STATE_FINISHED) {
+			return false;
+		}
+		mCancelled = true;
+		abort();
+		return true;
+	}
+
+	/**
+	 * @return whether cancel() was called before the request completed
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @return whether the request exceeded its total timeout
+	 */
+	public boolean isTimedOut() {
+		return mTimedOut;
+	}
+
+	/**
+	 * @return whether the request has completed, successfully or not
+	 */
+	public boolean isDone() {
+		return mState.get() == STATE_FINISHED;
+	}
+
+	/**
+	 * @return the id of the request in the events of the
+	 *         RequestEventListener
+	 */
+	public long getCallId() {
+		return mCallId;
+	}
+
+	public RequestOptions getOptions() {
+		return mOptions;
+	}
+
+	/**
+	 * Set the callback which settles the request when it is aborted before a
+	 * worker thread picked it up. It runs on the timer thread.
+	 */
+	void setAbortCallback(Runnable callback) {
+		mAbortCallback = callback;
+	}
+
+	/**
+	 * Start the total timeout clock, if a total timeout was requested.
+	 */
+	void startDeadline() {
+		long timeout = mOptions.getTotalTimeout();
+		if (timeout > 0) {
+			mDeadline = getTimer().schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (mState.get() != STATE_FINISHED && !mCancelled) {
+						mTimedOut = true;
+						abort();
+					}
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Called by the worker thread before executing the request.
+	 *
+	 * @return false if the request was already settled while queued
+	 */
+	boolean begin() {
+		return mState.compareAndSet(STATE_QUEUED, STATE_RUNNING);
+	}
+
+	/**
+	 * Called by the abort callback to settle a request that never started.
+	 *
+	 * @return false if a worker thread picked up the request meanwhile
+	 */
+	boolean finishQueued() {
+		if (mState.compareAndSet(STATE_QUEUED, STATE_FINISHED)) {
+			stopDeadline();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Called by the worker thread once the request has been executed.
+	 */
+	void finish() {
+		mState.set(STATE_FINISHED);
+		stopDeadline();
+	}
+
+	/**
+	 * Register the transport call of the request so that it can be aborted.
+	 * The connection timeouts are applied by the transport, from the
+	 * options.
+	 *
+	 * @throws InterruptedIOException
+	 *             if the request has already been aborted
+	 */
+	void attach(HttpTransport.Call call) throws InterruptedIOException {
+		mCall = call;
+		if (mCancelled || mTimedOut) {
+			mCall = null;
+			call.cancel();
+			throw new InterruptedIOException("Request aborted");
+		}
+	}
+
+	void detach() {
+		mCall = null;
+	}
+
+	/**
+	 * @return whether the request was cancelled or timed out
+	 */
+	boolean isAborted() {
+		return mCancelled || mTimedOut;
+	}
+
+	/**
+	 * Wait before retrying the request, waking up early if it is aborted.
+	 *
+	 * @throws InterruptedIOException
+	 *             if the request is aborted before the delay elapsed
+	 */
+	void sleep(long millis) throws InterruptedIOException {
+		long wakeUp = System.currentTimeMillis() + millis;
+		synchronized (this) {
+			for (long remaining = millis; remaining > 0 && !isAborted(); remaining = wakeUp - System.currentTimeMillis()) {
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Request interrupted");
+				}
+			}
+		}
+		if (isAborted()) {
+			throw new InterruptedIOException("Request aborted");
+		}
+	}
+
+	private void abort() {
+		HttpTransport.Call call = mCall;
+		if (call != null) {
+			call.cancel();
+		}
+		synchronized (this) {
+			// wake up a request waiting to retry
+			notifyAll();
+		}
+		if (mState.get() == STATE_QUEUED && mAbortCallback != null) {
+			getTimer().execute(mAbortCallback);
+		}
+	}
+
+	private void stopDeadline() {
+		ScheduledFuture<?> deadline = mDeadline;
+		if (deadline != null) {
+			deadline.cancel(false);
+		}
+	}
+
+	/**
+	 * @return the daemon thread running the deadlines, and other short
+	 *         timed tasks of the SDK
+	 */
+	static synchronized ScheduledExecutorService getTimer() {
+		if (sTimer == null) {
+			sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "MobliRequestTimer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sTimer;
+	}
+}
@@ -0,0 +1,586 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Metrics of the requests made by the SDK, by endpoint: latency histogram,
+ * bytes sent and received over the wire, status codes and errors, plus the
+ * time asynchronous requests wait in the queue of the RequestExecutor.
+ *
+ * An endpoint is the method and the path of the URL, with its numeric
+ * segments replaced by ":id", e.g. "GET /media/:id/comments". Recording a
+ * request neither locks nor allocates once its endpoint is known; at most
+ * MAX_ENDPOINTS endpoints are kept, the requests to the others being
+ * recorded under "* *".
+ *
+ * Read the metrics with snapshot(), or have them reported periodically with
+ * setReporter.
+ */
+public class RequestMetrics {
+
+	/** maximum number of endpoints, beyond which requests are lumped */
+	public static final int MAX_ENDPOINTS = 64;
+
+	private static final int TABLE_SIZE = 128;
+	private static final String ID = ":id";
+	private static final int MAX_STATUS = 600;
+
+	private static final RequestMetrics sDefault = new RequestMetrics();
+
+	private volatile boolean mEnabled = true;
+	private final AtomicReferenceArray<Endpoint> mTable = new AtomicReferenceArray<Endpoint>(TABLE_SIZE);
+	private final ArrayList<Endpoint> mEndpoints = new ArrayList<Endpoint>();
+	private final Endpoint mOther = new Endpoint("*", "*", 0);
+	private volatile boolean mFull;
+	private final AtomicLongArray mStatusCounts = new AtomicLongArray(MAX_STATUS);
+	private final ConcurrentHashMap<Class<?>, AtomicLong> mErrorCounts = new ConcurrentHashMap<Class<?>, AtomicLong>();
+	private final LatencyHistogram mQueueWait = new LatencyHistogram();
+	private Timer mTimer;
+
+	/**
+	 * @return the metrics recorded by the SDK
+	 */
+	public static RequestMetrics getDefault() {
+		return sDefault;
+	}
+
+	/**
+	 * Record requests or not; they are recorded by default.
+	 */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Record a request which got a response, or failed.
+	 *
+	 * @param url
+	 *            - URL of the request, without the query string
+	 * @param nanos
+	 *            - duration of the request, from the first interceptor to
+	 *            the end of the response body
+	 * @param status
+	 *            - HTTP status code of the response, or -1 without response
+	 * @param error
+	 *            - exception the request failed with, or null
+	 */
+	void record(String method, String url, long nanos, int status, Throwable error, long bytesSent, long bytesReceived) {
+		if (!mEnabled) {
+			return;
+		}
+		Endpoint endpoint = lookup(method, url);
+		endpoint.mLatency.record(nanos / 1000);
+		endpoint.mBytesSent.addAndGet(bytesSent);
+		endpoint.mBytesReceived.addAndGet(bytesReceived);
+		if (status >= 0) {
+			endpoint.mStatusClasses.incrementAndGet(status < MAX_STATUS ? status / 100 : 0);
+			if (status < MAX_STATUS) {
+				mStatusCounts.incrementAndGet(status);
+			}
+		}
+		if (error != null) {
+			endpoint.mErrors.incrementAndGet();
+			AtomicLong count = mErrorCounts.get(error.getClass());
+			if (count == null) {
+				AtomicLong created = new AtomicLong();
+				count = mErrorCounts.putIfAbsent(error.getClass(), created);
+				if (count == null) {
+					count = created;
+				}
+			}
+			count.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Record the time an asynchronous request waited to be run.
+	 */
+	void recordQueueWait(long nanos) {
+		if (mEnabled) {
+			mQueueWait.record(nanos / 1000);
+		}
+	}
+
+	/**
+	 * @return the metrics recorded so far
+	 */
+	public Snapshot snapshot() {
+		ArrayList<EndpointSnapshot> endpoints = new ArrayList<EndpointSnapshot>();
+		synchronized (mEndpoints) {
+			for (Endpoint endpoint : mEndpoints) {
+				endpoints.add(endpoint.snapshot());
+			}
+		}
+		endpoints.add(mOther.snapshot());
+		TreeMap<Integer, Long> statusCounts = new TreeMap<Integer, Long>();
+		for (int status = 0; status < MAX_STATUS; status++) {
+			long count = mStatusCounts.get(status);
+			if (count > 0) {
+				statusCounts.put(status, count);
+			}
+		}
+		TreeMap<String, Long> errorCounts = new TreeMap<String, Long>();
+		for (Map.Entry<Class<?>, AtomicLong> entry : mErrorCounts.entrySet()) {
+			errorCounts.put(entry.getKey().getName(), entry.getValue().get());
+		}
+		return new Snapshot(System.currentTimeMillis(), endpoints, statusCounts, errorCounts, mQueueWait.snapshot());
+	}
+
+	/**
+	 * Have the metrics of each period handed to the reporter, on a thread of
+	 * its own.
+	 *
+	 * @param reporter
+	 *            - the reporter, or null to stop reporting
+	 * @param periodMillis
+	 *            - time between two reports, in milliseconds
+	 */
+	public synchronized void setReporter(final Reporter reporter, long periodMillis) {
+		if (mTimer != null) {
+			mTimer.cancel();
+			mTimer = null;
+		}
+		if (reporter == null) {
+			return;
+		}
+		if (periodMillis <= 0) {
+			throw new IllegalArgumentException("periodMillis must be positive");
+		}
+		mTimer = new Timer("Mobli-metrics", true);
+		mTimer.scheduleAtFixedRate(new TimerTask() {
+			private Snapshot mPrevious = snapshot();
+
+			@Override
+			public void run() {
+				Snapshot current = snapshot();
+				try {
+					reporter.onReport(current.since(mPrevious));
+				} catch (RuntimeException e) {
+					Util.logd("Mobli-Metrics", "Reporter failed: " + e);
+				}
+				mPrevious = current;
+			}
+		}, periodMillis, periodMillis);
+	}
+
+	/**
+	 * @return the endpoint of the request, created if needed
+	 */
+	private Endpoint lookup(String method, String url) {
+		int start = pathStart(url);
+		int end = url.indexOf('?', start);
+		if (end == -1) {
+			end = url.length();
+		}
+		int hash = hash(method, url, start, end);
+		for (int i = hash & (TABLE_SIZE - 1);; i = (i + 1) & (TABLE_SIZE - 1)) {
+			Endpoint endpoint = mTable.get(i);
+			if (endpoint == null) {
+				return mFull ? mOther : insert(method, url, start, end, hash);
+			}
+			if (endpoint.mHash == hash && endpoint.matches(method, url, start, end)) {
+				return endpoint;
+			}
+		}
+	}
+
+	private Endpoint insert(String method, String url, int start, int end, int hash) {
+		synchronized (mEndpoints) {
+			int i = hash & (TABLE_SIZE - 1);
+			for (Endpoint endpoint = mTable.get(i); endpoint != null; endpoint = mTable.get(i)) {
+				if (endpoint.mHash == hash && endpoint.matches(method, url, start, end)) {
+					return endpoint;
+				}
+				i = (i + 1) & (TABLE_SIZE - 1);
+			}
+			if (mEndpoints.size() == MAX_ENDPOINTS) {
+				return mOther;
+			}
+			Endpoint endpoint = new Endpoint(method, normalize(url, start, end), hash);
+			mTable.set(i, endpoint);
+			mEndpoints.add(endpoint);
+			mFull = mEndpoints.size() == MAX_ENDPOINTS;
+			return endpoint;
+		}
+	}
+
+	/**
+	 * @return the index of the path in the URL, after its authority
+	 */
+	private static int pathStart(String url) {
+		int scheme = url.indexOf("://");
+		if (scheme == -1) {
+			return 0;
+		}
+		int path = url.indexOf('/', scheme + 3);
+		return path != -1 ? path : url.length();
+	}
+
+	private static boolean isId(String url, int start, int end) {
+		if (start == end) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			char c = url.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int segmentEnd(String url, int start, int end) {
+		int slash = url.indexOf('/', start);
+		return slash != -1 && slash < end ? slash : end;
+	}
+
+	/**
+	 * @return the hash of the method and the normalized path, computed
+	 *         without building the path
+	 */
+	private static int hash(String method, String url, int start, int end) {
+		int h = method.hashCode();
+		for (int i = start; i < end; i++) {
+			int segmentEnd = segmentEnd(url, i, end);
+			if (isId(url, i, segmentEnd)) {
+				h = 31 * h + ID.hashCode();
+			} else {
+				for (int j = i; j < segmentEnd; j++) {
+					h = 31 * h + url.charAt(j);
+				}
+			}
+			i = segmentEnd;
+			if (i < end) {
+				h = 31 * h + '/';
+			}
+		}
+		return h;
+	}
+
+	private static String normalize(String url, int start, int end) {
+		StringBuilder path = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			int segmentEnd = segmentEnd(url, i, end);
+			if (isId(url, i, segmentEnd)) {
+				path.append(ID);
+			} else {
+				path.append(url, i, segmentEnd);
+			}
+			i = segmentEnd;
+			if (i < end) {
+				path.append('/');
+			}
+		}
+		return path.toString();
+	}
+
+	/**
+	 * The metrics of an endpoint.
+	 */
+	private static final class Endpoint {
+
+		final String mMethod;
+		final String mPath;
+		final int mHash;
+		final LatencyHistogram mLatency = new LatencyHistogram();
+		final AtomicLong mBytesSent = new AtomicLong();
+		final AtomicLong mBytesReceived = new AtomicLong();
+		final AtomicLong mErrors = new AtomicLong();
+		/** by hundreds of status codes, e.g. 2 for 2xx */
+		final AtomicLongArray mStatusClasses = new AtomicLongArray(MAX_STATUS / 100);
+
+		Endpoint(String method, String path, int hash) {
+			mMethod = method;
+			mPath = path;
+			mHash = hash;
+		}
+
+		/**
+		 * @return whether the request has this endpoint, comparing the path
+		 *         segment by segment
+		 */
+		boolean matches(String method, String url, int start, int end) {
+			if (!mMethod.equals(method)) {
+				return false;
+			}
+			int p = 0;
+			for (int i = start; i < end; i++) {
+				int segmentEnd = segmentEnd(url, i, end);
+				if (isId(url, i, segmentEnd)) {
+					if (!mPath.startsWith(ID, p)) {
+						return false;
+					}
+					p += ID.length();
+				} else {
+					int length = segmentEnd - i;
+					if (!mPath.regionMatches(p, url, i, length)) {
+						return false;
+					}
+					p += length;
+				}
+				i = segmentEnd;
+				if (i < end) {
+					if (p == mPath.length() || mPath.charAt(p) != '/') {
+						return false;
+					}
+					p++;
+				}
+			}
+			return p == mPath.length();
+		}
+
+		EndpointSnapshot snapshot() {
+			long[] statusClasses = new long[mStatusClasses.length()];
+			for (int i = 0; i < statusClasses.length; i++) {
+				statusClasses[i] = mStatusClasses.get(i);
+			}
+			return new EndpointSnapshot(mMethod, mPath, mLatency.snapshot(), mBytesSent.get(), mBytesReceived.get(),
+					mErrors.get(), statusClasses);
+		}
+	}
+
+	/**
+	 * Receives the metrics of each period.
+	 *
+	 * @see RequestMetrics#setReporter(Reporter, long)
+	 */
+	public static interface Reporter {
+
+		/**
+		 * @param snapshot
+		 *            - the metrics recorded since the previous report
+		 */
+		public void onReport(Snapshot snapshot);
+
+	}
+
+	/**
+	 * The metrics of all the endpoints at a point in time, or between two
+	 * points in time (see since).
+	 */
+	public static final class Snapshot {
+
+		private final long mTime;
+		private final List<EndpointSnapshot> mEndpoints;
+		private final Map<Integer, Long> mStatusCounts;
+		private final Map<String, Long> mErrorCounts;
+		private final LatencyHistogram.Snapshot mQueueWait;
+
+		Snapshot(long time, List<EndpointSnapshot> endpoints, Map<Integer, Long> statusCounts, Map<String, Long> errorCounts,
+				LatencyHistogram.Snapshot queueWait) {
+			mTime = time;
+			mEndpoints = Collections.unmodifiableList(endpoints);
+			mStatusCounts = Collections.unmodifiableMap(statusCounts);
+			mErrorCounts = Collections.unmodifiableMap(errorCounts);
+			mQueueWait = queueWait;
+		}
+
+		/**
+		 * @return the time of the snapshot, in milliseconds since the epoch
+		 */
+		public long getTime() {
+			return mTime;
+		}
+
+		/**
+		 * @return the endpoints requested, the last one being "* *"
+		 */
+		public List<EndpointSnapshot> getEndpoints() {
+			return mEndpoints;
+		}
+
+		/**
+		 * @return the number of responses by status code
+		 */
+		public Map<Integer, Long> getStatusCounts() {
+			return mStatusCounts;
+		}
+
+		/**
+		 * @return the number of failed requests by exception class name
+		 */
+		public Map<String, Long> getErrorCounts() {
+			return mErrorCounts;
+		}
+
+		/**
+		 * @return the time asynchronous requests waited to be run, in
+		 *         microseconds
+		 */
+		public LatencyHistogram.Snapshot getQueueWait() {
+			return mQueueWait;
+		}
+
+		public long getBytesSent() {
+			long bytes = 0;
+			for (EndpointSnapshot endpoint : mEndpoints) {
+				bytes += endpoint.getBytesSent();
+			}
+			return bytes;
+		}
+
+		public long getBytesReceived() {
+			long bytes = 0;
+			for (EndpointSnapshot endpoint : mEndpoints) {
+				bytes += endpoint.getBytesReceived();
+			}
+			return bytes;
+		}
+
+		/**
+		 * @return the metrics recorded after the given earlier snapshot
+		 */
+		public Snapshot since(Snapshot earlier) {
+			HashMap<String, EndpointSnapshot> previous = new HashMap<String, EndpointSnapshot>();
+			for (EndpointSnapshot endpoint : earlier.mEndpoints) {
+				previous.put(endpoint.toString(), endpoint);
+			}
+			ArrayList<EndpointSnapshot> endpoints = new ArrayList<EndpointSnapshot>();
+			for (EndpointSnapshot endpoint : mEndpoints) {
+				EndpointSnapshot before = previous.get(endpoint.toString());
+				endpoints.add(before != null ? endpoint.since(before) : endpoint);
+			}
+			return new Snapshot(mTime, endpoints, since(mStatusCounts, earlier.mStatusCounts), since(mErrorCounts,
+					earlier.mErrorCounts), mQueueWait.since(earlier.mQueueWait));
+		}
+
+		private static <K> TreeMap<K, Long> since(Map<K, Long> counts, Map<K, Long> earlier) {
+			TreeMap<K, Long> result = new TreeMap<K, Long>();
+			for (Map.Entry<K, Long> entry : counts.entrySet()) {
+				Long before = earlier.get(entry.getKey());
+				long count = entry.getValue() - (before != null ? before : 0);
+				if (count > 0) {
+					result.put(entry.getKey(), count);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * The metrics of an endpoint.
+	 */
+	public static final class EndpointSnapshot {
+
+		private final String mMethod;
+		private final String mPath;
+		private final LatencyHistogram.Snapshot mLatency;
+		private final long mBytesSent;
+		private final long mBytesReceived;
+		private final long mErrorCount;
+		private final long[] mStatusClasses;
+
+		EndpointSnapshot(String method, String path, LatencyHistogram.Snapshot latency, long bytesSent, long bytesReceived,
+				long errorCount, long[] statusClasses) {
+			mMethod = method;
+			mPath = path;
+			mLatency = latency;
+			mBytesSent = bytesSent;
+			mBytesReceived = bytesReceived;
+			mErrorCount = errorCount;
+			mStatusClasses = statusClasses;
+		}
+
+		/**
+		 * @return the method requested by the application, e.g. "DELETE"
+		 */
+		public String getMethod() {
+			return mMethod;
+		}
+
+		/**
+		 * @return the normalized path, e.g. "/media/:id"
+		 */
+		public String getPath() {
+			return mPath;
+		}
+
+		/**
+		 * @return the latency of the requests, in microseconds
+		 */
+		public LatencyHistogram.Snapshot getLatency() {
+			return mLatency;
+		}
+
+		/**
+		 * @return the number of requests
+		 */
+		public long getRequestCount() {
+			return mLatency.getCount();
+		}
+
+		/**
+		 * @return the request body bytes sent over the wire
+		 */
+		public long getBytesSent() {
+			return mBytesSent;
+		}
+
+		/**
+		 * @return the response body bytes received over the wire
+		 */
+		public long getBytesReceived() {
+			return mBytesReceived;
+		}
+
+		/**
+		 * @return the number of requests which failed with an exception
+		 */
+		public long getErrorCount() {
+			return mErrorCount;
+		}
+
+		/**
+		 * @param hundreds
+		 *            - class of status codes, e.g. 5 for 5xx
+		 * @return the number of responses with a status code of the class
+		 */
+		public long getStatusClassCount(int hundreds) {
+			return hundreds > 0 && hundreds < mStatusClasses.length ? mStatusClasses[hundreds] : 0;
+		}
+
+		EndpointSnapshot since(EndpointSnapshot earlier) {
+			long[] statusClasses = new long[mStatusClasses.length];
+			for (int i = 0; i < statusClasses.length; i++) {
+				statusClasses[i] = mStatusClasses[i] - earlier.mStatusClasses[i];
+			}
+			return new EndpointSnapshot(mMethod, mPath, mLatency.since(earlier.mLatency), mBytesSent - earlier.mBytesSent,
+					mBytesReceived - earlier.mBytesReceived, mErrorCount - earlier.mErrorCount, statusClasses);
+		}
+
+		@Override
+		public String toString() {
+			return mMethod + " " + mPath;
+		}
+	}
+}
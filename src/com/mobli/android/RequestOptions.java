@@ -0,0 +1,107 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+/**
+ * Per-request execution options for AsyncMobliRunner: priority lane,
+ * deadlines and retry policy. All timeouts are in milliseconds, and 0 means no timeout.
+ *
+ * The connect and read timeouts are applied to the underlying connection; the
+ * total timeout covers the whole request from the moment it is submitted,
+ * including the time spent waiting in the queue.
+ */
+public class RequestOptions {
+
+	private RequestExecutor.Priority mPriority = RequestExecutor.Priority.INTERACTIVE;
+	private int mConnectTimeout = 0;
+	private int mReadTimeout = 0;
+	private long mTotalTimeout = 0;
+	private RetryPolicy mRetryPolicy;
+
+	public RequestExecutor.Priority getPriority() {
+		return mPriority;
+	}
+
+	public RequestOptions setPriority(RequestExecutor.Priority priority) {
+		if (priority == null) {
+			throw new IllegalArgumentException("priority must not be null");
+		}
+		mPriority = priority;
+		return this;
+	}
+
+	public int getConnectTimeout() {
+		return mConnectTimeout;
+	}
+
+	/**
+	 * @param timeout
+	 *            - maximum time to establish the connection
+	 */
+	public RequestOptions setConnectTimeout(int timeout) {
+		checkTimeout(timeout);
+		mConnectTimeout = timeout;
+		return this;
+	}
+
+	public int getReadTimeout() {
+		return mReadTimeout;
+	}
+
+	/**
+	 * @param timeout
+	 *            - maximum time to wait for data once connected
+	 */
+	public RequestOptions setReadTimeout(int timeout) {
+		checkTimeout(timeout);
+		mReadTimeout = timeout;
+		return this;
+	}
+
+	public long getTotalTimeout() {
+		return mTotalTimeout;
+	}
+
+	/**
+	 * @param timeout
+	 *            - maximum time from submission until the response is read
+	 */
+	public RequestOptions setTotalTimeout(long timeout) {
+		checkTimeout(timeout);
+		mTotalTimeout = timeout;
+		return this;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return mRetryPolicy;
+	}
+
+	/**
+	 * @param policy
+	 *            - retry policy of the request, or null to use the one of the
+	 *            Mobli object
+	 */
+	public RequestOptions setRetryPolicy(RetryPolicy policy) {
+		mRetryPolicy = policy;
+		return this;
+	}
+
+	private static void checkTimeout(long timeout) {
+		if (timeout < 0) {
+			throw new IllegalArgumentException("timeout must not be negative");
+		}
+	}
+}
@@ -0,0 +1,635 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Bundle;
+
+/**
+ * Upload of a large file in chunks, which survives network drops and process
+ * restarts.
+ *
+ * The file is split into chunks of getChunkSize() bytes, which are uploaded
+ * by up to getParallelism() concurrent multipart POST requests to the given
+ * path. Each request carries the request parameters plus:
+ * <ul>
+ * <li>upload_id: identifier of the upload, identical across resumes</li>
+ * <li>chunk_index, chunk_count: position of the chunk, from 0</li>
+ * <li>chunk_offset, total_size: byte range of the chunk in the file</li>
+ * <li>a file part named "chunk" with the chunk bytes</li>
+ * </ul>
+ * Once every chunk has been accepted (2xx), a final request with upload_id,
+ * chunk_count, total_size and complete=1 asks the server to assemble the
+ * file; its response is the outcome of the upload.
+ *
+ * Every accepted chunk is recorded in a checkpoint file before the next one is
+ * counted. Creating a ResumableUpload for the same file, path and checkpoint
+ * directory after a failure, a cancel or a process restart resumes the upload
+ * with the same upload_id and skips the recorded chunks. A checkpoint is
+ * discarded if the file has changed since.
+ */
+public class ResumableUpload {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	public static final int DEFAULT_PARALLELISM = 2;
+	public static final int DEFAULT_CHUNK_ATTEMPTS = 3;
+
+	private static final String CHECKPOINT_MAGIC = "com.mobli.android.ResumableUpload 1";
+	private static final long RETRY_DELAY_MILLIS = 1000;
+	private static final long PROGRESS_INTERVAL_MILLIS = 250;
+	/** Weight of the latest sample in the smoothed throughput */
+	private static final double THROUGHPUT_SMOOTHING = 0.3;
+
+	private final Mobli mMobli;
+	private final String mBaseUrl;
+	private final String mRelativePath;
+	private final Bundle mParams;
+	private final File mFile;
+	private final File mCheckpointFile;
+
+	private int mChunkSize = DEFAULT_CHUNK_SIZE;
+	private int mParallelism = DEFAULT_PARALLELISM;
+	private int mChunkAttempts = DEFAULT_CHUNK_ATTEMPTS;
+
+	// upload state, guarded by this
+	private String mUploadId;
+	private long mTotalSize;
+	private int mChunkCount;
+	private boolean[] mChunkDone;
+	private long[] mChunkProgress;
+	private int mNextChunk;
+	private int mRemainingChunks;
+	private long mUploadedBytes;
+	private boolean mStarted;
+	private boolean mFinished;
+	private final List<RequestHandle> mActiveRequests = new ArrayList<RequestHandle>();
+
+	private volatile boolean mCancelled;
+	private ExecutorService mWorkers;
+	private Listener mListener;
+
+	// throughput estimation, guarded by this
+	private long mLastSampleTime;
+	private long mLastSampleBytes;
+	private double mBytesPerSecond;
+
+	/**
+	 * @param mobli
+	 *            Mobli object whose session authenticates the upload
+	 * @param baseUrl
+	 *            Request base url. Generally, it will be REST API base url
+	 * @param relativePath
+	 *            Relative path of the chunk upload endpoint
+	 * @param params
+	 *            key-value string parameters sent with every request
+	 * @param file
+	 *            file to upload
+	 * @param checkpointDirectory
+	 *            private directory where upload checkpoints are persisted,
+	 *            e.g. a subdirectory of Context.getFilesDir()
+	 */
+	public ResumableUpload(Mobli mobli, String baseUrl, String relativePath, Bundle params, File file, File checkpointDirectory) {
+		mMobli = mobli;
+		mBaseUrl = baseUrl;
+		mRelativePath = relativePath;
+		mParams = params != null ? params : new Bundle();
+		mFile = file;
+		mCheckpointFile = new File(checkpointDirectory, checkpointName(baseUrl + relativePath, file));
+	}
+
+	public int getChunkSize() {
+		return mChunkSize;
+	}
+
+	/**
+	 * Set the chunk size. Changing it invalidates an existing checkpoint.
+	 */
+	public synchronized void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be positive");
+		}
+		checkNotStarted();
+		mChunkSize = chunkSize;
+	}
+
+	public int getParallelism() {
+		return mParallelism;
+	}
+
+	/**
+	 * Set the maximum number of chunks uploaded concurrently.
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("parallelism must be positive");
+		}
+		checkNotStarted();
+		mParallelism = parallelism;
+	}
+
+	/**
+	 * Set the number of times a chunk is attempted before the upload fails.
+	 */
+	public synchronized void setChunkAttempts(int attempts) {
+		if (attempts <= 0) {
+			throw new IllegalArgumentException("attempts must be positive");
+		}
+		checkNotStarted();
+		mChunkAttempts = attempts;
+	}
+
+	/**
+	 * Start (or resume) the upload in background threads. The listener is
+	 * called from these threads.
+	 *
+	 * @throws IllegalStateException
+	 *             if the upload was already started
+	 */
+	public synchronized void start(Listener listener) {
+		checkNotStarted();
+		mStarted = true;
+		mListener = listener;
+		mWorkers = Executors.newFixedThreadPool(mParallelism, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "MobliUpload");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// the first worker loads the checkpoint before the others join in
+		mWorkers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (!prepare()) {
+						complete();
+						return;
+					}
+				} catch (IOException e) {
+					fail(e);
+					return;
+				}
+				try {
+					for (int i = 0; i < mParallelism; i++) {
+						mWorkers.execute(new Runnable() {
+							@Override
+							public void run() {
+								uploadChunks();
+							}
+						});
+					}
+				} catch (RejectedExecutionException e) {
+					// cancelled meanwhile
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop the upload, aborting the chunks in progress. The checkpoint is
+	 * kept, so a new ResumableUpload for the same file resumes where this one
+	 * stopped. The listener is not called anymore.
+	 */
+	public void cancel() {
+		List<RequestHandle> active;
+		synchronized (this) {
+			mCancelled = true;
+			active = new ArrayList<RequestHandle>(mActiveRequests);
+			if (mWorkers != null) {
+				mWorkers.shutdown();
+			}
+		}
+		for (RequestHandle handle : active) {
+			handle.cancel();
+		}
+	}
+
+	/**
+	 * @return the identifier sent as upload_id, or null before the upload has
+	 *         been prepared
+	 */
+	public synchronized String getUploadId() {
+		return mUploadId;
+	}
+
+	/**
+	 * @return number of bytes of the file accepted by the server so far
+	 */
+	public synchronized long getUploadedBytes() {
+		return mUploadedBytes;
+	}
+
+	/**
+	 * Delete the checkpoint so that the next upload of this file starts over.
+	 */
+	public void discardCheckpoint() {
+		mCheckpointFile.delete();
+	}
+
+	/**
+	 * Load the checkpoint if it matches the file, or start a new one.
+	 * 
+	 * @return whether there are chunks left to upload
+	 */
+	private boolean prepare() throws IOException {
+		if (!mFile.isFile()) {
+			throw new IOException("Cannot read " + mFile);
+		}
+		long totalSize = mFile.length();
+		long lastModified = mFile.lastModified();
+		int chunkCount = (int) Math.max(1, (totalSize + mChunkSize - 1) / mChunkSize);
+		String header = totalSize + " " + lastModified + " " + mChunkSize;
+		boolean[] done = new boolean[chunkCount];
+		String uploadId = readCheckpoint(header, done);
+		if (uploadId == null) {
+			uploadId = UUID.randomUUID().toString();
+			writeCheckpointHeader(uploadId, header);
+		}
+
+		int remaining = chunkCount;
+		synchronized (this) {
+			mUploadId = uploadId;
+			mTotalSize = totalSize;
+			mChunkCount = chunkCount;
+			mChunkDone = done;
+			mChunkProgress = new long[chunkCount];
+			for (int i = 0; i < chunkCount; i++) {
+				if (done[i]) {
+					remaining--;
+					mUploadedBytes += chunkLength(i);
+				}
+			}
+			mRemainingChunks = remaining;
+			mLastSampleTime = System.currentTimeMillis();
+			mLastSampleBytes = mUploadedBytes;
+		}
+		Util.logd("Mobli-Upload", "Upload " + uploadId + ": " + (chunkCount - remaining) + "/" + chunkCount + " chunks already uploaded");
+		return remaining > 0;
+	}
+
+	/**
+	 * Worker loop: upload chunks until none is left or the upload stops.
+	 */
+	private void uploadChunks() {
+		for (int index = nextChunk(); index >= 0; index = nextChunk()) {
+			IOException error = null;
+			for (int attempt = 1; attempt <= mChunkAttempts && !mCancelled; attempt++) {
+				try {
+					uploadChunk(index);
+					error = null;
+					break;
+				} catch (IOException e) {
+					error = e;
+					resetChunkProgress(index);
+					if (attempt < mChunkAttempts) {
+						sleep(RETRY_DELAY_MILLIS * attempt);
+					}
+				}
+			}
+			if (error != null) {
+				fail(error);
+				return;
+			}
+			if (mCancelled) {
+				return;
+			}
+			if (chunkDone(index)) {
+				complete();
+			}
+		}
+	}
+
+	private synchronized int nextChunk() {
+		if (mCancelled || mFinished) {
+			return -1;
+		}
+		while (mNextChunk < mChunkCount && mChunkDone[mNextChunk]) {
+			mNextChunk++;
+		}
+		return mNextChunk < mChunkCount ? mNextChunk++ : -1;
+	}
+
+	private void uploadChunk(final int index) throws IOException {
+		final long offset = (long) index * mChunkSize;
+		final long length = chunkLength(index);
+		Bundle params = new Bundle(mParams);
+		params.putString("upload_id", mUploadId);
+		params.putString("chunk_index", Integer.toString(index));
+		params.putString("chunk_count", Integer.toString(mChunkCount));
+		params.putString("chunk_offset", Long.toString(offset));
+		params.putString("total_size", Long.toString(mTotalSize));
+		Map<String, UploadSource> uploads = Collections.singletonMap("chunk", UploadSource.fromFile(mFile, offset, length));
+
+		UploadSource.ProgressListener progress = new UploadSource.ProgressListener() {
+			@Override
+			public void onProgress(long bytesWritten, long totalBytes) {
+				// the body also holds the text parts: only count the chunk bytes
+				long bodyOverhead = totalBytes - length;
+				chunkProgress(index, Math.max(0, Math.min(length, bytesWritten - bodyOverhead)));
+			}
+		};
+		MobliResponse response = send(params, uploads, progress);
+		if (!response.isSuccessful()) {
+			throw new IOException("Chunk " + index + " rejected with HTTP " + response.getStatusCode() + ": " + response.getBody());
+		}
+	}
+
+	/**
+	 * Send the final request once all chunks are uploaded.
+	 */
+	private void complete() {
+		synchronized (this) {
+			if (mFinished || mCancelled) {
+				return;
+			}
+			mFinished = true;
+		}
+		Bundle params = new Bundle(mParams);
+		params.putString("upload_id", mUploadId);
+		params.putString("chunk_count", Integer.toString(mChunkCount));
+		params.putString("total_size", Long.toString(mTotalSize));
+		params.putString("complete", "1");
+		try {
+			MobliResponse response = send(params, null, null);
+			if (!response.isSuccessful()) {
+				throw new IOException("Upload " + mUploadId + " rejected with HTTP " + response.getStatusCode() + ": "
+						+ response.getBody());
+			}
+			mCheckpointFile.delete();
+			mWorkers.shutdown();
+			if (!mCancelled) {
+				mListener.onComplete(response.getBody());
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				mFinished = false;
+			}
+			fail(e);
+		}
+	}
+
+	private MobliResponse send(Bundle params, Map<String, UploadSource> uploads, UploadSource.ProgressListener progress)
+			throws IOException {
+		RequestHandle handle = new RequestHandle(null);
+		synchronized (this) {
+			if (mCancelled) {
+				throw new InterruptedIOException("Upload cancelled");
+			}
+			mActiveRequests.add(handle);
+		}
+		try {
+			return mMobli.fetchUpload(mBaseUrl, mRelativePath, params, uploads, progress, handle);
+		} finally {
+			synchronized (this) {
+				mActiveRequests.remove(handle);
+			}
+		}
+	}
+
+	private void fail(IOException e) {
+		boolean notify;
+		synchronized (this) {
+			notify = !mCancelled && !mFinished;
+			mCancelled = true;
+		}
+		cancel();
+		if (notify) {
+			mListener.onError(e);
+		}
+	}
+
+	/**
+	 * Record an accepted chunk in the checkpoint and the progress.
+	 *
+	 * @return whether it was the last chunk
+	 */
+	private boolean chunkDone(int index) {
+		try {
+			appendCheckpoint(index);
+		} catch (IOException e) {
+			// the chunk will be uploaded again after a restart, no harm done
+			Util.logd("Mobli-Upload", "Could not write checkpoint: " + e);
+		}
+		synchronized (this) {
+			mChunkDone[index] = true;
+			mChunkProgress[index] = 0;
+			mUploadedBytes += chunkLength(index);
+			mRemainingChunks--;
+		}
+		reportProgress(true);
+		synchronized (this) {
+			return mRemainingChunks == 0;
+		}
+	}
+
+	private void chunkProgress(int index, long bytes) {
+		synchronized (this) {
+			mChunkProgress[index] = bytes;
+		}
+		reportProgress(false);
+	}
+
+	private synchronized void resetChunkProgress(int index) {
+		mChunkProgress[index] = 0;
+	}
+
+	/**
+	 * Update the throughput estimate and notify the listener, at most every
+	 * PROGRESS_INTERVAL_MILLIS unless forced.
+	 */
+	private void reportProgress(boolean force) {
+		long uploaded;
+		long bytesPerSecond;
+		long eta;
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			long elapsed = now - mLastSampleTime;
+			if (!force && elapsed < PROGRESS_INTERVAL_MILLIS) {
+				return;
+			}
+			uploaded = mUploadedBytes;
+			for (long partial : mChunkProgress) {
+				uploaded += partial;
+			}
+			if (elapsed > 0) {
+				double sample = (uploaded - mLastSampleBytes) * 1000.0 / elapsed;
+				mBytesPerSecond = mBytesPerSecond == 0 ? sample : THROUGHPUT_SMOOTHING * sample + (1 - THROUGHPUT_SMOOTHING)
+						* mBytesPerSecond;
+				mLastSampleTime = now;
+				mLastSampleBytes = uploaded;
+			}
+			bytesPerSecond = Math.max(0, (long) mBytesPerSecond);
+			eta = bytesPerSecond > 0 ? (mTotalSize - uploaded) * 1000 / bytesPerSecond : -1;
+		}
+		if (!mCancelled) {
+			mListener.onProgress(uploaded, mTotalSize, bytesPerSecond, eta);
+		}
+	}
+
+	private long chunkLength(int index) {
+		return Math.min(mChunkSize, mTotalSize - (long) index * mChunkSize);
+	}
+
+	/**
+	 * @return the upload id of a checkpoint matching the given header, marking
+	 *         the recorded chunks as done, or null if there is none
+	 */
+	private String readCheckpoint(String header, boolean[] done) {
+		if (!mCheckpointFile.exists()) {
+			return null;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(mCheckpointFile), "UTF-8"));
+			if (!CHECKPOINT_MAGIC.equals(reader.readLine())) {
+				return null;
+			}
+			String uploadId = reader.readLine();
+			if (uploadId == null || !header.equals(reader.readLine())) {
+				return null;
+			}
+			// a torn last line (crash while appending) is simply ignored
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				try {
+					int index = Integer.parseInt(line);
+					if (index >= 0 && index < done.length) {
+						done[index] = true;
+					}
+				} catch (NumberFormatException e) {
+					// ignore
+				}
+			}
+			return uploadId;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private void writeCheckpointHeader(String uploadId, String header) throws IOException {
+		mCheckpointFile.getParentFile().mkdirs();
+		writeCheckpoint(CHECKPOINT_MAGIC + "\n" + uploadId + "\n" + header + "\n", false);
+	}
+
+	private synchronized void appendCheckpoint(int index) throws IOException {
+		writeCheckpoint(index + "\n", true);
+	}
+
+	private void writeCheckpoint(String data, boolean append) throws IOException {
+		FileOutputStream out = new FileOutputStream(mCheckpointFile, append);
+		try {
+			out.write(data.getBytes("UTF-8"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void checkNotStarted() {
+		if (mStarted) {
+			throw new IllegalStateException("Upload already started");
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static String checkpointName(String url, File file) {
+		String id = url + "\n" + file.getAbsolutePath();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] bytes = digest.digest(id.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(bytes.length * 2 + 7);
+			for (byte b : bytes) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.append(".upload").toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Callback interface for resumable uploads.
+	 *
+	 * Executed by a background thread: do not update the UI in these methods.
+	 */
+	public static interface Listener {
+
+		/**
+		 * Called periodically while chunks are uploaded.
+		 *
+		 * @param uploadedBytes
+		 *            bytes of the file uploaded so far, including previous runs
+		 * @param totalBytes
+		 *            size of the file
+		 * @param bytesPerSecond
+		 *            smoothed upload throughput
+		 * @param etaMillis
+		 *            estimated time until all chunks are uploaded, or -1 if
+		 *            unknown
+		 */
+		public void onProgress(long uploadedBytes, long totalBytes, long bytesPerSecond, long etaMillis);
+
+		/**
+		 * Called once the server has assembled the file.
+		 *
+		 * @param response
+		 *            response of the final request
+		 */
+		public void onComplete(String response);
+
+		/**
+		 * Called when a chunk could not be uploaded after all attempts; the
+		 * checkpoint is kept so that the upload can be resumed later.
+		 */
+		public void onError(IOException e);
+
+	}
+}
@@ -0,0 +1,195 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Policy for retrying requests that failed because of a network error or a
+ * transient server error (408, 429, 502, 503 and 504). All durations are in
+ * milliseconds.
+ *
+ * Retries wait for an exponentially growing backoff with full jitter, i.e. a
+ * random delay between 0 and min(maxBackoff, initialBackoff * 2^(n-1)) before
+ * the n-th retry, so that clients failing together do not retry together.
+ * When the server sends a Retry-After header, the retry waits at least that
+ * long; a Retry-After longer than the maximum given here, by default 5
+ * seconds, ends the retries.
+ *
+ * Only idempotent methods (GET, HEAD, PUT, DELETE, OPTIONS) are retried by
+ * default. Uploads are never retried.
+ *
+ * The backoff is waited on the thread of the request: an asynchronous
+ * request keeps its RequestExecutor thread meanwhile, so that during an
+ * outage a few requests waiting to retry can hold all the threads. Keep the
+ * maximum backoff and Retry-After short for the policies of asynchronous
+ * requests.
+ *
+ * @see Mobli#setRetryPolicy(RetryPolicy)
+ * @see RequestOptions#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy {
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	public static final long DEFAULT_INITIAL_BACKOFF = 500;
+	public static final long DEFAULT_MAX_BACKOFF = 30 * 1000;
+	/**
+	 * short, as the Retry-After is waited on an executor thread: a longer
+	 * one ends the retries, and the caller gets the response with its
+	 * Retry-After
+	 */
+	public static final long DEFAULT_MAX_RETRY_AFTER = 5 * 1000;
+
+	private static final Random sRandom = new Random();
+
+	private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+	private long mInitialBackoff = DEFAULT_INITIAL_BACKOFF;
+	private long mMaxBackoff = DEFAULT_MAX_BACKOFF;
+	private long mMaxRetryAfter = DEFAULT_MAX_RETRY_AFTER;
+	private boolean mRetryNonIdempotent = false;
+
+	/**
+	 * @return a policy which never retries
+	 */
+	public static RetryPolicy none() {
+		return new RetryPolicy().setMaxAttempts(1);
+	}
+
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	/**
+	 * @param attempts
+	 *            - maximum number of attempts, including the first one
+	 */
+	public RetryPolicy setMaxAttempts(int attempts) {
+		if (attempts < 1) {
+			throw new IllegalArgumentException("attempts must be at least 1");
+		}
+		mMaxAttempts = attempts;
+		return this;
+	}
+
+	public long getInitialBackoff() {
+		return mInitialBackoff;
+	}
+
+	public long getMaxBackoff() {
+		return mMaxBackoff;
+	}
+
+	/**
+	 * @param initial
+	 *            - upper bound of the delay before the first retry
+	 * @param max
+	 *            - upper bound of the delay before any retry
+	 */
+	public RetryPolicy setBackoff(long initial, long max) {
+		if (initial <= 0 || max < initial) {
+			throw new IllegalArgumentException("invalid backoff");
+		}
+		mInitialBackoff = initial;
+		mMaxBackoff = max;
+		return this;
+	}
+
+	public long getMaxRetryAfter() {
+		return mMaxRetryAfter;
+	}
+
+	/**
+	 * @param max
+	 *            - longest Retry-After delay worth waiting for
+	 */
+	public RetryPolicy setMaxRetryAfter(long max) {
+		if (max < 0) {
+			throw new IllegalArgumentException("max must not be negative");
+		}
+		mMaxRetryAfter = max;
+		return this;
+	}
+
+	public boolean isRetryNonIdempotent() {
+		return mRetryNonIdempotent;
+	}
+
+	/**
+	 * @param retry
+	 *            - whether to also retry POST requests, which the server may
+	 *            have processed before the failure
+	 */
+	public RetryPolicy setRetryNonIdempotent(boolean retry) {
+		mRetryNonIdempotent = retry;
+		return this;
+	}
+
+	/**
+	 * @return whether requests with the given method may be retried at all
+	 */
+	boolean canRetry(String method) {
+		if (mMaxAttempts <= 1) {
+			return false;
+		}
+		return mRetryNonIdempotent || method.equals("GET") || method.equals("HEAD") || method.equals("PUT") || method.equals("DELETE")
+				|| method.equals("OPTIONS");
+	}
+
+	/**
+	 * @return whether a response with the given status is worth retrying
+	 */
+	boolean isRetryableStatus(int status) {
+		return status == HttpURLConnection.HTTP_CLIENT_TIMEOUT || status == 429 || status == HttpURLConnection.HTTP_BAD_GATEWAY
+				|| status == HttpURLConnection.HTTP_UNAVAILABLE || status == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+	}
+
+	/**
+	 * @return whether a request failing with the given error, before any
+	 *         response was received, is worth retrying
+	 */
+	boolean isRetryableError(IOException e) {
+		if (e instanceof InterruptedIOException) {
+			// aborted requests are not retried, timeouts are
+			return e instanceof SocketTimeoutException;
+		}
+		return !(e instanceof FileNotFoundException || e instanceof MalformedURLException || e instanceof SSLPeerUnverifiedException
+				|| e instanceof CircuitOpenException);
+	}
+
+	/**
+	 * @param retry
+	 *            - number of the retry, starting at 1
+	 * @return the delay to wait before the given retry
+	 */
+	long getBackoff(int retry) {
+		long bound = mInitialBackoff;
+		for (int i = 1; i < retry && bound < mMaxBackoff; i++) {
+			bound *= 2;
+		}
+		bound = Math.min(bound, mMaxBackoff);
+		synchronized (sRandom) {
+			return (long) (sRandom.nextDouble() * bound);
+		}
+	}
+}
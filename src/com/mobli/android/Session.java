@@ -0,0 +1,142 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+/**
+ * Immutable snapshot of a Mobli session: the access token, its expiration
+ * time, the id of the user it was granted to and the granted scopes.
+ *
+ * Mobli publishes a new snapshot whenever the session changes, so a request
+ * reading the session once always sees a token together with its own
+ * expiration time, without locking.
+ */
+public final class Session {
+
+	/** no session: requests are made without a token */
+	public static final Session EMPTY = new Session(null, 0, null);
+
+	private final String mAccessToken;
+	private final long mAccessExpires;
+	private final String mUserId;
+	private final String mScope;
+
+	/**
+	 * @param accessToken
+	 *            - OAuth 2.0 access token, or null
+	 * @param accessExpires
+	 *            - expiration time in milliseconds since Unix epoch, or 0 if
+	 *            the token doesn't expire
+	 * @param userId
+	 *            - id of the user who granted the token, or null
+	 */
+	public Session(String accessToken, long accessExpires, String userId) {
+		this(accessToken, accessExpires, userId, null);
+	}
+
+	/**
+	 * See Session(String, long, String) above for the other @params.
+	 * 
+	 * @param scope
+	 *            - granted scopes separated by spaces, e.g. "basic shared",
+	 *            or null if unknown
+	 */
+	public Session(String accessToken, long accessExpires, String userId, String scope) {
+		mAccessToken = accessToken;
+		mAccessExpires = accessExpires;
+		mUserId = userId;
+		mScope = scope;
+	}
+
+	public String getAccessToken() {
+		return mAccessToken;
+	}
+
+	/**
+	 * @return the expiration time in milliseconds since Unix epoch, or 0 if
+	 *         the token doesn't expire
+	 */
+	public long getAccessExpires() {
+		return mAccessExpires;
+	}
+
+	public String getUserId() {
+		return mUserId;
+	}
+
+	/**
+	 * @return the granted scopes separated by spaces, or null if unknown
+	 */
+	public String getScope() {
+		return mScope;
+	}
+
+	/**
+	 * @return the granted scopes, empty if unknown
+	 */
+	public String[] getScopes() {
+		return mScope == null || mScope.length() == 0 ? new String[0] : mScope.split(" ");
+	}
+
+	/**
+	 * @param now
+	 *            - current time in milliseconds since Unix epoch
+	 * @return whether the session has a token which is not expired at the
+	 *         given time
+	 */
+	public boolean isValid(long now) {
+		return mAccessToken != null && (mAccessExpires == 0 || now < mAccessExpires);
+	}
+
+	Session withAccessToken(String accessToken) {
+		return new Session(accessToken, mAccessExpires, mUserId, mScope);
+	}
+
+	Session withAccessExpires(long accessExpires) {
+		return new Session(mAccessToken, accessExpires, mUserId, mScope);
+	}
+
+	/**
+	 * @param expiresIn
+	 *            - duration in seconds, or "0" if the token doesn't expire
+	 * @return the expiration time in milliseconds since Unix epoch, or 0 if
+	 *         the token doesn't expire
+	 */
+	static long expiresAt(String expiresIn, long now) {
+		return expiresIn.equals("0") ? 0 : now + Long.parseLong(expiresIn) * 1000L;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Session)) {
+			return false;
+		}
+		Session other = (Session) o;
+		return mAccessExpires == other.mAccessExpires && equal(mAccessToken, other.mAccessToken) && equal(mUserId, other.mUserId)
+				&& equal(mScope, other.mScope);
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = mAccessToken != null ? mAccessToken.hashCode() : 0;
+		hash = 31 * hash + (int) (mAccessExpires ^ (mAccessExpires >>> 32));
+		hash = 31 * hash + (mUserId != null ? mUserId.hashCode() : 0);
+		return 31 * hash + (mScope != null ? mScope.hashCode() : 0);
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,416 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+/**
+ * Persistent store of the Mobli session, so that an application restarting
+ * can make its first request with the previous token instead of waiting for
+ * a new one.
+ *
+ * The session is encrypted with AES and authenticated with HMAC-SHA256
+ * before it reaches the Backend: a file or the SharedPreferences of the
+ * application, or any other storage. The key is supplied by the
+ * application, e.g. from the Android Keystore; it must not be stored next to
+ * the session.
+ *
+ * Once set with Mobli.setSessionStore, the store restores the session and
+ * then saves every change in the background. Since the changes may be
+ * notified out of order, the session written is the one of the Mobli object
+ * at the time of the write.
+ * Expired sessions are discarded instead of restored.
+ *
+ * @see Mobli#setSessionStore(SessionStore)
+ */
+public class SessionStore implements Mobli.SessionListener {
+
+	private static final int VERSION = 1;
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+
+	private final Backend mBackend;
+	private final SecretKeySpec mCipherKey;
+	private final SecretKeySpec mMacKey;
+	private final SecureRandom mRandom = new SecureRandom();
+
+	/** Mobli object the store was set on, or null */
+	private volatile Mobli mMobli;
+
+	/** session to write, or null if none is pending */
+	private Session mPending;
+	/** whether to write the session of mMobli instead of mPending */
+	private boolean mPendingCurrent;
+	private boolean mWriting;
+
+	/**
+	 * @param backend
+	 *            - storage of the encrypted session
+	 * @param key
+	 *            - secret of at least 16 bytes, from which the encryption and
+	 *            authentication keys are derived
+	 */
+	public SessionStore(Backend backend, byte[] key) {
+		if (backend == null) {
+			throw new IllegalArgumentException("backend must not be null");
+		}
+		if (key == null || key.length < 16) {
+			throw new IllegalArgumentException("key must have at least 16 bytes");
+		}
+		mBackend = backend;
+		try {
+			byte[] cipherKey = new byte[16];
+			System.arraycopy(derive(key, "enc"), 0, cipherKey, 0, cipherKey.length);
+			mCipherKey = new SecretKeySpec(cipherKey, "AES");
+			mMacKey = new SecretKeySpec(derive(key, "mac"), "HmacSHA256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("HmacSHA256 unavailable: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the stored session. Expired sessions and sessions which cannot
+	 * be decrypted (e.g. after the key changed) are deleted.
+	 *
+	 * @return the stored session, or null if there is none
+	 */
+	public Session load() {
+		byte[] data;
+		try {
+			data = mBackend.read();
+		} catch (IOException e) {
+			Util.logd("Mobli-session", "Could not read the session: " + e);
+			return null;
+		}
+		if (data == null) {
+			return null;
+		}
+		Session session = null;
+		try {
+			session = decode(decrypt(data));
+		} catch (IOException e) {
+			Util.logd("Mobli-session", "Discarding unreadable session: " + e);
+		} catch (GeneralSecurityException e) {
+			Util.logd("Mobli-session", "Discarding unreadable session: " + e);
+		}
+		if (session == null || !session.isValid(System.currentTimeMillis())) {
+			save(Session.EMPTY);
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Store a session in the background, or delete the stored session if the
+	 * given one has no token.
+	 */
+	public void save(Session session) {
+		schedule(session, false);
+	}
+
+	@Override
+	public void onSessionChanged(Session previous, Session current) {
+		schedule(current, true);
+	}
+
+	/**
+	 * Set the Mobli object whose session is written on its changes.
+	 */
+	void attach(Mobli mobli) {
+		mMobli = mobli;
+	}
+
+	private void schedule(Session session, boolean current) {
+		synchronized (this) {
+			mPending = session;
+			mPendingCurrent = current;
+			if (mWriting) {
+				// the running writer picks it up
+				return;
+			}
+			mWriting = true;
+		}
+		try {
+			RequestExecutor.getDefault().execute(new Runnable() {
+				@Override
+				public void run() {
+					writePending();
+				}
+			}, RequestExecutor.Priority.BACKGROUND);
+		} catch (RejectedExecutionException e) {
+			writePending();
+		}
+	}
+
+	/**
+	 * Write the pending sessions until there are none left, so that writes
+	 * never overlap and the last change is the one stored.
+	 */
+	private void writePending() {
+		while (true) {
+			Session session;
+			boolean current;
+			synchronized (this) {
+				session = mPending;
+				current = mPendingCurrent;
+				mPending = null;
+				if (session == null) {
+					mWriting = false;
+					return;
+				}
+			}
+			Mobli mobli = mMobli;
+			if (current && mobli != null) {
+				// a change notified late must not overwrite a later one
+				session = mobli.getSession();
+			}
+			try {
+				if (session.getAccessToken() == null) {
+					mBackend.delete();
+				} else {
+					mBackend.write(encrypt(encode(session)));
+				}
+			} catch (IOException e) {
+				Util.logd("Mobli-session", "Could not store the session: " + e);
+			} catch (GeneralSecurityException e) {
+				Util.logd("Mobli-session", "Could not store the session: " + e);
+			}
+		}
+	}
+
+	private static byte[] encode(Session session) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(VERSION);
+		out.writeUTF(session.getAccessToken());
+		out.writeLong(session.getAccessExpires());
+		writeOptional(out, session.getUserId());
+		writeOptional(out, session.getScope());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Session decode(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readByte() != VERSION) {
+			return null;
+		}
+		String token = in.readUTF();
+		long expires = in.readLong();
+		String userId = readOptional(in);
+		return new Session(token, expires, userId, readOptional(in));
+	}
+
+	private static void writeOptional(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readOptional(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * @return the IV, the AES/CBC ciphertext and the HMAC of both
+	 */
+	private byte[] encrypt(byte[] plain) throws GeneralSecurityException {
+		byte[] iv = new byte[IV_LENGTH];
+		mRandom.nextBytes(iv);
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, mCipherKey, new IvParameterSpec(iv));
+		byte[] encrypted = cipher.doFinal(plain);
+		byte[] data = new byte[IV_LENGTH + encrypted.length + MAC_LENGTH];
+		System.arraycopy(iv, 0, data, 0, IV_LENGTH);
+		System.arraycopy(encrypted, 0, data, IV_LENGTH, encrypted.length);
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(mMacKey);
+		mac.update(data, 0, IV_LENGTH + encrypted.length);
+		mac.doFinal(data, IV_LENGTH + encrypted.length);
+		return data;
+	}
+
+	private byte[] decrypt(byte[] data) throws GeneralSecurityException {
+		int length = data.length - IV_LENGTH - MAC_LENGTH;
+		if (length <= 0) {
+			throw new GeneralSecurityException("Truncated session");
+		}
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(mMacKey);
+		mac.update(data, 0, IV_LENGTH + length);
+		byte[] expected = mac.doFinal();
+		byte[] actual = new byte[MAC_LENGTH];
+		System.arraycopy(data, IV_LENGTH + length, actual, 0, MAC_LENGTH);
+		if (!MessageDigest.isEqual(expected, actual)) {
+			throw new GeneralSecurityException("Session authentication failed");
+		}
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(Cipher.DECRYPT_MODE, mCipherKey, new IvParameterSpec(data, 0, IV_LENGTH));
+		return cipher.doFinal(data, IV_LENGTH, length);
+	}
+
+	private static byte[] derive(byte[] key, String purpose) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		return mac.doFinal(purpose.getBytes());
+	}
+
+	/**
+	 * Storage of the encrypted session. Calls are made by one thread at a
+	 * time.
+	 */
+	public static interface Backend {
+
+		/**
+		 * @return the stored data, or null if there is none
+		 */
+		public byte[] read() throws IOException;
+
+		/**
+		 * Replace the stored data.
+		 */
+		public void write(byte[] data) throws IOException;
+
+		/**
+		 * Delete the stored data, if any.
+		 */
+		public void delete() throws IOException;
+
+	}
+
+	/**
+	 * Backend storing the session in a private file, e.g. in
+	 * Context.getFilesDir(), replaced atomically on every write.
+	 */
+	public static class FileBackend implements Backend {
+
+		private final File mFile;
+
+		public FileBackend(File file) {
+			mFile = file;
+		}
+
+		@Override
+		public byte[] read() throws IOException {
+			FileInputStream in;
+			try {
+				in = new FileInputStream(mFile);
+			} catch (FileNotFoundException e) {
+				return null;
+			}
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream((int) mFile.length());
+				byte[] buffer = new byte[512];
+				for (int n; (n = in.read(buffer)) != -1;) {
+					out.write(buffer, 0, n);
+				}
+				return out.toByteArray();
+			} finally {
+				in.close();
+			}
+		}
+
+		@Override
+		public void write(byte[] data) throws IOException {
+			File temp = new File(mFile.getPath() + ".tmp");
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(data);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(mFile)) {
+				throw new IOException("Could not rename " + temp);
+			}
+		}
+
+		@Override
+		public void delete() throws IOException {
+			if (!mFile.delete() && mFile.exists()) {
+				throw new IOException("Could not delete " + mFile);
+			}
+		}
+	}
+
+	/**
+	 * Backend storing the session in SharedPreferences, Base64 encoded.
+	 */
+	public static class PreferencesBackend implements Backend {
+
+		private final SharedPreferences mPreferences;
+		private final String mKey;
+
+		/**
+		 * @param preferences
+		 *            - private preferences of the application
+		 * @param key
+		 *            - name of the preference holding the session
+		 */
+		public PreferencesBackend(SharedPreferences preferences, String key) {
+			mPreferences = preferences;
+			mKey = key;
+		}
+
+		@Override
+		public byte[] read() throws IOException {
+			String value = mPreferences.getString(mKey, null);
+			if (value == null) {
+				return null;
+			}
+			try {
+				return Base64.decode(value, Base64.NO_WRAP);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Malformed session preference");
+			}
+		}
+
+		@Override
+		public void write(byte[] data) throws IOException {
+			if (!mPreferences.edit().putString(mKey, Base64.encodeToString(data, Base64.NO_WRAP)).commit()) {
+				throw new IOException("Could not write preference " + mKey);
+			}
+		}
+
+		@Override
+		public void delete() throws IOException {
+			if (!mPreferences.edit().remove(mKey).commit()) {
+				throw new IOException("Could not remove preference " + mKey);
+			}
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * SSLSocketFactory of the HTTPS connections of the SDK, sharing a
+ * size-bounded TLS session cache so that new connections to
+ * api.mobli.com and oauth.mobli.com resume a previous session (an
+ * abbreviated handshake, one round trip less) instead of doing a full
+ * handshake.
+ *
+ * Sessions are cached per host and port by the SSLContext, so the factory
+ * must be shared: UrlConnectionTransport uses getDefault() unless given
+ * another one. Sharing it also lets the platform pool the connections,
+ * which it keys by socket factory.
+ *
+ * The factory counts the full and the resumed handshakes along with their
+ * duration, measured from the creation of the TLS socket to the end of the
+ * handshake. It also counts the TLS sockets it creates, one per new
+ * connection, and the HTTPS requests of UrlConnectionTransport, the rest of
+ * which reused a pooled connection.
+ */
+public class TlsSocketFactory extends SSLSocketFactory {
+
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 32;
+	public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
+	private static TlsSocketFactory sDefaultFactory;
+
+	private final SSLContext mContext;
+	private final SSLSocketFactory mDelegate;
+
+	private final AtomicLong mFullHandshakes = new AtomicLong();
+	private final AtomicLong mFullHandshakeTime = new AtomicLong();
+	private final AtomicLong mResumedHandshakes = new AtomicLong();
+	private final AtomicLong mResumedHandshakeTime = new AtomicLong();
+	private final AtomicLong mConnections = new AtomicLong();
+	private final AtomicLong mRequests = new AtomicLong();
+
+	/**
+	 * @param context
+	 *            - initialized TLS context, whose client session cache is
+	 *            bounded by this factory
+	 * @param sessionCacheSize
+	 *            - maximum number of sessions kept, or 0 for no limit
+	 * @param sessionTimeout
+	 *            - time in seconds a session may be resumed, or 0 for no
+	 *            limit
+	 */
+	public TlsSocketFactory(SSLContext context, int sessionCacheSize, int sessionTimeout) {
+		mContext = context;
+		mDelegate = context.getSocketFactory();
+		SSLSessionContext sessions = context.getClientSessionContext();
+		if (sessions != null) {
+			sessions.setSessionCacheSize(sessionCacheSize);
+			sessions.setSessionTimeout(sessionTimeout);
+		}
+	}
+
+	/**
+	 * @return the factory used by the SDK, on the platform's default trust
+	 *         store, with DEFAULT_SESSION_CACHE_SIZE and
+	 *         DEFAULT_SESSION_TIMEOUT
+	 * @throws IllegalStateException
+	 *             if the platform has no TLS implementation
+	 */
+	public static synchronized TlsSocketFactory getDefault() {
+		if (sDefaultFactory == null) {
+			try {
+				SSLContext context = SSLContext.getInstance("TLS");
+				context.init(null, null, null);
+				sDefaultFactory = new TlsSocketFactory(context, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("TLS unavailable: " + e.getMessage());
+			}
+		}
+		return sDefaultFactory;
+	}
+
+	/**
+	 * @return the number of handshakes which created a new session
+	 */
+	public long getFullHandshakeCount() {
+		return mFullHandshakes.get();
+	}
+
+	/**
+	 * @return the total duration of the full handshakes, in milliseconds
+	 */
+	public long getFullHandshakeTime() {
+		return mFullHandshakeTime.get() / 1000000;
+	}
+
+	/**
+	 * @return the number of handshakes which resumed a cached session
+	 */
+	public long getResumedHandshakeCount() {
+		return mResumedHandshakes.get();
+	}
+
+	/**
+	 * @return the total duration of the resumed handshakes, in milliseconds
+	 */
+	public long getResumedHandshakeTime() {
+		return mResumedHandshakeTime.get() / 1000000;
+	}
+
+	/**
+	 * @return the proportion of handshakes which resumed a session, or 0
+	 *         before the first handshake
+	 */
+	public double getResumptionRate() {
+		long resumed = mResumedHandshakes.get();
+		long total = resumed + mFullHandshakes.get();
+		return total > 0 ? (double) resumed / total : 0;
+	}
+
+	/**
+	 * @return the number of TLS sockets created, i.e. of new connections
+	 */
+	public long getConnectionCount() {
+		return mConnections.get();
+	}
+
+	/**
+	 * @return the number of HTTPS requests of UrlConnectionTransport which
+	 *         got a connection, new or pooled, from this factory
+	 */
+	public long getRequestCount() {
+		return mRequests.get();
+	}
+
+	/**
+	 * @return the proportion of requests which reused a pooled connection,
+	 *         or 0 before the first request
+	 */
+	public double getConnectionReuseRate() {
+		long requests = mRequests.get();
+		long reused = requests - mConnections.get();
+		return requests > 0 && reused > 0 ? (double) reused / requests : 0;
+	}
+
+	public void resetStats() {
+		mFullHandshakes.set(0);
+		mFullHandshakeTime.set(0);
+		mResumedHandshakes.set(0);
+		mResumedHandshakeTime.set(0);
+		mConnections.set(0);
+		mRequests.set(0);
+	}
+
+	/**
+	 * Count a request which got its connection from this factory, called by
+	 * UrlConnectionTransport once connected.
+	 */
+	void onConnectionAcquired() {
+		mRequests.incrementAndGet();
+	}
+
+	/**
+	 * Invalidate the cached sessions, e.g. after the user logged out, so
+	 * that the next connections do full handshakes.
+	 */
+	public void clearSessions() {
+		SSLSessionContext sessions = mContext.getClientSessionContext();
+		if (sessions == null) {
+			return;
+		}
+		for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements();) {
+			SSLSession session = sessions.getSession(ids.nextElement());
+			if (session != null) {
+				session.invalidate();
+			}
+		}
+	}
+
+	@Override
+	public String[] getDefaultCipherSuites() {
+		return mDelegate.getDefaultCipherSuites();
+	}
+
+	@Override
+	public String[] getSupportedCipherSuites() {
+		return mDelegate.getSupportedCipherSuites();
+	}
+
+	@Override
+	public Socket createSocket() throws IOException {
+		return monitor(mDelegate.createSocket(), false);
+	}
+
+	@Override
+	public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+		return monitor(mDelegate.createSocket(s, host, port, autoClose), true);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		return monitor(mDelegate.createSocket(host, port), false);
+	}
+
+	@Override
+	public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+		return monitor(mDelegate.createSocket(host, port, localHost, localPort), false);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress host, int port) throws IOException {
+		return monitor(mDelegate.createSocket(host, port), false);
+	}
+
+	@Override
+	public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+		return monitor(mDelegate.createSocket(address, port, localAddress, localPort), false);
+	}
+
+	/**
+	 * Count the socket and its handshake, and send its events to the
+	 * RequestEventListener of the request opening it, if traced: CONNECT_END
+	 * and SECURE_CONNECT_START when layered, SECURE_CONNECT_END.
+	 *
+	 * @param layered
+	 *            - whether the socket is layered over a connected socket,
+	 *            as HttpsURLConnection does on Android: the handshake starts
+	 *            then
+	 */
+	private Socket monitor(Socket socket, boolean layered) {
+		if (socket instanceof SSLSocket) {
+			mConnections.incrementAndGet();
+			final long start = System.nanoTime();
+			final long startMillis = System.currentTimeMillis();
+			final Util.Exchange exchange = Util.currentExchange();
+			if (exchange != null && layered) {
+				// the TCP connection the TLS socket is layered over is up
+				exchange.event(RequestEventListener.Event.CONNECT_END);
+				exchange.event(RequestEventListener.Event.SECURE_CONNECT_START);
+			}
+			((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+				@Override
+				public void handshakeCompleted(HandshakeCompletedEvent event) {
+					long duration = System.nanoTime() - start;
+					if (exchange != null) {
+						exchange.event(RequestEventListener.Event.SECURE_CONNECT_END);
+					}
+					// a resumed session was created by an earlier handshake
+					if (event.getSession().getCreationTime() < startMillis) {
+						mResumedHandshakes.incrementAndGet();
+						mResumedHandshakeTime.addAndGet(duration);
+					} else {
+						mFullHandshakes.incrementAndGet();
+						mFullHandshakeTime.addAndGet(duration);
+					}
+					event.getSocket().removeHandshakeCompletedListener(this);
+				}
+			});
+		}
+		return socket;
+	}
+}
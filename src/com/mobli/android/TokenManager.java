@@ -0,0 +1,343 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.Bundle;
+
+/**
+ * Keeps the public (shared) access token of a Mobli object fresh, so that
+ * obtainPublicToken need not be called by the application.
+ *
+ * Before a request, a token expiring within the refresh skew is refreshed
+ * in the background while the request goes on with the current token; a
+ * missing or expired token is refreshed before the request. Concurrent
+ * requests share a single refresh instead of each asking the OAuth host
+ * for a token. A request answered with 401 Unauthorized is retried once
+ * with a new token.
+ *
+ * Sessions granted by a user through authorize are left alone: they cannot
+ * be refreshed with the client credentials.
+ *
+ * @see Mobli#setTokenManager(TokenManager)
+ */
+public class TokenManager {
+
+	public static final long DEFAULT_REFRESH_SKEW = 60 * 1000;
+
+	/** time during which no refresh is attempted after a failed one */
+	private static final long FAILURE_BACKOFF = 5 * 1000;
+
+	/** how often a request waiting for a refresh checks whether it was aborted */
+	private static final long AWAIT_INTERVAL = 100;
+
+	private final Mobli mMobli;
+	private volatile long mRefreshSkew = DEFAULT_REFRESH_SKEW;
+
+	private final Object mLock = new Object();
+	private Refresh mRefresh;
+	private long mRetryAt;
+	private long mRefreshCount;
+	private long mFailureCount;
+
+	/**
+	 * @param mobli
+	 *            - Mobli object whose token is refreshed, with the client
+	 *            credentials used for the refreshes
+	 */
+	public TokenManager(Mobli mobli) {
+		if (mobli == null) {
+			throw new IllegalArgumentException("mobli must not be null");
+		}
+		mMobli = mobli;
+	}
+
+	public Mobli getMobli() {
+		return mMobli;
+	}
+
+	/**
+	 * Set how long before its expiration a token is refreshed.
+	 *
+	 * @param skew
+	 *            - time in milliseconds
+	 */
+	public void setRefreshSkew(long skew) {
+		if (skew < 0) {
+			throw new IllegalArgumentException("skew must not be negative");
+		}
+		mRefreshSkew = skew;
+	}
+
+	public long getRefreshSkew() {
+		return mRefreshSkew;
+	}
+
+	/**
+	 * @return the number of tokens obtained
+	 */
+	public long getRefreshCount() {
+		synchronized (mLock) {
+			return mRefreshCount;
+		}
+	}
+
+	/**
+	 * @return the number of refreshes which failed
+	 */
+	public long getFailureCount() {
+		synchronized (mLock) {
+			return mFailureCount;
+		}
+	}
+
+	/**
+	 * Build the parameters of a client credentials token request.
+	 */
+	static Bundle newTokenParams(Mobli mobli) {
+		Bundle params = new Bundle();
+		params.putString("client_id", mobli.getClientId());
+		params.putString("client_secret", mobli.getClientSecret());
+		params.putString("grant_type", "client_credentials");
+		params.putString(Mobli.SCOPE, "shared");
+		return params;
+	}
+
+	/**
+	 * Get the session to make a request with, refreshing its token first if
+	 * it is missing or expired. Blocks while a refresh is in flight, until
+	 * the request is cancelled or times out.
+	 *
+	 * @param handle
+	 *            - handle of the request, or null
+	 * @return the current session, which may have no token if the refresh
+	 *         failed
+	 * @throws InterruptedIOException
+	 *             if the request was aborted while waiting for the refresh
+	 */
+	Session getSession(RequestHandle handle) throws InterruptedIOException {
+		Session session = mMobli.getSession();
+		if (!isRefreshable(session)) {
+			return session;
+		}
+		long now = System.currentTimeMillis();
+		if (session.getAccessToken() != null && (session.getAccessExpires() == 0 || now < session.getAccessExpires() - mRefreshSkew)) {
+			return session;
+		}
+		if (session.isValid(now)) {
+			refreshInBackground(session);
+			return session;
+		}
+		return refresh(session, handle);
+	}
+
+	/**
+	 * Start a background refresh if the token is missing or expires within
+	 * the refresh skew, e.g. after a session was restored at startup. Never
+	 * blocks.
+	 */
+	void prefetch() {
+		Session session = mMobli.getSession();
+		if (isRefreshable(session)
+				&& (session.getAccessToken() == null || session.getAccessExpires() != 0
+						&& System.currentTimeMillis() >= session.getAccessExpires() - mRefreshSkew)) {
+			refreshInBackground(session);
+		}
+	}
+
+	/**
+	 * Called when a request made with the given token was answered with 401
+	 * Unauthorized: refresh the token unless it already was.
+	 *
+	 * @param token
+	 *            - access token sent with the request, or null
+	 * @param handle
+	 *            - handle of the request, or null
+	 * @return whether the request should be retried with the new token
+	 * @throws InterruptedIOException
+	 *             if the request was aborted while waiting for the refresh
+	 */
+	boolean onUnauthorized(String token, RequestHandle handle) throws InterruptedIOException {
+		Session session = mMobli.getSession();
+		if (!isRefreshable(session)) {
+			return false;
+		}
+		if (token == null ? session.getAccessToken() == null : token.equals(session.getAccessToken())) {
+			session = refresh(session, handle);
+		}
+		return session.getAccessToken() != null && !session.getAccessToken().equals(token);
+	}
+
+	private static boolean isRefreshable(Session session) {
+		return session.getUserId() == null;
+	}
+
+	/**
+	 * Replace the given session with a new token, or wait for the refresh
+	 * already in flight. A background refresh still queued is run by the
+	 * caller: the executor threads may all be requests waiting for it.
+	 *
+	 * @return the session after the refresh
+	 */
+	private Session refresh(Session stale, RequestHandle handle) throws InterruptedIOException {
+		Refresh refresh;
+		synchronized (mLock) {
+			Session current = mMobli.getSession();
+			if (current != stale) {
+				return current;
+			}
+			if (mRefresh == null) {
+				if (System.currentTimeMillis() < mRetryAt) {
+					return stale;
+				}
+				mRefresh = new Refresh(stale);
+			}
+			refresh = mRefresh;
+		}
+		if (refresh.start()) {
+			run(refresh, refresh.mStale);
+		}
+		return refresh.await(handle);
+	}
+
+	private void refreshInBackground(final Session stale) {
+		final Refresh refresh;
+		synchronized (mLock) {
+			if (mRefresh != null || mMobli.getSession() != stale || System.currentTimeMillis() < mRetryAt) {
+				return;
+			}
+			refresh = mRefresh = new Refresh(stale);
+		}
+		try {
+			RequestExecutor.getDefault().execute(new Runnable() {
+				@Override
+				public void run() {
+					if (refresh.start()) {
+						TokenManager.this.run(refresh, stale);
+					}
+				}
+			}, RequestExecutor.Priority.BACKGROUND);
+		} catch (RejectedExecutionException e) {
+			// the token is still valid: the next request tries again
+			if (refresh.start()) {
+				synchronized (mLock) {
+					mRefresh = null;
+				}
+				refresh.complete(stale);
+			}
+		}
+	}
+
+	/**
+	 * Obtain a token and publish it, unless the session was changed in the
+	 * meantime (e.g. by a login), then release the waiting requests.
+	 */
+	private void run(Refresh refresh, Session stale) {
+		boolean succeeded = false;
+		try {
+			Session update = obtainToken();
+			if (!mMobli.replaceSession(stale, update)) {
+				Util.logd("Mobli-token", "Session changed during the token refresh");
+			}
+			succeeded = true;
+		} catch (IOException e) {
+			Util.logd("Mobli-token", "Token refresh failed: " + e);
+		} catch (JSONException e) {
+			Util.logd("Mobli-token", "Token refresh failed: " + e);
+		} catch (MobliError e) {
+			Util.logd("Mobli-token", "Token refresh failed: " + e);
+		} finally {
+			synchronized (mLock) {
+				mRefresh = null;
+				if (succeeded) {
+					mRefreshCount++;
+				} else {
+					mFailureCount++;
+					mRetryAt = System.currentTimeMillis() + FAILURE_BACKOFF;
+				}
+			}
+			refresh.complete(mMobli.getSession());
+		}
+	}
+
+	private Session obtainToken() throws IOException, JSONException {
+		MobliResponse response = Util.fetch(Mobli.AUTHORIZE_BASE_URL + "/shared", "POST", newTokenParams(mMobli), null, null,
+				mMobli.getRetryPolicy());
+		JSONObject json = Util.parseJson(response.getBody());
+		String expiresIn = json.optString(Mobli.EXPIRES, null);
+		long expires = expiresIn != null ? Session.expiresAt(expiresIn, System.currentTimeMillis()) : 0;
+		return new Session(json.getString(Mobli.TOKEN), expires, null, json.optString(Mobli.SCOPE, "shared"));
+	}
+
+	/**
+	 * A refresh in flight, awaited by the requests needing its token. It is
+	 * run by whichever thread starts it first.
+	 */
+	private static final class Refresh {
+
+		final Session mStale;
+		private boolean mStarted;
+		private boolean mDone;
+		private Session mResult;
+
+		Refresh(Session stale) {
+			mStale = stale;
+		}
+
+		/**
+		 * @return true if the caller is to run the refresh, false if it was
+		 *         already started
+		 */
+		synchronized boolean start() {
+			if (mStarted) {
+				return false;
+			}
+			mStarted = true;
+			return true;
+		}
+
+		synchronized void complete(Session result) {
+			mResult = result;
+			mDone = true;
+			notifyAll();
+		}
+
+		/**
+		 * Wait for the refresh to complete, or for the request to be
+		 * cancelled or to time out.
+		 */
+		synchronized Session await(RequestHandle handle) throws InterruptedIOException {
+			while (!mDone) {
+				if (handle != null && handle.isAborted()) {
+					throw new InterruptedIOException("Request aborted");
+				}
+				try {
+					wait(AWAIT_INTERVAL);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Request interrupted");
+				}
+			}
+			return mResult;
+		}
+	}
+}
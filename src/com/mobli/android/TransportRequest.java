@@ -0,0 +1,109 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A request as handed to the HttpTransport: fully encoded, with the headers
+ * to send as is.
+ */
+public final class TransportRequest {
+
+	private final String mMethod;
+	private final String mUrl;
+	private final Map<String, String> mHeaders;
+	private final Body mBody;
+	private final int mConnectTimeout;
+	private final int mReadTimeout;
+
+	TransportRequest(String method, String url, Map<String, String> headers, Body body, int connectTimeout, int readTimeout) {
+		mMethod = method;
+		mUrl = url;
+		mHeaders = Collections.unmodifiableMap(headers);
+		mBody = body;
+		mConnectTimeout = connectTimeout;
+		mReadTimeout = readTimeout;
+	}
+
+	/**
+	 * @return the HTTP method: "GET" or "POST", since the other methods are
+	 *         sent as POST with a method override parameter, or "HEAD" for
+	 *         the requests opening connections ahead of time
+	 */
+	public String getMethod() {
+		return mMethod;
+	}
+
+	/**
+	 * @return the URL, including the query string of GET requests
+	 */
+	public String getUrl() {
+		return mUrl;
+	}
+
+	/**
+	 * @return the request headers, by name
+	 */
+	public Map<String, String> getHeaders() {
+		return mHeaders;
+	}
+
+	/**
+	 * @return the request body, or null for GET requests
+	 */
+	public Body getBody() {
+		return mBody;
+	}
+
+	/**
+	 * @return the connect timeout in milliseconds, or 0 for the transport's
+	 *         default
+	 */
+	public int getConnectTimeout() {
+		return mConnectTimeout;
+	}
+
+	/**
+	 * @return the read timeout in milliseconds, or 0 for the transport's
+	 *         default
+	 */
+	public int getReadTimeout() {
+		return mReadTimeout;
+	}
+
+	/**
+	 * A request body, written by the transport once connected. Its content
+	 * type and encoding are given by the request headers.
+	 */
+	public static interface Body {
+
+		/**
+		 * @return the number of bytes written by writeTo, or -1 if unknown
+		 *         (e.g. the body is compressed as it is written)
+		 */
+		public long getContentLength();
+
+		/**
+		 * Write the body. May only be called once per request attempt.
+		 */
+		public void writeTo(OutputStream out) throws IOException;
+
+	}
+}
@@ -0,0 +1,48 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A response returned by the HttpTransport, its body still streaming in.
+ */
+public interface TransportResponse extends Closeable {
+
+	public int getStatusCode();
+
+	/**
+	 * @return the value of the given response header (case-insensitive), or
+	 *         null
+	 */
+	public String getHeader(String name);
+
+	/**
+	 * @return the response body as sent by the server, still compressed if
+	 *         it has a Content-Encoding. For error statuses this is the
+	 *         error body, which may be empty but never null.
+	 */
+	public InputStream getBody() throws IOException;
+
+	/**
+	 * Release the response, closing its body.
+	 */
+	@Override
+	public void close() throws IOException;
+
+}
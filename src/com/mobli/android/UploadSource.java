@@ -0,0 +1,207 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content of a file part in a multipart upload, streamed to the connection
+ * rather than loaded in memory.
+ *
+ * @see Mobli#upload(String, String, android.os.Bundle, java.util.Map,
+ *      UploadSource.ProgressListener)
+ */
+public abstract class UploadSource {
+
+	/**
+	 * @return the number of bytes of the content, or -1 if unknown (which
+	 *         makes the upload use chunked transfer encoding)
+	 */
+	public abstract long getLength();
+
+	/**
+	 * Open the content for reading. The upload closes the stream once done.
+	 */
+	public abstract InputStream openStream() throws IOException;
+
+	/**
+	 * @return a source reading the given file
+	 */
+	public static UploadSource fromFile(final File file) {
+		return new UploadSource() {
+			@Override
+			public long getLength() {
+				return file.length();
+			}
+
+			@Override
+			public InputStream openStream() throws IOException {
+				return new FileInputStream(file);
+			}
+		};
+	}
+
+	/**
+	 * @return a source reading length bytes of the given file, starting at
+	 *         the given offset
+	 */
+	public static UploadSource fromFile(final File file, final long offset, final long length) {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("invalid file slice");
+		}
+		return new UploadSource() {
+			@Override
+			public long getLength() {
+				return length;
+			}
+
+			@Override
+			public InputStream openStream() throws IOException {
+				FileInputStream in = new FileInputStream(file);
+				try {
+					for (long skipped = 0; skipped < offset;) {
+						long n = in.skip(offset - skipped);
+						if (n <= 0) {
+							throw new IOException("Could not seek to " + offset + " in " + file);
+						}
+						skipped += n;
+					}
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+				return new SliceInputStream(in, length);
+			}
+		};
+	}
+
+	/**
+	 * @return a source reading the given stream. Such a source can be uploaded
+	 *         only once.
+	 * @param length
+	 *            - number of bytes the stream will deliver, or -1 if unknown
+	 */
+	public static UploadSource fromStream(final InputStream in, final long length) {
+		return new UploadSource() {
+			@Override
+			public long getLength() {
+				return length;
+			}
+
+			@Override
+			public InputStream openStream() {
+				return in;
+			}
+		};
+	}
+
+	/**
+	 * @return a source reading the given bytes
+	 */
+	public static UploadSource fromBytes(final byte[] data) {
+		return new UploadSource() {
+			@Override
+			public long getLength() {
+				return data.length;
+			}
+
+			@Override
+			public InputStream openStream() {
+				return new ByteArrayInputStream(data);
+			}
+		};
+	}
+
+	/**
+	 * Stream returning at most a given number of bytes of the underlying
+	 * stream.
+	 */
+	private static final class SliceInputStream extends FilterInputStream {
+
+		private long mRemaining;
+
+		SliceInputStream(InputStream in, long length) {
+			super(in);
+			mRemaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (mRemaining <= 0) {
+				return -1;
+			}
+			int b = super.read();
+			if (b != -1) {
+				mRemaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			if (mRemaining <= 0) {
+				return -1;
+			}
+			int n = super.read(buffer, offset, (int) Math.min(count, mRemaining));
+			if (n > 0) {
+				mRemaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, mRemaining));
+			mRemaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), mRemaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Callback interface for upload progress.
+	 */
+	public static interface ProgressListener {
+
+		/**
+		 * Called repeatedly while the request body is written.
+		 *
+		 * Executed by the thread performing the request: do not update the UI
+		 * in this method.
+		 *
+		 * @param bytesWritten
+		 *            number of request body bytes written so far
+		 * @param totalBytes
+		 *            size of the whole request body, or -1 if unknown
+		 */
+		public void onProgress(long bytesWritten, long totalBytes);
+
+	}
+}
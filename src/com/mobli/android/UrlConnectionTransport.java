@@ -0,0 +1,288 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The default HttpTransport, on HttpURLConnection.
+ *
+ * Response bodies are drained when closed, including the unread rest of
+ * error bodies, so that their connections go back to the keep-alive pool
+ * instead of being closed. HTTPS connections share one SSLSocketFactory,
+ * TlsSocketFactory.getDefault() unless given another, so that they resume
+ * the TLS sessions of the previous connections.
+ *
+ * HttpURLConnection resolves the hosts and opens the connections itself,
+ * so the requests traced by a RequestEventListener have no DNS events nor
+ * CONNECT_START; new HTTPS connections are told by CONNECT_END and their
+ * TLS handshake events, sent by the TlsSocketFactory.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+
+	/** unread bytes drained before giving up on reusing a connection */
+	private static final int MAX_DRAIN = 64 * 1024;
+
+	private final SSLSocketFactory mSocketFactory;
+
+	/**
+	 * Create a transport with the default TlsSocketFactory.
+	 */
+	public UrlConnectionTransport() {
+		this(TlsSocketFactory.getDefault());
+	}
+
+	/**
+	 * @param socketFactory
+	 *            - factory of the HTTPS connections, or null for the
+	 *            platform's default
+	 */
+	public UrlConnectionTransport(SSLSocketFactory socketFactory) {
+		mSocketFactory = socketFactory;
+	}
+
+	/**
+	 * @return the factory of the HTTPS connections, or null for the
+	 *         platform's default
+	 */
+	public SSLSocketFactory getSocketFactory() {
+		return mSocketFactory;
+	}
+
+	@Override
+	public HttpTransport.Call newCall(TransportRequest request) throws IOException {
+		URL url = new URL(request.getUrl());
+		return new Call(request, (HttpURLConnection) url.openConnection());
+	}
+
+	/**
+	 * Hook to configure the connections before they connect, e.g. with an
+	 * SSLSocketFactory or a HostnameVerifier.
+	 */
+	protected void configure(HttpURLConnection conn) throws IOException {
+	}
+
+	private class Call implements HttpTransport.Call {
+
+		private final TransportRequest mRequest;
+		private final HttpURLConnection mConnection;
+		private volatile boolean mCancelled;
+
+		Call(TransportRequest request, HttpURLConnection conn) {
+			mRequest = request;
+			mConnection = conn;
+		}
+
+		@Override
+		public TransportResponse execute() throws IOException {
+			HttpURLConnection conn = mConnection;
+			if (mRequest.getConnectTimeout() > 0) {
+				conn.setConnectTimeout(mRequest.getConnectTimeout());
+			}
+			if (mRequest.getReadTimeout() > 0) {
+				conn.setReadTimeout(mRequest.getReadTimeout());
+			}
+			for (Map.Entry<String, String> header : mRequest.getHeaders().entrySet()) {
+				conn.setRequestProperty(header.getKey(), header.getValue());
+			}
+			if (mSocketFactory != null && conn instanceof HttpsURLConnection) {
+				((HttpsURLConnection) conn).setSSLSocketFactory(mSocketFactory);
+			}
+			configure(conn);
+			checkCancelled();
+			Util.Exchange exchange = Util.currentExchange();
+			try {
+				conn.setRequestMethod(mRequest.getMethod());
+				TransportRequest.Body body = mRequest.getBody();
+				if (body != null) {
+					long contentLength = body.getContentLength();
+					if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+						conn.setFixedLengthStreamingMode((int) contentLength);
+					} else {
+						conn.setChunkedStreamingMode(0);
+					}
+					conn.setDoOutput(true);
+					conn.setDoInput(true);
+				}
+				conn.connect();
+				if (mSocketFactory instanceof TlsSocketFactory && conn instanceof HttpsURLConnection) {
+					((TlsSocketFactory) mSocketFactory).onConnectionAcquired();
+				}
+				if (exchange != null) {
+					exchange.event(RequestEventListener.Event.CONNECTION_ACQUIRED);
+				}
+				if (body != null) {
+					OutputStream os = new BufferedOutputStream(conn.getOutputStream());
+					body.writeTo(os);
+					os.flush();
+				}
+				return new Response(conn, conn.getResponseCode());
+			} catch (IOException e) {
+				conn.disconnect();
+				checkCancelled();
+				throw e;
+			}
+		}
+
+		@Override
+		public void cancel() {
+			mCancelled = true;
+			mConnection.disconnect();
+		}
+
+		private void checkCancelled() throws InterruptedIOException {
+			if (mCancelled) {
+				throw new InterruptedIOException("Request aborted");
+			}
+		}
+	}
+
+	private class Response implements TransportResponse {
+
+		private final HttpURLConnection mConnection;
+		private final int mStatusCode;
+		private BodyStream mBody;
+		private boolean mClosed;
+
+		Response(HttpURLConnection conn, int statusCode) {
+			mConnection = conn;
+			mStatusCode = statusCode;
+		}
+
+		@Override
+		public int getStatusCode() {
+			return mStatusCode;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return mConnection.getHeaderField(name);
+		}
+
+		@Override
+		public synchronized InputStream getBody() throws IOException {
+			if (mBody == null) {
+				InputStream in;
+				if (mStatusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+					// Error Stream contains JSON that we can parse to a Mobli error
+					in = mConnection.getErrorStream();
+				} else {
+					try {
+						in = mConnection.getInputStream();
+					} catch (FileNotFoundException e) {
+						in = mConnection.getErrorStream();
+					}
+				}
+				mBody = new BodyStream(in != null ? in : new ByteArrayInputStream(new byte[0]));
+			}
+			return mBody;
+		}
+
+		/**
+		 * Drain and close the body, leaving the connection to the platform
+		 * pool if the body could be read to the end.
+		 */
+		@Override
+		public synchronized void close() throws IOException {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			boolean reusable = !"close".equalsIgnoreCase(mConnection.getHeaderField("Connection"));
+			try {
+				BodyStream body = (BodyStream) getBody();
+				if (reusable && !body.mEof) {
+					reusable = drain(body);
+				}
+				body.release();
+			} catch (IOException e) {
+				reusable = false;
+			}
+			if (!reusable) {
+				mConnection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Response body stream, remembering whether it was read to the end. Its
+	 * close() is left to the response, which drains it first.
+	 */
+	private static final class BodyStream extends FilterInputStream {
+
+		boolean mEof;
+
+		BodyStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b == -1) {
+				mEof = true;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int n = in.read(buffer, offset, count);
+			if (n == -1) {
+				mEof = true;
+			}
+			return n;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		void release() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the rest of a body, up to MAX_DRAIN bytes.
+	 *
+	 * @return whether the end of the body was reached
+	 */
+	private static boolean drain(BodyStream in) throws IOException {
+		byte[] buffer = new byte[1024];
+		for (int drained = 0; drained <= MAX_DRAIN;) {
+			int n = in.read(buffer);
+			if (n == -1) {
+				return true;
+			}
+			drained += n;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,173 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import android.os.Bundle;
+
+/**
+ * Single-pass decoder of form encoded parameters (queries and fragments), the
+ * counterpart of UrlEncoder.
+ *
+ * Pairs are separated by '&' and split at their first '=', so values may
+ * contain '='; pairs without '=' are ignored and a repeated key keeps its
+ * last value. '+' decodes to a space and %XX sequences are decoded as UTF-8;
+ * malformed escapes are kept literally instead of failing the whole string.
+ */
+final class UrlDecoder {
+
+	/** Stands for invalid UTF-8 sequences */
+	private static final char REPLACEMENT = '\uFFFD';
+
+	private UrlDecoder() {
+	}
+
+	/**
+	 * Decode the parameters found in s[start, end) into the given bundle.
+	 */
+	static void decode(String s, int start, int end, Bundle out) {
+		int pairStart = start;
+		while (pairStart < end) {
+			// find the end of the pair and its first '=' in one scan
+			int equals = -1;
+			int pairEnd = pairStart;
+			for (; pairEnd < end; pairEnd++) {
+				char c = s.charAt(pairEnd);
+				if (c == '&') {
+					break;
+				} else if (c == '=' && equals < 0) {
+					equals = pairEnd;
+				}
+			}
+			if (equals > pairStart) {
+				out.putString(decodeComponent(s, pairStart, equals), decodeComponent(s, equals + 1, pairEnd));
+			}
+			pairStart = pairEnd + 1;
+		}
+	}
+
+	/**
+	 * Decode the query and fragment parameters of a URL of any scheme, e.g.
+	 * the custom scheme of the authorization redirect URI. Fragment
+	 * parameters override query parameters of the same name.
+	 */
+	static void decodeUrl(String url, Bundle out) {
+		int fragment = url.indexOf('#');
+		int queryEnd = fragment >= 0 ? fragment : url.length();
+		int query = url.indexOf('?');
+		if (query >= 0 && query < queryEnd) {
+			decode(url, query + 1, queryEnd, out);
+		}
+		if (fragment >= 0) {
+			decode(url, fragment + 1, url.length(), out);
+		}
+	}
+
+	/**
+	 * @return the decoded form of s[start, end)
+	 */
+	static String decodeComponent(String s, int start, int end) {
+		int i = start;
+		while (i < end && s.charAt(i) != '%' && s.charAt(i) != '+') {
+			i++;
+		}
+		if (i == end) {
+			return s.substring(start, end);
+		}
+
+		StringBuilder sb = new StringBuilder(end - start);
+		sb.append(s, start, i);
+		while (i < end) {
+			char c = s.charAt(i);
+			if (c == '+') {
+				sb.append(' ');
+				i++;
+			} else if (c != '%') {
+				sb.append(c);
+				i++;
+			} else {
+				i = decodeUtf8(s, i, end, sb);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Decode the UTF-8 character whose first %XX escape starts at index i.
+	 *
+	 * @return the index following the escapes consumed
+	 */
+	private static int decodeUtf8(String s, int i, int end, StringBuilder sb) {
+		int b = hexByte(s, i, end);
+		if (b < 0) {
+			sb.append('%');
+			return i + 1;
+		}
+		int continuation;
+		int codePoint;
+		if (b < 0x80) {
+			sb.append((char) b);
+			return i + 3;
+		} else if (b >= 0xC2 && b < 0xE0) {
+			continuation = 1;
+			codePoint = b & 0x1F;
+		} else if (b >= 0xE0 && b < 0xF0) {
+			continuation = 2;
+			codePoint = b & 0x0F;
+		} else if (b >= 0xF0 && b < 0xF5) {
+			continuation = 3;
+			codePoint = b & 0x07;
+		} else {
+			sb.append(REPLACEMENT);
+			return i + 3;
+		}
+		int next = i + 3;
+		for (int n = 0; n < continuation; n++) {
+			int cb = hexByte(s, next, end);
+			if (cb < 0 || (cb & 0xC0) != 0x80) {
+				// truncated sequence
+				sb.append(REPLACEMENT);
+				return next;
+			}
+			codePoint = (codePoint << 6) | (cb & 0x3F);
+			next += 3;
+		}
+		if ((continuation == 2 && codePoint < 0x800) || (continuation == 3 && codePoint < 0x10000)
+				|| (codePoint >= 0xD800 && codePoint <= 0xDFFF) || codePoint > 0x10FFFF) {
+			sb.append(REPLACEMENT);
+		} else {
+			sb.appendCodePoint(codePoint);
+		}
+		return next;
+	}
+
+	/**
+	 * @return the byte of the %XX escape at index i, or -1 if there is none
+	 */
+	private static int hexByte(String s, int i, int end) {
+		if (i + 3 > end) {
+			return -1;
+		}
+		if (s.charAt(i) != '%') {
+			return -1;
+		}
+		int high = Character.digit(s.charAt(i + 1), 16);
+		int low = Character.digit(s.charAt(i + 2), 16);
+		if (high < 0 || low < 0) {
+			return -1;
+		}
+		return (high << 4) | low;
+	}
+}
@@ -0,0 +1,188 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android;
+
+import java.util.Arrays;
+
+import android.os.Bundle;
+
+/**
+ * UTF-8 form encoder for URL parameters, producing the same output as
+ * URLEncoder.encode(s, "UTF-8"): letters, digits and ".-*_" are kept, spaces
+ * become '+' and every other byte of the UTF-8 encoding is written as %XX.
+ *
+ * Characters are encoded straight into the destination StringBuilder without
+ * intermediate byte arrays or strings, and whole URLs are built in a
+ * per-thread buffer presized from the parameters, so that building a request
+ * URL allocates little more than the resulting String.
+ */
+final class UrlEncoder {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	/** Larger buffers are not kept for reuse */
+	private static final int MAX_CACHED_CAPACITY = 8 * 1024;
+
+	private static final ThreadLocal<StringBuilder> sBuilder = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	private UrlEncoder() {
+	}
+
+	/**
+	 * @return the form encoding of s
+	 */
+	static String encode(String s) {
+		if (isSafe(s)) {
+			return s;
+		}
+		StringBuilder sb = obtain(s.length() * 3);
+		encode(s, sb);
+		return release(sb);
+	}
+
+	/**
+	 * Append the form encoding of s to the given builder.
+	 */
+	static void encode(String s, StringBuilder out) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (isSafe(c)) {
+				out.append(c);
+			} else if (c == ' ') {
+				out.append('+');
+			} else if (c < 0x80) {
+				appendByte(out, c);
+			} else if (c < 0x800) {
+				appendByte(out, 0xC0 | (c >> 6));
+				appendByte(out, 0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				appendByte(out, 0xF0 | (codePoint >> 18));
+				appendByte(out, 0x80 | ((codePoint >> 12) & 0x3F));
+				appendByte(out, 0x80 | ((codePoint >> 6) & 0x3F));
+				appendByte(out, 0x80 | (codePoint & 0x3F));
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				// unpaired surrogate: replaced like the platform encoder does
+				appendByte(out, '?');
+			} else {
+				appendByte(out, 0xE0 | (c >> 12));
+				appendByte(out, 0x80 | ((c >> 6) & 0x3F));
+				appendByte(out, 0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Build the query string of the string parameters, ordered by parameter
+	 * name so that equal parameter sets always produce the same string.
+	 *
+	 * @param excludedKey
+	 *            - name of a parameter to leave out (e.g. the access token), or
+	 *            null
+	 */
+	static String buildQuery(Bundle parameters, String excludedKey) {
+		return buildUrl(null, parameters, excludedKey);
+	}
+
+	/**
+	 * Build base + '?' + the query string of the parameters in a single
+	 * buffer. See buildQuery(Bundle, String) for the @params.
+	 *
+	 * @param base
+	 *            - URL preceding the query, or null to build the query only
+	 */
+	static String buildUrl(String base, Bundle parameters, String excludedKey) {
+		String[] keys = sortedKeys(parameters);
+		int capacity = base != null ? base.length() + 1 : 0;
+		for (String key : keys) {
+			Object value = parameters.get(key);
+			if (value instanceof String) {
+				// most parameters are plain ASCII: leave some room for escapes
+				int length = key.length() + ((String) value).length() + 2;
+				capacity += length + (length >> 2);
+			}
+		}
+
+		StringBuilder sb = obtain(capacity);
+		if (base != null) {
+			sb.append(base).append('?');
+		}
+		boolean first = true;
+		for (String key : keys) {
+			Object value = parameters.get(key);
+			if (!(value instanceof String) || key.equals(excludedKey)) {
+				continue;
+			}
+			if (first) {
+				first = false;
+			} else {
+				sb.append('&');
+			}
+			encode(key, sb);
+			sb.append('=');
+			encode((String) value, sb);
+		}
+		return release(sb);
+	}
+
+	private static String[] sortedKeys(Bundle parameters) {
+		if (parameters == null || parameters.isEmpty()) {
+			return new String[0];
+		}
+		String[] keys = parameters.keySet().toArray(new String[parameters.size()]);
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	private static boolean isSafe(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '*'
+				|| c == '_';
+	}
+
+	private static boolean isSafe(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (!isSafe(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void appendByte(StringBuilder out, int b) {
+		out.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+	}
+
+	private static StringBuilder obtain(int capacity) {
+		StringBuilder sb = sBuilder.get();
+		sb.setLength(0);
+		sb.ensureCapacity(capacity);
+		return sb;
+	}
+
+	private static String release(StringBuilder sb) {
+		String s = sb.toString();
+		if (sb.capacity() > MAX_CACHED_CAPACITY) {
+			sBuilder.set(new StringBuilder(256));
+		}
+		return s;
+	}
+}
@@ -24,18 +24,23 @@
 
 package com.mobli.android;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -61,6 +66,66 @@ public final class Util {
 	 */
 	private static boolean ENABLE_LOG = false;
 
+	private static volatile HttpTransport sTransport = new UrlConnectionTransport();
+
+	/**
+	 * Set the HttpTransport executing the requests of all the Mobli objects,
+	 * e.g. a pooled client, or a LoopbackTransport for offline tests. The
+	 * default is a UrlConnectionTransport.
+	 */
+	public static void setTransport(HttpTransport transport) {
+		if (transport == null) {
+			throw new IllegalArgumentException("transport must not be null");
+		}
+		sTransport = transport;
+	}
+
+	public static HttpTransport getTransport() {
+		return sTransport;
+	}
+
+	private static volatile RequestEventListener sEventListener;
+	private static final AtomicLong sCallIds = new AtomicLong();
+	/** the traced exchange whose call the transport is executing */
+	private static final ThreadLocal<Exchange> sCurrentExchange = new ThreadLocal<Exchange>();
+
+	/**
+	 * Set the listener receiving the lifecycle events of the requests of all
+	 * the Mobli objects, or null for none (the default).
+	 */
+	public static void setEventListener(RequestEventListener listener) {
+		sEventListener = listener;
+	}
+
+	public static RequestEventListener getEventListener() {
+		return sEventListener;
+	}
+
+	/**
+	 * @return a new id for a request, see MobliRequest.getCallId()
+	 */
+	static long nextCallId() {
+		return sCallIds.incrementAndGet();
+	}
+
+	/**
+	 * Send an event of the given request to the listener, if any.
+	 */
+	static void event(long callId, RequestEventListener.Event event) {
+		RequestEventListener listener = sEventListener;
+		if (listener != null) {
+			listener.onEvent(callId, event, System.nanoTime());
+		}
+	}
+
+	/**
+	 * @return the exchange whose call is being executed by the transport on
+	 *         this thread, if it is traced, or null
+	 */
+	static Exchange currentExchange() {
+		return sCurrentExchange.get();
+	}
+
 	/**
 	 * Generate the multi-part post body providing the parameters and boundary
 	 * string
@@ -89,59 +154,58 @@ public final class Util {
 		return sb.toString();
 	}
 
+	/**
+	 * Encode the string parameters into a UTF-8 query string, ordered by
+	 * parameter name.
+	 */
 	public static String encodeUrl(Bundle parameters) {
 		if (parameters == null) {
 			return "";
 		}
+		return UrlEncoder.buildQuery(parameters, null);
+	}
 
-		StringBuilder sb = new StringBuilder();
-		boolean first = true;
-		for (String key : parameters.keySet()) {
-			Object parameter = parameters.get(key);
-			if (!(parameter instanceof String)) {
-				continue;
-			}
-
-			if (first)
-				first = false;
-			else
-				sb.append("&");
-			sb.append(URLEncoder.encode(key) + "=" + URLEncoder.encode(parameters.getString(key)));
-		}
-		return sb.toString();
+	/**
+	 * Build the cache key of a GET request: its canonical URL with parameters
+	 * sorted by name and without the access token, so that cached responses
+	 * survive token refreshes, scoped by the user of the session, so that a
+	 * user is never served the responses cached for another.
+	 *
+	 * @param userId
+	 *            - user id of the session, or null for the public token
+	 */
+	static String cacheKey(String url, Bundle parameters, String userId) {
+		String key = UrlEncoder.buildUrl(url, parameters, Mobli.TOKEN);
+		return userId != null ? userId + ' ' + key : key;
 	}
 
+	/**
+	 * Decode a form encoded query string or fragment into a key-value bundle.
+	 * Values may contain '='; a repeated key keeps its last value.
+	 */
 	public static Bundle decodeUrl(String s) {
 		Bundle params = new Bundle();
 		if (s != null) {
-			String array[] = s.split("&");
-			for (String parameter : array) {
-				String v[] = parameter.split("=");
-				if (v.length == 2) {
-					params.putString(URLDecoder.decode(v[0]), URLDecoder.decode(v[1]));
-				}
-			}
+			UrlDecoder.decode(s, 0, s.length(), params);
 		}
 		return params;
 	}
 
 	/**
-	 * Parse a URL query and fragment parameters into a key-value bundle.
+	 * Parse a URL query and fragment parameters into a key-value bundle. The
+	 * URL may have any scheme, e.g. the custom scheme of the authorization
+	 * redirect URI; fragment parameters override query parameters.
 	 * 
 	 * @param url
 	 *            the URL to parse
 	 * @return a dictionary bundle of keys and values
 	 */
 	public static Bundle parseUrl(String url) {
-
-		try {
-			URL u = new URL(url);
-			Bundle b = decodeUrl(u.getQuery());
-			b.putAll(decodeUrl(u.getRef()));
-			return b;
-		} catch (MalformedURLException e) {
-			return new Bundle();
+		Bundle params = new Bundle();
+		if (url != null) {
+			UrlDecoder.decodeUrl(url, params);
 		}
+		return params;
 	}
 
 	/**
@@ -163,73 +227,454 @@ public final class Util {
 	 *             - if a network problem occurs
 	 */
 	public static String openUrl(String url, String method, Bundle params) throws MalformedURLException, IOException {
-		// random string as boundary for multi-part http post
-		String strBoundary = "3i2ndDfv2rTHiSisAbouNdArYfORhtTPEefj3q2f";
-		String endLine = "\r\n";
-
-		OutputStream os;
-
-		if (method.equals("GET")) {
-			url = url + "?" + encodeUrl(params);
-		}
-		Util.logd("Mobli-Util", method + " URL: " + url);
-		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-		conn.setRequestProperty("User-Agent", System.getProperties().getProperty("http.agent") + " MobliAndroidSDK");
-		if (!method.equals("GET")) {
-			Bundle dataparams = new Bundle();
-			for (String key : params.keySet()) {
-				Object parameter = params.get(key);
-				if (parameter instanceof byte[]) {
-					dataparams.putByteArray(key, (byte[]) parameter);
+		return openUrl(url, method, params, null);
+	}
+
+	/**
+	 * Connect to an HTTP URL and return the response as a string, applying
+	 * the timeouts of the given request handle and allowing it to abort the
+	 * connection.
+	 * 
+	 * See openUrl(String, String, Bundle) above for the other @params.
+	 * 
+	 * @param handle
+	 *            - handle of the asynchronous request, or null
+	 * @throws java.io.InterruptedIOException
+	 *             - if the request was cancelled before connecting
+	 */
+	static String openUrl(String url, String method, Bundle params, RequestHandle handle) throws MalformedURLException, IOException {
+		return fetch(url, method, params, handle).getBody();
+	}
+
+	/**
+	 * Connect to an HTTP URL and return the response body together with its
+	 * status code.
+	 * 
+	 * See openUrl(String, String, Bundle, RequestHandle) above for @params.
+	 */
+	static MobliResponse fetch(String url, String method, Bundle params, RequestHandle handle) throws MalformedURLException,
+			IOException {
+		return fetch(url, method, params, handle, null, null);
+	}
+
+	/**
+	 * Connect to an HTTP URL with additional request headers (e.g. cache
+	 * validators) and return the response body together with its status code
+	 * and validators.
+	 * 
+	 * @param headers
+	 *            - request headers to set, or null
+	 * @param policy
+	 *            - policy for retrying transient failures, or null
+	 * @throws CircuitOpenException
+	 *             - if the circuit breaker of the host is open
+	 */
+	static MobliResponse fetch(String url, String method, Bundle params, RequestHandle handle, Map<String, String> headers,
+			RetryPolicy policy) throws MalformedURLException, IOException {
+		return fetch(url, method, params, handle, headers, policy, Interceptors.DEFAULTS);
+	}
+
+	/**
+	 * See fetch(String, String, Bundle, RequestHandle, Map, RetryPolicy)
+	 * above for the other @params.
+	 * 
+	 * @param interceptors
+	 *            - chain the request goes through before the network
+	 */
+	static MobliResponse fetch(String url, String method, Bundle params, RequestHandle handle, Map<String, String> headers,
+			RetryPolicy policy, Interceptor[] interceptors) throws MalformedURLException, IOException {
+		return fetch(url, method, params, null, null, handle, headers, policy, RESPONSE_READER, interceptors);
+	}
+
+	/**
+	 * Upload files with a multipart POST request, streaming their content
+	 * instead of loading it in memory. Uploads are never retried.
+	 * 
+	 * @param uploads
+	 *            - file parts, by name
+	 * @param progress
+	 *            - listener notified as the request body is written, or null
+	 */
+	static MobliResponse upload(String url, Bundle params, Map<String, UploadSource> uploads, UploadSource.ProgressListener progress,
+			RequestHandle handle, Interceptor[] interceptors) throws MalformedURLException, IOException {
+		return fetch(url, "POST", params, uploads, progress, handle, null, null, RESPONSE_READER, interceptors);
+	}
+
+	/**
+	 * Connect to an HTTP URL and hand the response body to the given reader
+	 * as it arrives, instead of buffering it in a String. The body is the
+	 * error stream when the server answers with an error status.
+	 * 
+	 * See fetch(String, String, Bundle, RequestHandle, Map, RetryPolicy)
+	 * above for the other @params. Failures are retried only until the
+	 * reader is called.
+	 * 
+	 * @return the value returned by the reader
+	 */
+	static <T> T stream(String url, String method, Bundle params, RequestHandle handle, RetryPolicy policy, BodyReader<T> reader,
+			Interceptor[] interceptors) throws MalformedURLException, IOException {
+		return fetch(url, method, params, null, null, handle, null, policy, reader, interceptors);
+	}
+
+	/**
+	 * Run the request through the interceptors and the network, then hand
+	 * the response to the reader. The request handle stays attached to the
+	 * connection until the response is read.
+	 */
+	private static <T> T fetch(String url, String method, Bundle params, Map<String, UploadSource> uploads,
+			UploadSource.ProgressListener progress, RequestHandle handle, Map<String, String> headers, RetryPolicy policy,
+			BodyReader<T> reader, Interceptor[] interceptors) throws MalformedURLException, IOException {
+		long start = System.nanoTime();
+		long callId = handle != null ? handle.getCallId() : nextCallId();
+		Exchange exchange = new Exchange(policy, callId);
+		exchange.event(RequestEventListener.Event.CALL_START);
+		MobliRequest request = new MobliRequest(url, method, params, headers, uploads, progress, handle, callId);
+		int status = -1;
+		try {
+			TransportResponse response = Interceptors.execute(interceptors, exchange, request);
+			status = response.getStatusCode();
+			T result = receive(response, reader, exchange);
+			exchange.record(method, url, start, status, null);
+			exchange.event(RequestEventListener.Event.CALL_END);
+			return result;
+		} catch (IOException e) {
+			exchange.record(method, url, start, status, e);
+			exchange.event(RequestEventListener.Event.CALL_FAILED);
+			throw e;
+		} catch (RuntimeException e) {
+			exchange.record(method, url, start, status, e);
+			exchange.event(RequestEventListener.Event.CALL_FAILED);
+			throw e;
+		} finally {
+			if (handle != null) {
+				handle.detach();
+			}
+		}
+	}
+
+	/**
+	 * The end of the interceptor chain: encode the request and send it,
+	 * through the circuit breaker of its host and with the retry policy.
+	 * Counts the bytes of the request sent and received over the wire, for
+	 * RequestMetrics, and sends its events to the RequestEventListener.
+	 */
+	static final class Exchange implements Interceptors.Network {
+
+		private final RetryPolicy mPolicy;
+		private final long mCallId;
+		private final RequestEventListener mListener;
+		/** written by the thread making the request only */
+		long mBytesSent;
+		long mBytesReceived;
+
+		Exchange(RetryPolicy policy, long callId) {
+			mPolicy = policy;
+			mCallId = callId;
+			mListener = sEventListener;
+		}
+
+		void record(String method, String url, long start, int status, Throwable error) {
+			RequestMetrics.getDefault().record(method, url, System.nanoTime() - start, status, error, mBytesSent, mBytesReceived);
+		}
+
+		/**
+		 * Send an event of the request to the listener, if any.
+		 */
+		void event(RequestEventListener.Event event) {
+			RequestEventListener listener = mListener;
+			if (listener != null) {
+				listener.onEvent(mCallId, event, System.nanoTime());
+			}
+		}
+
+		/**
+		 * Execute the call, as the current exchange of the thread if it is
+		 * traced, so that the transport may send the connection events.
+		 */
+		private TransportResponse send(HttpTransport.Call call) throws IOException {
+			if (mListener == null) {
+				return call.execute();
+			}
+			sCurrentExchange.set(this);
+			try {
+				return call.execute();
+			} finally {
+				sCurrentExchange.remove();
+			}
+		}
+
+		@Override
+		public TransportResponse execute(MobliRequest request) throws IOException {
+			String method = request.getMethod();
+			RequestHandle handle = request.getHandle();
+			String url = request.getUrl();
+			if (method.equals("GET")) {
+				url = UrlEncoder.buildUrl(url, request.getParams(), null);
+			}
+			Util.logd("Mobli-Util", method + " URL: " + url);
+			URL target = new URL(url);
+			CircuitBreaker breaker = CircuitBreaker.forHost(target.getHost());
+			RetryPolicy policy = mPolicy;
+			boolean retryable = policy != null && !request.hasUploads() && policy.canRetry(method);
+			HttpTransport transport = sTransport;
+
+			for (int attempt = 1;; attempt++) {
+				boolean mayRetry = retryable && attempt < policy.getMaxAttempts();
+				HttpTransport.Call call = transport.newCall(newRequest(url, request, this));
+				if (!breaker.tryAcquire(System.currentTimeMillis())) {
+					throw new CircuitOpenException(target.getHost(), breaker.getRemainingOpenTime(System.currentTimeMillis()));
 				}
+
+				long delay;
+				TransportResponse response;
+				boolean settled = false;
+				try {
+					if (handle != null) {
+						handle.attach(call);
+					}
+					event(RequestEventListener.Event.ATTEMPT_START);
+					response = send(call);
+					int status = response.getStatusCode();
+					if (status >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+						breaker.onFailure(System.currentTimeMillis());
+					} else {
+						breaker.onSuccess();
+					}
+					settled = true;
+				} catch (IOException e) {
+					settled = true;
+					if (handle != null && handle.isAborted()) {
+						breaker.onAbandon();
+						throw e;
+					}
+					breaker.onFailure(System.currentTimeMillis());
+					if (!mayRetry || !policy.isRetryableError(e)) {
+						throw e;
+					}
+					delay = policy.getBackoff(attempt);
+					Util.logd("Mobli-Util", "Retrying in " + delay + " ms after " + e);
+					sleep(handle, delay);
+					continue;
+				} finally {
+					if (!settled) {
+						// e.g. a RuntimeException of the transport: give back
+						// the permit, which may be the one of a half-open probe
+						breaker.onAbandon();
+					}
+				}
+
+				event(RequestEventListener.Event.RESPONSE_HEADERS);
+				int status = response.getStatusCode();
+				if (mayRetry && policy.isRetryableStatus(status)) {
+					long retryAfter = getRetryAfter(response);
+					if (retryAfter <= policy.getMaxRetryAfter()) {
+						delay = Math.max(policy.getBackoff(attempt), retryAfter);
+						Util.logd("Mobli-Util", "Retrying in " + delay + " ms after HTTP " + status);
+						discard(response);
+						sleep(handle, delay);
+						continue;
+					}
+				}
+				return response;
 			}
+		}
+	}
 
-			// use method override
-			if (!params.containsKey("method")) {
-				params.putString("method", method);
+	/**
+	 * Build the request handed to the transport: the headers, and the
+	 * multipart body of non-GET requests, which are sent as POST.
+	 */
+	private static TransportRequest newRequest(String url, MobliRequest request, Exchange exchange) {
+		HashMap<String, String> requestHeaders = new HashMap<String, String>(request.getHeaders());
+		RequestBody body = null;
+		if (!request.getMethod().equals("GET")) {
+			MultipartBody multipart = new MultipartBody(request.getParams(), request.getUploads());
+			boolean compress = !multipart.hasFileParts() && Compression.shouldCompress(multipart.getContentLength());
+			requestHeaders.put("Content-Type", MultipartBody.CONTENT_TYPE);
+			if (compress) {
+				requestHeaders.put("Content-Encoding", "gzip");
 			}
+			body = new RequestBody(multipart, compress, request.getProgress(), exchange);
+		}
+		RequestOptions options = request.getHandle() != null ? request.getHandle().getOptions() : null;
+		return new TransportRequest(body != null ? "POST" : "GET", url, requestHeaders, body, options != null ? options.getConnectTimeout()
+				: 0, options != null ? options.getReadTimeout() : 0);
+	}
+
+	/**
+	 * @return the User-Agent of the requests
+	 */
+	static String getUserAgent() {
+		return System.getProperties().getProperty("http.agent") + " MobliAndroidSDK";
+	}
+
+	/**
+	 * @return the headers of the requests opening connections ahead of time
+	 */
+	private static HashMap<String, String> newHeaders() {
+		HashMap<String, String> headers = new HashMap<String, String>();
+		headers.put("User-Agent", getUserAgent());
+		headers.put("Connection", "Keep-Alive");
+		return headers;
+	}
 
-			if (params.containsKey("access_token")) {
-				String decoded_token = URLDecoder.decode(params.getString("access_token"));
-				params.putString("access_token", decoded_token);
+	/**
+	 * Open a connection to the host of the given URL ahead of the first
+	 * request: send a HEAD request, which leaves the resolved address in the
+	 * platform DNS cache and the connection (and its TLS session) idle in
+	 * the pool. The circuit breaker of the host is not involved.
+	 */
+	static void preconnect(String url) throws MalformedURLException, IOException {
+		URL target = new URL(url);
+		String root = target.getProtocol() + "://" + target.getAuthority() + "/";
+		Util.logd("Mobli-Util", "Preconnecting to " + root);
+		TransportResponse response = sTransport.newCall(new TransportRequest("HEAD", root, newHeaders(), null, 0, 0)).execute();
+		response.close();
+	}
+
+	/**
+	 * Hand the response body to the reader, decompressed according to its
+	 * Content-Encoding.
+	 */
+	private static <T> T receive(TransportResponse response, BodyReader<T> reader, Exchange exchange) throws IOException {
+		T result;
+		try {
+			InputStream in = Compression.decode(response.getBody(), response.getHeader("Content-Encoding"), exchange);
+			exchange.event(RequestEventListener.Event.RESPONSE_BODY_START);
+			try {
+				result = reader.read(response, in);
+			} finally {
+				in.close();
+			}
+		} finally {
+			response.close();
+		}
+		exchange.event(RequestEventListener.Event.RESPONSE_BODY_END);
+		return result;
+	}
+
+	/**
+	 * @return the delay in milliseconds requested by the Retry-After header
+	 *         of the response (in seconds or as a date), or 0
+	 */
+	private static long getRetryAfter(TransportResponse response) {
+		String value = response.getHeader("Retry-After");
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim()) * 1000L);
+		} catch (NumberFormatException e) {
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			try {
+				return Math.max(0, format.parse(value.trim()).getTime() - System.currentTimeMillis());
+			} catch (ParseException pe) {
+				return 0;
 			}
+		}
+	}
 
-			conn.setRequestMethod("POST");
-			conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + strBoundary);
-			conn.setDoOutput(true);
-			conn.setDoInput(true);
-			conn.setRequestProperty("Connection", "Keep-Alive");
-			conn.connect();
-			os = new BufferedOutputStream(conn.getOutputStream());
+	private static void sleep(RequestHandle handle, long millis) throws InterruptedIOException {
+		if (handle != null) {
+			handle.sleep(millis);
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Request interrupted");
+		}
+	}
 
-			os.write(("--" + strBoundary + endLine).getBytes());
-			os.write((encodePostBody(params, strBoundary)).getBytes());
-			os.write((endLine + "--" + strBoundary + endLine).getBytes());
+	/**
+	 * Read and close a response body which is not needed, so that the
+	 * connection may be reused.
+	 */
+	private static void discard(TransportResponse response) {
+		try {
+			InputStream in = response.getBody();
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) != -1) {
+				// skip
+			}
+		} catch (IOException e) {
+			// the connection will not be reused
+		} finally {
+			try {
+				response.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
 
-			if (!dataparams.isEmpty()) {
+	/**
+	 * Request body written by the transport: the multipart body, gzipped if
+	 * requested, counted by Compression.
+	 */
+	private static final class RequestBody implements TransportRequest.Body {
+
+		private final MultipartBody mBody;
+		private final boolean mCompress;
+		private final UploadSource.ProgressListener mProgress;
+		private final Exchange mExchange;
+
+		RequestBody(MultipartBody body, boolean compress, UploadSource.ProgressListener progress, Exchange exchange) {
+			mBody = body;
+			mCompress = compress;
+			mProgress = progress;
+			mExchange = exchange;
+		}
 
-				for (String key : dataparams.keySet()) {
-					os.write(("Content-Disposition: form-data; filename=\"" + key + "\"" + endLine).getBytes());
-					os.write(("Content-Type: content/unknown" + endLine + endLine).getBytes());
-					os.write(dataparams.getByteArray(key));
-					os.write((endLine + "--" + strBoundary + endLine).getBytes());
+		@Override
+		public long getContentLength() {
+			return mCompress ? -1 : mBody.getContentLength();
+		}
 
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			mExchange.event(RequestEventListener.Event.REQUEST_BODY_START);
+			OutputStream wire = Compression.countWire(out, mExchange);
+			if (mCompress) {
+				DeflatingOutputStream gzip = new DeflatingOutputStream(wire);
+				try {
+					mBody.writeTo(Compression.countBody(gzip), mProgress);
+					gzip.finish();
+				} finally {
+					gzip.end();
 				}
+			} else {
+				mBody.writeTo(Compression.countBody(wire), mProgress);
 			}
-			os.flush();
+			mExchange.event(RequestEventListener.Event.REQUEST_BODY_END);
 		}
+	}
+
+	/**
+	 * Reads the whole body into a MobliResponse.
+	 */
+	private static final BodyReader<MobliResponse> RESPONSE_READER = new BodyReader<MobliResponse>() {
+		@Override
+		public MobliResponse read(TransportResponse response, InputStream body) throws IOException {
+			return new MobliResponse(response.getStatusCode(), Util.read(body), response.getHeader("ETag"),
+					response.getHeader("Last-Modified"), getRetryAfter(response));
+		}
+	};
 
-		String response = "";
+	/**
+	 * @return the UTF-8 encoding of the given string
+	 */
+	static byte[] bytes(String s) {
 		try {
-			response = read(conn.getInputStream());
-		} catch (FileNotFoundException e) {
-			// Error Stream contains JSON that we can parse to a Mobli error
-			response = read(conn.getErrorStream());
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
 		}
-		return response;
 	}
 
-	private static String read(InputStream in) throws IOException {
+	static String read(InputStream in) throws IOException {
 		StringBuilder sb = new StringBuilder();
 		BufferedReader r = new BufferedReader(new InputStreamReader(in), 1000);
 		for (String line = r.readLine(); line != null; line = r.readLine()) {
@@ -239,6 +684,22 @@ public final class Util {
 		return sb.toString();
 	}
 
+	/**
+	 * Consumer of a response body, called while the connection is open.
+	 */
+	static interface BodyReader<T> {
+
+		/**
+		 * @param response
+		 *            - the response, for the status code and headers
+		 * @param body
+		 *            - the decompressed response body, closed once this
+		 *            method returns
+		 */
+		public T read(TransportResponse response, InputStream body) throws IOException;
+
+	}
+
 	public static void clearCookies(Context context) {
 		// Edge case: an illegal state exception is thrown if an instance of
 		// CookieSyncManager has not be created.  CookieSyncManager is normally
@@ -278,25 +739,76 @@ public final class Util {
 		}
 		JSONObject json = new JSONObject(response);
 
+		MobliError error = toMobliError(json);
+		if (error != null) {
+			throw error;
+		}
+		return json;
+	}
+
+	/**
+	 * Parse a server response lazily: only the top-level members are scanned,
+	 * and nested values are parsed when accessed. Use this instead of
+	 * parseJson for large responses of which only some members are read.
+	 * 
+	 * The error fields are identified by the scan, and a MobliError is thrown
+	 * just like parseJson does.
+	 * 
+	 * @param response
+	 *            - string representation of the response
+	 * @param projection
+	 *            - names of the top-level members to keep; the others are
+	 *            skipped without being parsed. Keeps all members if empty.
+	 * @return the lazily parsed response
+	 * @throws JSONException
+	 *             - if the response is not valid JSON
+	 * @throws MobliError
+	 *             - if an error condition is set
+	 */
+	public static JsonResponse parseJsonLazily(String response, String... projection) throws JSONException, MobliError {
+		if (response.equals("false")) {
+			throw new MobliError("request failed");
+		}
+		if (response.equals("true")) {
+			response = "{\"value\" : true}";
+		}
+		JsonResponse json = new JsonResponse(response, projection);
+		if (json.isError()) {
+			MobliError error = json.getError();
+			if (error != null) {
+				throw error;
+			}
+		}
+		return json;
+	}
+
+	/**
+	 * Check a parsed response for the error fields set by the server.
+	 * 
+	 * @return the error described by the response, or null if there is none
+	 * @throws JSONException
+	 *             - if an error field has an unexpected type
+	 */
+	static MobliError toMobliError(JSONObject json) throws JSONException {
 		// errors set by the server are not consistent
 		// they depend on the method and endpoint
 		if (json.has("error")) {
 			JSONObject error = json.getJSONObject("error");
-			throw new MobliError(error.getString("message"), error.getString("type"), 0);
+			return new MobliError(error.getString("message"), error.getString("type"), 0);
 		}
 		if (json.has("error_code") && json.has("error_msg")) {
-			throw new MobliError(json.getString("error_msg"), "", Integer.parseInt(json.getString("error_code")));
+			return new MobliError(json.getString("error_msg"), "", Integer.parseInt(json.getString("error_code")));
 		}
 		if (json.has("error_code")) {
-			throw new MobliError("request failed", "", Integer.parseInt(json.getString("error_code")));
+			return new MobliError("request failed", "", Integer.parseInt(json.getString("error_code")));
 		}
 		if (json.has("error_msg")) {
-			throw new MobliError(json.getString("error_msg"));
+			return new MobliError(json.getString("error_msg"));
 		}
 		if (json.has("error_reason")) {
-			throw new MobliError(json.getString("error_reason"));
+			return new MobliError(json.getString("error_reason"));
 		}
-		return json;
+		return null;
 	}
 
 	/**
@@ -0,0 +1,51 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android.model;
+
+import com.mobli.android.JsonField;
+import com.mobli.android.JsonModel;
+
+/**
+ * A channel grouping media on a topic.
+ */
+@JsonModel
+public class Channel {
+
+	@JsonField("id")
+	long mId;
+	@JsonField("name")
+	String mName;
+	@JsonField("description")
+	String mDescription;
+	@JsonField("media_count")
+	int mMediaCount;
+
+	public long getId() {
+		return mId;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public String getDescription() {
+		return mDescription;
+	}
+
+	public int getMediaCount() {
+		return mMediaCount;
+	}
+}
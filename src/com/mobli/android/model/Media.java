@@ -0,0 +1,117 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android.model;
+
+import java.util.List;
+
+import com.mobli.android.JsonField;
+import com.mobli.android.JsonModel;
+
+/**
+ * A photo or video.
+ */
+@JsonModel
+public class Media {
+
+	@JsonField("id")
+	long mId;
+	@JsonField("type")
+	String mType;
+	@JsonField("text")
+	String mText;
+	@JsonField("created_date")
+	long mCreatedDate;
+	@JsonField("url")
+	String mUrl;
+	@JsonField("thumbnail")
+	String mThumbnail;
+	@JsonField("owner")
+	User mOwner;
+	@JsonField("place")
+	Place mPlace;
+	@JsonField("channels")
+	List<Channel> mChannels;
+	@JsonField("comments")
+	List<Comment> mComments;
+	@JsonField("likes")
+	int mLikes;
+	@JsonField("tags")
+	List<String> mTags;
+
+	public long getId() {
+		return mId;
+	}
+
+	/**
+	 * @return "photo" or "video"
+	 */
+	public String getType() {
+		return mType;
+	}
+
+	public String getText() {
+		return mText;
+	}
+
+	/**
+	 * @return creation time, in seconds since Unix epoch
+	 */
+	public long getCreatedDate() {
+		return mCreatedDate;
+	}
+
+	public String getUrl() {
+		return mUrl;
+	}
+
+	public String getThumbnail() {
+		return mThumbnail;
+	}
+
+	public User getOwner() {
+		return mOwner;
+	}
+
+	/**
+	 * @return the place the media was taken at, or null
+	 */
+	public Place getPlace() {
+		return mPlace;
+	}
+
+	/**
+	 * @return the channels of the media, or null if the response did not
+	 *         include them
+	 */
+	public List<Channel> getChannels() {
+		return mChannels;
+	}
+
+	/**
+	 * @return the comments included in the response, or null
+	 */
+	public List<Comment> getComments() {
+		return mComments;
+	}
+
+	public int getLikes() {
+		return mLikes;
+	}
+
+	public List<String> getTags() {
+		return mTags;
+	}
+}
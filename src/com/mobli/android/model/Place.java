@@ -0,0 +1,57 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android.model;
+
+import com.mobli.android.JsonField;
+import com.mobli.android.JsonModel;
+
+/**
+ * A place media can be taken at.
+ */
+@JsonModel
+public class Place {
+
+	@JsonField("id")
+	long mId;
+	@JsonField("name")
+	String mName;
+	@JsonField("address")
+	String mAddress;
+	@JsonField("lat")
+	double mLatitude;
+	@JsonField("lon")
+	double mLongitude;
+
+	public long getId() {
+		return mId;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	public String getAddress() {
+		return mAddress;
+	}
+
+	public double getLatitude() {
+		return mLatitude;
+	}
+
+	public double getLongitude() {
+		return mLongitude;
+	}
+}
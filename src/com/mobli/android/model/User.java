@@ -0,0 +1,72 @@
+/* Copyright 2012 Mobli Media inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.mobli.android.model;
+
+import com.mobli.android.JsonField;
+import com.mobli.android.JsonModel;
+
+/**
+ * A Mobli user.
+ */
+@JsonModel
+public class User {
+
+	@JsonField("id")
+	long mId;
+	@JsonField("username")
+	String mUsername;
+	@JsonField("first_name")
+	String mFirstName;
+	@JsonField("last_name")
+	String mLastName;
+	@JsonField("profile_pic")
+	String mProfilePic;
+	@JsonField("followers_count")
+	int mFollowersCount;
+	@JsonField("following_count")
+	int mFollowingCount;
+
+	public long getId() {
+		return mId;
+	}
+
+	public String getUsername() {
+		return mUsername;
+	}
+
+	public String getFirstName() {
+		return mFirstName;
+	}
+
+	public String getLastName() {
+		return mLastName;
+	}
+
+	/**
+	 * @return URL of the profile picture
+	 */
+	public String getProfilePic() {
+		return mProfilePic;
+	}
+
+	public int getFollowersCount() {
+		return mFollowersCount;
+	}
+
+	public int getFollowingCount() {
+		return mFollowingCount;
+	}
+}